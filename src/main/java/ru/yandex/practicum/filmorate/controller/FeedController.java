@@ -2,27 +2,76 @@ package ru.yandex.practicum.filmorate.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import ru.yandex.practicum.filmorate.model.Feed;
+import ru.yandex.practicum.filmorate.model.FeedEventType;
+import ru.yandex.practicum.filmorate.model.Page;
 import ru.yandex.practicum.filmorate.service.FeedService;
+import ru.yandex.practicum.filmorate.service.FeedStreamService;
 
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
 import java.util.List;
 
 @Controller
 @RequiredArgsConstructor
+@Validated
 @Slf4j
 public class FeedController {
 
     private final FeedService feedService;
+    private final FeedStreamService feedStreamService;
 
     @GetMapping("/users/{id}/feed")
-    public ResponseEntity<List<Feed>> getUserFeed(@PathVariable long id) {
-        log.debug("GET /users/{id}/feed request");
-        log.debug("id: {}", id);
+    public ResponseEntity<List<Feed>> getUserFeed(@PathVariable long id,
+                                                  @RequestParam(required = false) @Positive Long before,
+                                                  @RequestParam(required = false) @Positive Integer limit,
+                                                  @RequestParam(required = false) @PositiveOrZero Long since,
+                                                  @RequestParam(required = false) FeedEventType eventType) {
+        log.debug("GET /users/{id}/feed?before={before}&limit={limit}&since={since}&eventType={eventType} request");
+        log.debug("id: {}, before: {}, limit: {}, since: {}, eventType: {}", id, before, limit, since, eventType);
+        Page<Feed> page = feedService.getUserFeed(id, before, limit, since, eventType);
+        if (page.getNextCursor() == null) {
+            return ResponseEntity.ok(page.getItems());
+        }
 
-        return ResponseEntity.ok(feedService.getUserFeed(id));
+        return ResponseEntity.ok()
+                .header(Page.NEXT_CURSOR_HEADER, page.getNextCursor().toString())
+                .body(page.getItems());
+    }
+
+    //события приходят по мере записи; после переподключения браузер присылает Last-Event-ID
+    @GetMapping(value = "/users/{id}/feed/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<SseEmitter> streamUserFeed(@PathVariable long id,
+                                                     @RequestHeader(value = "Last-Event-ID", required = false)
+                                                     @PositiveOrZero Long lastEventId) {
+        log.debug("GET /users/{id}/feed/stream request");
+        log.debug("id: {}, lastEventId: {}", id, lastEventId);
+
+        return ResponseEntity.ok(feedStreamService.subscribe(id, lastEventId));
+    }
+
+    @GetMapping("/users/{id}/timeline")
+    public ResponseEntity<List<Feed>> getTimeline(@PathVariable long id,
+                                                  @RequestParam(required = false) @Positive Long before,
+                                                  @RequestParam(required = false) @Positive Integer limit) {
+        log.debug("GET /users/{id}/timeline?before={before}&limit={limit} request");
+        log.debug("id: {}, before: {}, limit: {}", id, before, limit);
+        Page<Feed> page = feedService.getTimeline(id, before, limit);
+        if (page.getNextCursor() == null) {
+            return ResponseEntity.ok(page.getItems());
+        }
+
+        return ResponseEntity.ok()
+                .header(Page.NEXT_CURSOR_HEADER, page.getNextCursor().toString())
+                .body(page.getItems());
     }
 }
@@ -1,19 +1,34 @@
 package ru.yandex.practicum.filmorate.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.AsyncWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.yandex.practicum.filmorate.model.*;
 import ru.yandex.practicum.filmorate.service.FilmService;
+import ru.yandex.practicum.filmorate.service.RecommendationService;
 
 import javax.validation.Valid;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 @Controller
 @RequiredArgsConstructor
@@ -22,6 +37,10 @@ import java.util.List;
 public class FilmController {
 
     private final FilmService filmService;
+    private final RecommendationService recommendationService;
+    private final ObjectMapper objectMapper;
+    @Value("${filmorate.films.stream.timeout:30m}")
+    private Duration streamTimeout = Duration.ofMinutes(30);
 
     @GetMapping("/genres")
     public ResponseEntity<List<Genre>> getAllGenres() {
@@ -57,10 +76,51 @@ public class FilmController {
 
 
     @GetMapping("/films")
-    public ResponseEntity<List<Film>> getAllFilms() {
-        log.debug("GET /films request");
+    public ResponseEntity<List<Film>> getAllFilms(@RequestParam(required = false) @PositiveOrZero Long after,
+                                                  @RequestParam(required = false) @Positive Integer limit) {
+        log.debug("GET /films?after={after}&limit={limit} request");
+        log.debug("after: {}, limit: {}", after, limit);
+        Page<Film> page = filmService.getFilmsPage(after, limit);
+        if (page.getNextCursor() == null) {
+            return ResponseEntity.ok(page.getItems());
+        }
+
+        return ResponseEntity.ok()
+                .header(Page.NEXT_CURSOR_HEADER, page.getNextCursor().toString())
+                .body(page.getItems());
+    }
+
+    @GetMapping(value = "/films/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAllFilms(NativeWebRequest request) {
+        log.debug("GET /films/stream request");
+        //выгрузка всего каталога идёт дольше обычного асинхронного запроса - тайм-аут меняется только для неё
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(FilmController.class.getName(),
+                new CallableProcessingInterceptor() {
+                    @Override
+                    public <T> void beforeConcurrentHandling(NativeWebRequest asyncRequest, Callable<T> task) {
+                        if (asyncRequest instanceof AsyncWebRequest) {
+                            ((AsyncWebRequest) asyncRequest).setTimeout(streamTimeout.toMillis());
+                        }
+                    }
+                });
+        StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.setRootValueSeparator(null);
+                filmService.forEachFilm(film -> writeFilmLine(generator, film));
+            }
+        };
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
 
-        return ResponseEntity.ok(filmService.getAllFilms());
+    private void writeFilmLine(JsonGenerator generator, Film film) {
+        try {
+            generator.writeObject(film);
+            generator.writeRaw('\n');
+        } catch (IOException e) {
+            //клиент закрыл соединение - прерываем чтение курсора
+            throw new UncheckedIOException(e);
+        }
     }
 
     @PostMapping("/films")
@@ -112,6 +172,15 @@ public class FilmController {
         return ResponseEntity.ok(filmService.getFilm(id));
     }
 
+    @GetMapping("/films/{id}/similar")
+    public ResponseEntity<List<Film>> getSimilarFilms(@PathVariable long id,
+                                                      @RequestParam(defaultValue = "10") @Positive Integer count) {
+        log.debug("GET /films/{id}/similar?count={count} request");
+        log.debug("id: {}, count: {}", id, count);
+
+        return ResponseEntity.ok(recommendationService.getSimilarFilms(id, count));
+    }
+
     @DeleteMapping("/films/{filmId}")
     public ResponseEntity<String> deleteFilm(@PathVariable Long filmId) {
         log.debug("DELETE /films/{id} request");
@@ -0,0 +1,44 @@
+package ru.yandex.practicum.filmorate.controller;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import ru.yandex.practicum.filmorate.model.CacheStats;
+import ru.yandex.practicum.filmorate.model.FeedWriterStats;
+import ru.yandex.practicum.filmorate.model.RecommendationStats;
+import ru.yandex.practicum.filmorate.storage.memory.FeedWriteQueue;
+import ru.yandex.practicum.filmorate.storage.memory.FilmCache;
+import ru.yandex.practicum.filmorate.storage.memory.RecommendationCache;
+
+@Controller
+@RequiredArgsConstructor
+@Slf4j
+public class MetricsController {
+
+    private final FilmCache filmCache;
+    private final RecommendationCache recommendationCache;
+    private final FeedWriteQueue feedWriteQueue;
+
+    @GetMapping("/metrics/film-cache")
+    public ResponseEntity<CacheStats> getFilmCacheStats() {
+        log.debug("GET /metrics/film-cache request");
+
+        return ResponseEntity.ok(filmCache.getStats());
+    }
+
+    @GetMapping("/metrics/recommendations")
+    public ResponseEntity<RecommendationStats> getRecommendationStats() {
+        log.debug("GET /metrics/recommendations request");
+
+        return ResponseEntity.ok(recommendationCache.getStats());
+    }
+
+    @GetMapping("/metrics/feed-writer")
+    public ResponseEntity<FeedWriterStats> getFeedWriterStats() {
+        log.debug("GET /metrics/feed-writer request");
+
+        return ResponseEntity.ok(feedWriteQueue.getStats());
+    }
+}
@@ -4,17 +4,22 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.Page;
 import ru.yandex.practicum.filmorate.model.User;
 import ru.yandex.practicum.filmorate.service.RecommendationService;
 import ru.yandex.practicum.filmorate.service.UserService;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
 import java.util.List;
 
 @Controller
 @RequiredArgsConstructor
+@Validated
 @Slf4j
 public class UserController {
 
@@ -22,10 +27,18 @@ public class UserController {
     private final RecommendationService recommendationService;
 
     @GetMapping("/users")
-    public ResponseEntity<List<User>> getAllUsers() {
-        log.debug("GET /users request");
-
-        return ResponseEntity.ok(userService.getAllUsers());
+    public ResponseEntity<List<User>> getAllUsers(@RequestParam(required = false) @PositiveOrZero Long after,
+                                                  @RequestParam(required = false) @Positive Integer limit) {
+        log.debug("GET /users?after={after}&limit={limit} request");
+        log.debug("after: {}, limit: {}", after, limit);
+        Page<User> page = userService.getUsersPage(after, limit);
+        if (page.getNextCursor() == null) {
+            return ResponseEntity.ok(page.getItems());
+        }
+
+        return ResponseEntity.ok()
+                .header(Page.NEXT_CURSOR_HEADER, page.getNextCursor().toString())
+                .body(page.getItems());
     }
 
     @PostMapping("/users")
@@ -82,6 +95,15 @@ public class UserController {
         return ResponseEntity.ok(userService.findCommonFriends(id, otherId));
     }
 
+    @GetMapping("/users/{id}/friends/suggestions")
+    public ResponseEntity<List<User>> getFriendSuggestions(@PathVariable long id,
+                                                           @RequestParam(defaultValue = "10") @Positive Integer count) {
+        log.debug("GET /users/{id}/friends/suggestions?count={count} request");
+        log.debug("id: {}, count: {}", id, count);
+
+        return ResponseEntity.ok(userService.getFriendSuggestions(id, count));
+    }
+
     @DeleteMapping("/users/{userId}")
     public ResponseEntity<String> deleteUser(@PathVariable Long userId) {
         log.debug("DELETE /users/{userId}");
@@ -0,0 +1,16 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+@Builder
+public class CacheStats {
+    private Long hits;
+    private Long misses;
+    private Long evictions;
+    private Integer size;
+    private Integer maxSize;
+}
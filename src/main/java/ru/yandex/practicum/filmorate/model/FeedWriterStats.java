@@ -0,0 +1,22 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+@Builder
+public class FeedWriterStats {
+    private Long enqueued;
+    private Long written;
+    private Long batches;
+    private Long dropped;
+    private Long failed;
+    private Long callerWrites;
+    private Integer pending;
+    private Integer capacity;
+    private Integer lastBatchSize;
+    private Long lagMillis;
+    private Long maxLagMillis;
+}
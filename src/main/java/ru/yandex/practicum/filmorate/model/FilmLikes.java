@@ -0,0 +1,13 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class FilmLikes {
+    private Long filmId;
+    private long likes;
+    //films.likes_version: растёт на каждое изменение лайков фильма, по нему отбрасываются запоздавшие значения
+    private long version;
+}
@@ -0,0 +1,15 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@AllArgsConstructor
+public class LikeBatchResult {
+    //изменения, которые действительно вставили или удалили строку
+    private List<LikeChange> applied;
+    //счётчики изменившихся фильмов после коммита
+    private List<FilmLikes> likes;
+}
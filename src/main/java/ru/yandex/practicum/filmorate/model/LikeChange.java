@@ -0,0 +1,13 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class LikeChange {
+    private Long filmId;
+    private Long userId;
+    //true - лайк поставлен, false - снят
+    private boolean liked;
+}
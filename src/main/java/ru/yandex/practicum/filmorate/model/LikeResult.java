@@ -0,0 +1,16 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class LikeResult {
+    private Film film;
+    //счётчик фильма после коммита; null - лайк уже был поставлен (снят), строка не менялась
+    private FilmLikes likes;
+
+    public boolean isChanged() {
+        return likes != null;
+    }
+}
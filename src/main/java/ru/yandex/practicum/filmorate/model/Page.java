@@ -0,0 +1,27 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+import java.util.function.Function;
+
+@Data
+@AllArgsConstructor
+public class Page<T> {
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    private List<T> items;
+    //id, который нужно передать в следующем запросе; null - страниц больше нет
+    private Long nextCursor;
+
+    //rows - результат выборки с limit + 1 строками: лишняя строка говорит о том, что есть следующая страница
+    public static <T> Page<T> of(List<T> rows, int limit, Function<T, Long> idGetter) {
+        if (rows.size() <= limit) {
+            return new Page<>(rows, null);
+        }
+        List<T> items = rows.subList(0, limit);
+
+        return new Page<>(items, idGetter.apply(items.get(limit - 1)));
+    }
+}
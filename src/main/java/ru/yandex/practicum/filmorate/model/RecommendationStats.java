@@ -0,0 +1,19 @@
+package ru.yandex.practicum.filmorate.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+@Builder
+public class RecommendationStats {
+    private Long hits;
+    private Long misses;
+    private Integer activeUsers;
+    private Long refreshes;
+    private Integer lastRefreshUsers;
+    private Long lastRefreshMillis;
+    private Long stalenessMillis;
+    private Long changesSinceRefresh;
+}
@@ -2,14 +2,24 @@ package ru.yandex.practicum.filmorate.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.NotFoundException;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Feed;
-import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.model.FeedEventType;
+import ru.yandex.practicum.filmorate.model.Page;
 import ru.yandex.practicum.filmorate.storage.FeedStorage;
 import ru.yandex.practicum.filmorate.storage.UserStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FriendGraph;
+import ru.yandex.practicum.filmorate.storage.memory.FriendTimeline;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
@@ -18,14 +28,94 @@ public class FeedService {
 
     private final UserStorage userStorage;
     private final FeedStorage feedStorage;
+    private final FriendGraph friendGraph;
+    private final FriendTimeline friendTimeline;
+    @Value("${filmorate.friend-graph.enabled:true}")
+    private boolean friendGraphEnabled = true;
+    @Value("${filmorate.timeline.enabled:true}")
+    private boolean timelineEnabled = true;
+    @Value("${filmorate.pagination.default-limit:100}")
+    private int defaultPageLimit = 100;
+    @Value("${filmorate.pagination.max-limit:1000}")
+    private int maxPageLimit = 1000;
+
+    @PostConstruct
+    public void init() {
+        if (timelineEnabled && friendGraphEnabled) {
+            feedStorage.addListener(friendTimeline::publish);
+        }
+    }
 
     public List<Feed> getUserFeed(Long userId) {
         log.debug("getUserFeed");
-        User user = userStorage.getUser(userId);
-        if (user == null) {
+        if (!userStorage.containsUser(userId)) {
             throw new NotFoundException("User not found! Can`t get feeds!");
         }
 
         return feedStorage.getUserFeed(userId);
     }
+
+    //без параметров - вся история по возрастанию id, как раньше; с любым из них - страницы от новых к старым,
+    //курсор следующей страницы - id последнего события
+    public Page<Feed> getUserFeed(Long userId, Long before, Integer limit, Long since, FeedEventType eventType) {
+        log.debug("getUserFeed, userId {}, before {}, limit {}, since {}, eventType {}",
+                userId, before, limit, since, eventType);
+        if (before == null && limit == null && since == null && eventType == null) {
+            return new Page<>(getUserFeed(userId), null);
+        }
+        if (limit != null && limit > maxPageLimit) {
+            throw new ValidationException("limit should be less or equal " + maxPageLimit);
+        }
+        if (!userStorage.containsUser(userId)) {
+            throw new NotFoundException("User not found! Can`t get feeds!");
+        }
+        int pageLimit = limit != null ? limit : defaultPageLimit;
+        List<Feed> feeds = feedStorage.getUserFeedPage(userId, before, since, eventType, pageLimit + 1);
+
+        return Page.of(feeds, pageLimit, Feed::getEventId);
+    }
+
+    //события подтверждённых друзей от новых к старым, курсор - как у ленты пользователя
+    public Page<Feed> getTimeline(Long userId, Long before, Integer limit) {
+        log.debug("getTimeline, userId {}, before {}, limit {}", userId, before, limit);
+        if (limit != null && limit > maxPageLimit) {
+            throw new ValidationException("limit should be less or equal " + maxPageLimit);
+        }
+        if (!userStorage.containsUser(userId)) {
+            throw new NotFoundException("User not found! Can`t get timeline!");
+        }
+        int pageLimit = limit != null ? limit : defaultPageLimit;
+        List<Feed> feeds = timelineEnabled && friendGraphEnabled ? getTimelineFromMemory(userId, before, pageLimit + 1)
+                : null;
+        if (feeds == null) {
+            feeds = feedStorage.getFriendsFeedPage(userId, before, pageLimit + 1);
+        }
+
+        return Page.of(feeds, pageLimit, Feed::getEventId);
+    }
+
+    //друзья с небольшим числом подписчиков - из буфера, остальные - из БД по индексу feeds_user_idx;
+    //null - буфер не покрывает страницу, она целиком читается из БД
+    private List<Feed> getTimelineFromMemory(Long userId, Long before, int rows) {
+        friendGraph.ensureLoaded(userStorage::forEachFriendship);
+        long[] friendIds = friendGraph.getFriends(userId);
+        List<Long> pushed = new ArrayList<>();
+        List<Long> pulled = new ArrayList<>();
+        for (long friendId : friendIds) {
+            (friendTimeline.isPushed(friendId) ? pushed : pulled).add(friendId);
+        }
+        List<Feed> feeds = friendTimeline.getPage(userId, before, rows,
+                actorId -> Arrays.binarySearch(friendIds, actorId) >= 0 && friendTimeline.isPushed(actorId),
+                count -> feedStorage.getUsersFeedPage(pushed, null, count));
+        if (feeds == null || pulled.isEmpty()) {
+            return feeds;
+        }
+        List<Feed> merged = new ArrayList<>(feeds);
+        merged.addAll(feedStorage.getUsersFeedPage(pulled, before, rows));
+
+        return merged.stream()
+                .sorted(Comparator.comparing(Feed::getEventId).reversed())
+                .limit(rows)
+                .collect(Collectors.toList());
+    }
 }
@@ -0,0 +1,232 @@
+package ru.yandex.practicum.filmorate.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import ru.yandex.practicum.filmorate.exception.NotFoundException;
+import ru.yandex.practicum.filmorate.model.Feed;
+import ru.yandex.practicum.filmorate.storage.FeedStorage;
+import ru.yandex.practicum.filmorate.storage.UserStorage;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+
+//Поток новых событий ленты (SSE). Соединение держит асинхронный запрос сервлета, а не поток,
+//поэтому ожидающие подписчики стоят только памяти. События приходят от хранилища после записи
+//и рассылаются небольшим пулом: у подписчика своя очередь, её разбирает не больше одного потока за раз
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class FeedStreamService {
+
+    private static final int REPLAY_BATCH = 500;
+    private final UserStorage userStorage;
+    private final FeedStorage feedStorage;
+    private final Map<Long, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+    @Value("${filmorate.feed.stream.timeout:30m}")
+    private Duration timeout = Duration.ofMinutes(30);
+    @Value("${filmorate.feed.stream.heartbeat:15s}")
+    private Duration heartbeat = Duration.ofSeconds(15);
+    @Value("${filmorate.feed.stream.dispatch-threads:2}")
+    private int dispatchThreads = 2;
+    @Value("${filmorate.feed.stream.max-pending:1000}")
+    private int maxPending = 1000;
+    private ExecutorService dispatcher;
+    private ScheduledExecutorService heartbeats;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        dispatcher = Executors.newFixedThreadPool(dispatchThreads, runnable -> {
+            Thread thread = new Thread(runnable, "feed-stream-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "feed-stream-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleWithFixedDelay(this::requestHeartbeats, heartbeat.toMillis(), heartbeat.toMillis(),
+                TimeUnit.MILLISECONDS);
+        feedStorage.addListener(this::publish);
+    }
+
+    //клиенты переподключатся с Last-Event-ID и дочитают пропущенное
+    @PreDestroy
+    public void shutdown() {
+        heartbeats.shutdownNow();
+        subscribers.values().forEach(set -> set.forEach(subscriber -> subscriber.emitter.complete()));
+        dispatcher.shutdown();
+    }
+
+    //lastEventId - id последнего полученного события: сначала отправляются более поздние события из БД
+    public SseEmitter subscribe(Long userId, Long lastEventId) {
+        log.debug("subscribe, userId {}, lastEventId {}", userId, lastEventId);
+        if (!userStorage.containsUser(userId)) {
+            throw new NotFoundException("User not found! Can`t stream feeds!");
+        }
+        SseEmitter emitter = new SseEmitter(timeout.toMillis());
+        Subscriber subscriber = new Subscriber(userId, emitter, lastEventId);
+        emitter.onCompletion(() -> unregister(subscriber));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(e -> unregister(subscriber));
+        subscribers.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        log.debug("Feed stream subscribed, userId {}, subscribers {}", userId, subscriberCount.incrementAndGet());
+        if (lastEventId != null) {
+            schedule(subscriber);
+        }
+
+        return emitter;
+    }
+
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    private void publish(List<Feed> feeds) {
+        for (Feed feed : feeds) {
+            Set<Subscriber> userSubscribers = subscribers.get(feed.getUserId());
+            if (userSubscribers == null) {
+                continue;
+            }
+            for (Subscriber subscriber : userSubscribers) {
+                //клиент не успевает читать - соединение закрывается, он дочитает после переподключения
+                if (subscriber.pendingCount.incrementAndGet() > maxPending) {
+                    log.warn("Feed stream subscriber is too slow, closing, userId {}", subscriber.userId);
+                    unregister(subscriber);
+                    subscriber.emitter.complete();
+                    continue;
+                }
+                subscriber.pending.add(feed);
+                schedule(subscriber);
+            }
+        }
+    }
+
+    private void requestHeartbeats() {
+        subscribers.values().forEach(set -> set.forEach(subscriber -> {
+            subscriber.heartbeat = true;
+            schedule(subscriber);
+        }));
+    }
+
+    private void schedule(Subscriber subscriber) {
+        if (subscriber.scheduled.compareAndSet(false, true)) {
+            dispatcher.execute(() -> drain(subscriber));
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        try {
+            if (subscriber.replayFrom != null) {
+                replay(subscriber);
+            }
+            Feed feed;
+            while ((feed = subscriber.pending.poll()) != null) {
+                subscriber.pendingCount.decrementAndGet();
+                //события, записанные во время догоняющего чтения, уже отправлены из БД. Id выдаётся до коммита,
+                //и событие с меньшим id может закоммититься уже после чтения, поэтому сверяется сам id
+                if (feed.getEventId() > subscriber.replayedTo
+                        || Arrays.binarySearch(subscriber.replayedIds, feed.getEventId()) < 0) {
+                    send(subscriber, feed);
+                }
+            }
+            if (subscriber.heartbeat) {
+                subscriber.heartbeat = false;
+                subscriber.emitter.send(SseEmitter.event().comment("heartbeat"));
+            }
+        } catch (IOException | IllegalStateException e) {
+            //клиент отключился или ответ уже завершён
+            log.debug("Feed stream closed, userId {}: {}", subscriber.userId, e.getMessage());
+            unregister(subscriber);
+            subscriber.emitter.completeWithError(e);
+        } catch (RuntimeException e) {
+            log.error("Feed stream dispatch failed, userId {}", subscriber.userId, e);
+            unregister(subscriber);
+            subscriber.emitter.completeWithError(e);
+        } finally {
+            subscriber.scheduled.set(false);
+            if (subscriber.registered.get() && !subscriber.pending.isEmpty()) {
+                schedule(subscriber);
+            }
+        }
+    }
+
+    private void replay(Subscriber subscriber) throws IOException {
+        long after = subscriber.replayFrom;
+        LongStream.Builder replayedIds = LongStream.builder();
+        List<Feed> feeds;
+        do {
+            feeds = feedStorage.getUserFeedAfter(subscriber.userId, after, REPLAY_BATCH);
+            for (Feed feed : feeds) {
+                send(subscriber, feed);
+                after = feed.getEventId();
+                replayedIds.add(after);
+            }
+        } while (feeds.size() == REPLAY_BATCH);
+        //id идут по возрастанию
+        subscriber.replayedIds = replayedIds.build().toArray();
+        subscriber.replayedTo = after;
+        subscriber.replayFrom = null;
+    }
+
+    private void send(Subscriber subscriber, Feed feed) throws IOException {
+        subscriber.emitter.send(SseEmitter.event()
+                .id(String.valueOf(feed.getEventId()))
+                .name("feed")
+                .data(feed, MediaType.APPLICATION_JSON));
+    }
+
+    private void unregister(Subscriber subscriber) {
+        if (!subscriber.registered.compareAndSet(true, false)) {
+            return;
+        }
+        subscribers.computeIfPresent(subscriber.userId, (id, set) -> {
+            set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+        log.debug("Feed stream unsubscribed, userId {}, subscribers {}", subscriber.userId,
+                subscriberCount.decrementAndGet());
+    }
+
+    private static final class Subscriber {
+        private final long userId;
+        private final SseEmitter emitter;
+        private final Queue<Feed> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean registered = new AtomicBoolean(true);
+        //replayFrom, replayedTo и replayedIds меняет только поток, разбирающий очередь подписчика
+        private volatile Long replayFrom;
+        private volatile long replayedTo;
+        private volatile long[] replayedIds = new long[0];
+        private volatile boolean heartbeat;
+
+        private Subscriber(long userId, SseEmitter emitter, Long replayFrom) {
+            this.userId = userId;
+            this.emitter = emitter;
+            this.replayFrom = replayFrom;
+        }
+    }
+}
@@ -2,13 +2,29 @@ package ru.yandex.practicum.filmorate.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.NotFoundException;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.*;
+import ru.yandex.practicum.filmorate.storage.DictionaryStorage;
 import ru.yandex.practicum.filmorate.storage.FeedStorage;
 import ru.yandex.practicum.filmorate.storage.FilmStorage;
-
+import ru.yandex.practicum.filmorate.storage.memory.FilmLeaderboard;
+import ru.yandex.practicum.filmorate.storage.memory.FilmSearchIndex;
+import ru.yandex.practicum.filmorate.storage.memory.LikeMatrix;
+import ru.yandex.practicum.filmorate.storage.memory.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.memory.RecommendationCache;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 @Service
 @Slf4j
@@ -17,25 +33,83 @@ public class FilmService {
 
     private final FilmStorage filmStorage;
     private final FeedStorage feedStorage;
+    private final DictionaryStorage dictionaryStorage;
+    private final FilmLeaderboard filmLeaderboard;
+    private final LikeWriteBuffer likeWriteBuffer;
+    private final FilmSearchIndex filmSearchIndex;
+    private final LikeMatrix likeMatrix;
+    private final RecommendationCache recommendationCache;
+    @Value("${filmorate.leaderboard.enabled:true}")
+    private boolean leaderboardEnabled = true;
+    @Value("${filmorate.search-index.enabled:true}")
+    private boolean searchIndexEnabled = true;
+    @Value("${filmorate.pagination.default-limit:100}")
+    private int defaultPageLimit = 100;
+    @Value("${filmorate.pagination.max-limit:1000}")
+    private int maxPageLimit = 1000;
+    @Value("${filmorate.pagination.unpaged-cap:10000}")
+    private int unpagedCap = 10000;
+
+    @PostConstruct
+    public void init() {
+        if (leaderboardEnabled) {
+            filmLeaderboard.ensureBuilt(this::loadLeaderboard);
+        }
+        if (searchIndexEnabled) {
+            filmSearchIndex.ensureBuilt(dictionaryStorage.getAllDirectors(), filmStorage::forEachFilm);
+        }
+        likeWriteBuffer.start(this::saveLikes);
+    }
+
+    //сервис останавливается раньше хранилищ, поэтому отложенные лайки дописываются здесь
+    @PreDestroy
+    public void shutdown() {
+        likeWriteBuffer.stop();
+    }
 
     public List<Genre> getAllGenres() {
-        return filmStorage.getAllGenres();
+        return dictionaryStorage.getAllGenres();
     }
 
     public List<Mpa> getAllMpa() {
-        return filmStorage.getAllMpa();
+        return dictionaryStorage.getAllMpa();
     }
 
-    public List<Film> getAllFilms() {
-        return filmStorage.getAllFilms();
+    public Page<Film> getFilmsPage(Long after, Integer limit) {
+        log.debug("getFilmsPage, after {}, limit {}", after, limit);
+        if (limit != null && limit > maxPageLimit) {
+            throw new ValidationException("limit should be less or equal " + maxPageLimit);
+        }
+        //без параметров - старое поведение "все фильмы", но не больше unpagedCap
+        int pageLimit = limit != null ? limit : after != null ? defaultPageLimit : unpagedCap;
+        List<Film> films = filmStorage.getFilmsPage(after == null ? 0 : after, pageLimit + 1);
+        Page<Film> page = Page.of(films, pageLimit, Film::getId);
+        if (after == null && limit == null && page.getNextCursor() != null) {
+            log.warn("GET /films without paging is truncated to {} films", unpagedCap);
+        }
+
+        return page;
+    }
+
+    public void forEachFilm(Consumer<Film> action) {
+        log.debug("forEachFilm");
+        filmStorage.forEachFilm(action);
     }
 
     public Film addFilm(Film film) {
-        return filmStorage.addFilm(film);
+        Film filmResult = filmStorage.addFilm(film);
+        filmLeaderboard.putFilm(filmResult);
+        filmSearchIndex.putFilm(filmResult);
+
+        return filmResult;
     }
 
     public Film updateFilm(Film film) {
-        return filmStorage.updateFilm(film);
+        Film filmResult = filmStorage.updateFilm(film);
+        filmLeaderboard.putFilm(filmResult);
+        filmSearchIndex.putFilm(filmResult);
+
+        return filmResult;
     }
 
     public List<Film> getCommonFilms(long userId, Long friendId) {
@@ -43,6 +117,19 @@ public class FilmService {
     }
 
     public List<Film> getFilmByQuery(String query, String by) {
+        log.debug("getFilmByQuery, query {}, by {}", query, by);
+        boolean byTitle = by.equals("title") || by.equals("title,director") || by.equals("director,title");
+        boolean byDirector = by.equals("director") || by.equals("title,director") || by.equals("director,title");
+        if (searchIndexEnabled && leaderboardEnabled && (byTitle || byDirector)) {
+            filmSearchIndex.ensureBuilt(dictionaryStorage.getAllDirectors(), filmStorage::forEachFilm);
+            filmLeaderboard.ensureBuilt(this::loadLeaderboard);
+            Set<Long> filmIds = filmSearchIndex.search(query, byTitle, byDirector);
+            List<Long> rankedIds = filmIds == null ? null : filmLeaderboard.rank(filmIds);
+            if (rankedIds != null) {
+                return getFilmsInOrder(rankedIds);
+            }
+        }
+
         return filmStorage.getFilmByQuery(query, by);
     }
 
@@ -50,22 +137,38 @@ public class FilmService {
         log.debug("genreId {}", genreId);
         log.debug("Get Genre");
 
-        return filmStorage.getAllGenres().stream()
-                .filter(f -> f.getId().equals(genreId)).findFirst().get();
+        Genre genre = dictionaryStorage.getGenre(genreId);
+        if (genre == null) throw new NotFoundException("Genre not found!");
+
+        return genre;
     }
 
     public Mpa getMpa(Integer mpaId) {
         log.debug("mpaId {}", mpaId);
         log.debug("Get Mpa");
 
-        return filmStorage.getAllMpa().stream()
-                .filter(f -> f.getId().equals(mpaId)).findFirst().get();
+        Mpa mpa = dictionaryStorage.getMpa(mpaId);
+        if (mpa == null) throw new NotFoundException("Mpa not found!");
+
+        return mpa;
     }
 
     public Film addLikeToFilm(Long filmId, Long userId) {
         log.debug("filmId {}, userId {}", filmId, userId);
         log.debug("addLikeToFilm");
-        Film filmResult = filmStorage.addLikeToFilm(filmId, userId);
+        Film filmResult;
+        if (likeWriteBuffer.isEnabled()) {
+            filmStorage.checkLike(filmId, userId);
+            likeWriteBuffer.add(filmId, userId, true);
+            filmResult = filmStorage.getFilm(filmId);
+        } else {
+            LikeResult result = filmStorage.addLikeToFilm(filmId, userId);
+            if (result.isChanged()) {
+                filmLeaderboard.updateLikes(result.getLikes());
+                likeMatrix.update(filmId, userId, true);
+            }
+            filmResult = result.getFilm();
+        }
         //Делаем запись в истории для ленты событий
         if (filmResult != null) {
             feedStorage.addFeedEntity(userId, FeedEventType.LIKE, FeedOperations.ADD, filmId);
@@ -77,7 +180,19 @@ public class FilmService {
     public Film deleteLikeFromFilm(Long filmId, Long userId) {
         log.debug("filmId {}, userId {}", filmId, userId);
         log.debug("deleteLikeFromFilm");
-        Film filmResult = filmStorage.deleteLikeFromFilm(filmId, userId);
+        Film filmResult;
+        if (likeWriteBuffer.isEnabled()) {
+            filmStorage.checkLike(filmId, userId);
+            likeWriteBuffer.add(filmId, userId, false);
+            filmResult = filmStorage.getFilm(filmId);
+        } else {
+            LikeResult result = filmStorage.deleteLikeFromFilm(filmId, userId);
+            if (result.isChanged()) {
+                filmLeaderboard.updateLikes(result.getLikes());
+                likeMatrix.update(filmId, userId, false);
+            }
+            filmResult = result.getFilm();
+        }
         //Делаем запись в истории для ленты событий
         if (filmResult != null) {
             feedStorage.addFeedEntity(userId, FeedEventType.LIKE, FeedOperations.REMOVE, filmId);
@@ -86,12 +201,47 @@ public class FilmService {
         return filmResult;
     }
 
+    private void saveLikes(List<LikeChange> changes) {
+        LikeBatchResult result = filmStorage.saveLikes(changes);
+        result.getLikes().forEach(filmLeaderboard::updateLikes);
+        result.getApplied().forEach(change -> likeMatrix.update(change.getFilmId(), change.getUserId(),
+                change.isLiked()));
+    }
+
     public List<Film> getTopNfilms(Integer count, Integer genreId, Integer year) {
         log.debug("top films count = {}", count);
+        if (leaderboardEnabled) {
+            filmLeaderboard.ensureBuilt(this::loadLeaderboard);
+            List<Long> filmIds = filmLeaderboard.getTop(count, genreId, year);
+            if (filmIds != null) {
+                return getFilmsInOrder(filmIds);
+            }
+        }
 
         return filmStorage.getTopNfilms(count, genreId, year);
     }
 
+    private void loadLeaderboard(BiConsumer<Film, FilmLikes> sink) {
+        Map<Long, FilmLikes> likes = filmStorage.getLikesCounts();
+        filmStorage.forEachFilm(film -> sink.accept(film, likes.get(film.getId())));
+    }
+
+    //findFilmsByIds отдаёт фильмы по возрастанию id - восстанавливаем порядок рейтинга;
+    //фильм, удалённый после выбора из рейтинга, просто пропускается
+    private List<Film> getFilmsInOrder(List<Long> filmIds) {
+        Map<Long, Film> films = new HashMap<>();
+        filmStorage.findFilmsByIds(filmIds).forEach(film -> films.put(film.getId(), film));
+        List<Film> result = new ArrayList<>(filmIds.size());
+        for (Long filmId : filmIds) {
+            Film film = films.get(filmId);
+            if (film != null) {
+                result.add(film);
+            }
+        }
+
+        return result;
+    }
+
     public Film getFilm(Long filmId) {
         log.debug("filmId {}", filmId);
         Film film = filmStorage.getFilm(filmId);
@@ -102,6 +252,10 @@ public class FilmService {
 
     public String deleteFilm(Long filmId) {
         int result = filmStorage.deleteFilm(filmId);
+        filmLeaderboard.removeFilm(filmId);
+        filmSearchIndex.removeFilm(filmId);
+        likeMatrix.removeFilm(filmId);
+        recommendationCache.removeFilm(filmId);
         switch (result) {
             case 0: {
                 log.debug("There is no film with id={}", filmId);
@@ -133,19 +287,28 @@ public class FilmService {
     public Director createDirector(Director director) {
         log.debug("createDirector");
 
-        return filmStorage.createDirector(director);
+        Director result = filmStorage.createDirector(director);
+        filmSearchIndex.putDirector(result);
+
+        return result;
     }
 
     public Director updateDirector(Director director) {
         log.debug("updateDirector");
 
-        return filmStorage.updateDirector(director);
+        Director result = filmStorage.updateDirector(director);
+        filmSearchIndex.putDirector(result);
+
+        return result;
     }
 
     public Integer deleteDirector(Integer id) {
         log.debug("deleteDirector");
 
-        return filmStorage.deleteDirector(id);
+        Integer result = filmStorage.deleteDirector(id);
+        filmSearchIndex.removeDirector(id);
+
+        return result;
     }
 
     public List<Film> getDirectorsFilmSortBy(Integer directorId, String sort) {
@@ -1,24 +1,143 @@
 package ru.yandex.practicum.filmorate.service;
 
-import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import ru.yandex.practicum.filmorate.exception.NotFoundException;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.storage.FilmStorage;
 import ru.yandex.practicum.filmorate.storage.RecommendationStorage;
+import ru.yandex.practicum.filmorate.storage.UserStorage;
+import ru.yandex.practicum.filmorate.storage.memory.RecommendationCache;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 @Service
 @Slf4j
-@AllArgsConstructor
+@RequiredArgsConstructor
 public class RecommendationService {
 
-    private FilmStorage filmStorage;
-    private RecommendationStorage recommendationStorage;
+    private final FilmStorage filmStorage;
+    private final UserStorage userStorage;
+    private final RecommendationStorage recommendationStorage;
+    private final RecommendationCache recommendationCache;
+    @Value("${filmorate.recommendations.precompute.enabled:true}")
+    private boolean precomputeEnabled = true;
+    @Value("${filmorate.recommendations.precompute.refresh-interval:1m}")
+    private Duration refreshInterval = Duration.ofMinutes(1);
+    @Value("${filmorate.recommendations.precompute.like-threshold:1000}")
+    private long likeThreshold = 1000;
+    @Value("${filmorate.recommendations.precompute.parallelism:0}")
+    private int parallelism;
+    private ScheduledExecutorService scheduler;
+    private ForkJoinPool pool;
+    private volatile long lastRefreshAt;
+
+    //раз в секунду проверяем, пора ли пересчитывать: прошёл интервал или накопилось likeThreshold изменений
+    @PostConstruct
+    public void init() {
+        if (!precomputeEnabled) {
+            return;
+        }
+        pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "recommendation-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refreshIfNeeded, 1, 1, TimeUnit.SECONDS);
+        log.info("Recommendation precompute enabled, refresh interval {}", refreshInterval);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            pool.shutdownNow();
+        }
+    }
 
     public List<Film> getRecommendedFilms(Long userId) {
+        log.debug("getRecommendedFilms, userId {}", userId);
+        //неизвестному пользователю рекомендовать нечего; в кэш и фоновый пересчёт он не попадает
+        if (!userStorage.containsUser(userId)) {
+            return List.of();
+        }
+        if (!precomputeEnabled) {
+            return filmStorage.getFilmsByIds(recommendationStorage.recommendFilms(userId));
+        }
+        List<Long> filmIds = recommendationCache.get(userId);
+        if (filmIds == null) {
+            //холодный пользователь - считаем сразу, дальше его рекомендации обновляет фоновый пересчёт
+            filmIds = computeRecommendations(userId);
+        }
+
+        return filmStorage.getFilmsByIds(filmIds);
+    }
+
+    //фильмы, которые чаще всего лайкают вместе с данным, по убыванию сходства
+    public List<Film> getSimilarFilms(Long filmId, Integer count) {
+        log.debug("getSimilarFilms, filmId {}, count {}", filmId, count);
+        if (filmStorage.getFilm(filmId) == null) {
+            throw new NotFoundException("Film not found!");
+        }
+        List<Long> filmIds = recommendationStorage.findSimilarFilms(filmId, count);
+        Map<Long, Film> films = new HashMap<>();
+        filmStorage.getFilmsByIds(filmIds).forEach(film -> films.put(film.getId(), film));
+        List<Film> result = new ArrayList<>(filmIds.size());
+        for (Long id : filmIds) {
+            Film film = films.get(id);
+            if (film != null) {
+                result.add(film);
+            }
+        }
+
+        return result;
+    }
+
+    //пересчёт рекомендаций всех активных пользователей в пуле fork-join
+    public void refresh() {
+        long startedAt = System.currentTimeMillis();
+        lastRefreshAt = startedAt;
+        recommendationCache.startRefresh();
+        List<Long> userIds = recommendationCache.getActiveUsers();
+        ForkJoinPool refreshPool = pool != null ? pool : ForkJoinPool.commonPool();
+        try {
+            refreshPool.submit(() -> userIds.parallelStream().forEach(this::computeRecommendations)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            log.error("Recommendation refresh failed", e.getCause());
+            return;
+        }
+        recommendationCache.finishRefresh(startedAt, userIds.size());
+    }
+
+    private void refreshIfNeeded() {
+        try {
+            if (System.currentTimeMillis() - lastRefreshAt >= refreshInterval.toMillis()
+                    || recommendationCache.getChangesSinceRefresh() >= likeThreshold) {
+                refresh();
+            }
+        } catch (RuntimeException e) {
+            log.error("Recommendation refresh failed", e);
+        }
+    }
+
+    private List<Long> computeRecommendations(Long userId) {
+        long version = recommendationCache.getVersion();
+        List<Long> filmIds = recommendationStorage.recommendFilms(userId);
+        recommendationCache.put(userId, filmIds, version);
 
-        return filmStorage.getFilmsByIds(recommendationStorage.recommendFilms(userId));
+        return filmIds;
     }
 }
@@ -2,15 +2,26 @@ package ru.yandex.practicum.filmorate.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import ru.yandex.practicum.filmorate.exception.NotFoundException;
+import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.FeedEventType;
 import ru.yandex.practicum.filmorate.model.FeedOperations;
+import ru.yandex.practicum.filmorate.model.FilmLikes;
+import ru.yandex.practicum.filmorate.model.Page;
 import ru.yandex.practicum.filmorate.model.User;
 import ru.yandex.practicum.filmorate.storage.FeedStorage;
 import ru.yandex.practicum.filmorate.storage.UserStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FilmLeaderboard;
+import ru.yandex.practicum.filmorate.storage.memory.FriendGraph;
+import ru.yandex.practicum.filmorate.storage.memory.LikeMatrix;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.LongToIntFunction;
 
 @Service
 @Slf4j
@@ -19,9 +30,36 @@ public class UserService {
 
     private final UserStorage userStorage;
     private final FeedStorage feedStorage;
+    private final FilmLeaderboard filmLeaderboard;
+    private final LikeMatrix likeMatrix;
+    private final FriendGraph friendGraph;
+    @Value("${filmorate.friend-graph.enabled:true}")
+    private boolean friendGraphEnabled = true;
+    @Value("${filmorate.friend-suggestions.max-visited:50000}")
+    private int suggestionsMaxVisited = 50000;
+    @Value("${filmorate.friend-suggestions.like-boost:true}")
+    private boolean suggestionsLikeBoost = true;
+    @Value("${filmorate.pagination.default-limit:100}")
+    private int defaultPageLimit = 100;
+    @Value("${filmorate.pagination.max-limit:1000}")
+    private int maxPageLimit = 1000;
+    @Value("${filmorate.pagination.unpaged-cap:10000}")
+    private int unpagedCap = 10000;
+
+    public Page<User> getUsersPage(Long after, Integer limit) {
+        log.debug("getUsersPage, after {}, limit {}", after, limit);
+        if (limit != null && limit > maxPageLimit) {
+            throw new ValidationException("limit should be less or equal " + maxPageLimit);
+        }
+        //без параметров - старое поведение "все пользователи", но не больше unpagedCap
+        int pageLimit = limit != null ? limit : after != null ? defaultPageLimit : unpagedCap;
+        List<User> users = userStorage.getUsersPage(after == null ? 0 : after, pageLimit + 1);
+        Page<User> page = Page.of(users, pageLimit, User::getId);
+        if (after == null && limit == null && page.getNextCursor() != null) {
+            log.warn("GET /users without paging is truncated to {} users", unpagedCap);
+        }
 
-    public List<User> getAllUsers() {
-        return userStorage.getAllUsers();
+        return page;
     }
 
     public User addUser(User user) {
@@ -35,7 +73,8 @@ public class UserService {
     public User addFriend(Long userId, Long friendId) {
         log.debug("userId {}, friendId {}", userId, friendId);
         log.debug("addFriend");
-        User userResult = userStorage.addFriend(userId, friendId);
+        User userResult = userStorage.addFriend(userId, friendId,
+                (user, friend) -> friendGraph.update(user, friend, true));
         if (userResult != null) {
             feedStorage.addFeedEntity(userId, FeedEventType.FRIEND, FeedOperations.ADD, friendId);
         }
@@ -46,7 +85,8 @@ public class UserService {
     public User deleteFriend(Long userId, Long friendId) {
         log.debug("filmId {}, userId {}", userId, friendId);
         log.debug("deleteFriend");
-        User userResult = userStorage.deleteFriend(userId, friendId);
+        User userResult = userStorage.deleteFriend(userId, friendId,
+                (user, friend) -> friendGraph.update(user, friend, false));
         if (userResult != null) {
             feedStorage.addFeedEntity(userId, FeedEventType.FRIEND, FeedOperations.REMOVE, friendId);
         }
@@ -64,19 +104,71 @@ public class UserService {
 
     public List<User> getUserFriends(Long userId) {
         log.debug("UserId {}", userId);
-        List<User> userFriends = userStorage.getUserFriends(userId);
+        if (!friendGraphEnabled) {
+            return userStorage.getUserFriends(userId);
+        }
+        if (!userStorage.containsUser(userId)) {
+            throw new NotFoundException("пользователь не существует");
+        }
+        friendGraph.ensureLoaded(userStorage::forEachFriendship);
 
-        return userFriends;
+        return userStorage.getUsersByIds(toList(friendGraph.getFriends(userId)));
     }
 
     public List<User> findCommonFriends(Long userId, Long otherId) {
         log.debug("findCommonFriends");
+        if (!friendGraphEnabled) {
+            return userStorage.findCommonFriends(userId, otherId);
+        }
+        friendGraph.ensureLoaded(userStorage::forEachFriendship);
 
-        return userStorage.findCommonFriends(userId, otherId);
+        return userStorage.getUsersByIds(toList(friendGraph.getCommonFriends(userId, otherId)));
+    }
+
+    public List<User> getFriendSuggestions(Long userId, Integer count) {
+        log.debug("getFriendSuggestions, userId {}, count {}", userId, count);
+        if (!userStorage.containsUser(userId)) {
+            throw new NotFoundException("User not found!");
+        }
+        friendGraph.ensureLoaded(userStorage::forEachFriendship);
+        //при равенстве общих друзей выше тот, с кем больше общих лайков, - если матрица лайков уже загружена
+        LongToIntFunction boost = null;
+        if (suggestionsLikeBoost && likeMatrix.isLoaded()) {
+            long[] userFilms = likeMatrix.getUserFilms(userId);
+            boost = candidate -> LikeMatrix.intersectionSize(userFilms, likeMatrix.getUserFilms(candidate));
+        }
+        List<Long> userIds = toList(friendGraph.getSuggestions(userId, count, suggestionsMaxVisited, boost));
+        Map<Long, User> users = new HashMap<>();
+        userStorage.getUsersByIds(userIds).forEach(user -> users.put(user.getId(), user));
+        List<User> result = new ArrayList<>(userIds.size());
+        for (Long id : userIds) {
+            User user = users.get(id);
+            if (user != null) {
+                result.add(user);
+            }
+        }
+
+        return result;
+    }
+
+    private static List<Long> toList(long[] ids) {
+        List<Long> result = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            result.add(id);
+        }
+
+        return result;
     }
 
     public String deleteUser(Long userId) {
-        int result = userStorage.deleteUser(userId);
+        List<FilmLikes> likes = new ArrayList<>();
+        int result = userStorage.deleteUser(userId, likes::add);
+        if (result > 0) {
+            //лайки пользователя удалены каскадом - в рейтинге меняются только его фильмы
+            likes.forEach(filmLeaderboard::updateLikes);
+            likeMatrix.removeUser(userId);
+            friendGraph.removeUser(userId);
+        }
         switch (result) {
             case 0: {
                 log.debug("There is no user with id={}", userId);
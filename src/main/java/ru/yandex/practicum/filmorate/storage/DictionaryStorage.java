@@ -0,0 +1,28 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import ru.yandex.practicum.filmorate.model.Director;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.Mpa;
+
+import java.util.List;
+
+public interface DictionaryStorage {
+
+    List<Genre> getAllGenres();
+
+    Genre getGenre(Integer genreId);
+
+    List<Mpa> getAllMpa();
+
+    Mpa getMpa(Integer mpaId);
+
+    List<Director> getAllDirectors();
+
+    Director getDirector(Integer directorId);
+
+    void putDirector(Director director);
+
+    void removeDirector(Integer directorId);
+
+    void reload();
+}
@@ -5,10 +5,25 @@ import ru.yandex.practicum.filmorate.model.FeedEventType;
 import ru.yandex.practicum.filmorate.model.FeedOperations;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface FeedStorage {
 
     List<Feed> getUserFeed(Long userId);
 
+    List<Feed> getUserFeedPage(Long userId, Long before, Long since, FeedEventType eventType, int limit);
+
+    //события пользователя с id > after по возрастанию id - догоняющее чтение потока ленты
+    List<Feed> getUserFeedAfter(Long userId, long after, int limit);
+
+    //события пользователей userIds от новых к старым
+    List<Feed> getUsersFeedPage(List<Long> userIds, Long before, int limit);
+
+    //события подтверждённых друзей пользователя от новых к старым
+    List<Feed> getFriendsFeedPage(Long userId, Long before, int limit);
+
+    //вызывается после записи каждой пачки событий, у событий уже есть id
+    void addListener(Consumer<List<Feed>> listener);
+
     Integer addFeedEntity(long userId, FeedEventType feedEventType, FeedOperations feedOperation, long entityId);
 }
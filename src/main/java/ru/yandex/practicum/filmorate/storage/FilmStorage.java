@@ -2,15 +2,25 @@ package ru.yandex.practicum.filmorate.storage;
 
 import ru.yandex.practicum.filmorate.model.Director;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmLikes;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchResult;
+import ru.yandex.practicum.filmorate.model.LikeChange;
+import ru.yandex.practicum.filmorate.model.LikeResult;
 import ru.yandex.practicum.filmorate.model.Mpa;
 
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public interface FilmStorage {
 
     List<Film> getAllFilms();
 
+    List<Film> getFilmsPage(long afterId, int limit);
+
+    void forEachFilm(Consumer<Film> action);
+
     Film addFilm(Film film);
 
     Film updateFilm(Film film);
@@ -21,11 +31,19 @@ public interface FilmStorage {
 
     List<Mpa> getAllMpa();
 
-    Film addLikeToFilm(Long filmId, Long userId);
+    LikeResult addLikeToFilm(Long filmId, Long userId);
 
     List<Film> getTopNfilms(Integer count, Integer genreId, Integer year);
 
-    Film deleteLikeFromFilm(Long filmId, Long userId);
+    LikeResult deleteLikeFromFilm(Long filmId, Long userId);
+
+    void checkLike(Long filmId, Long userId);
+
+    boolean isLiked(Long filmId, Long userId);
+
+    LikeBatchResult saveLikes(List<LikeChange> changes);
+
+    Map<Long, FilmLikes> getLikesCounts();
 
     Integer deleteFilm(Long filmId);
 
@@ -46,4 +64,6 @@ public interface FilmStorage {
     List<Film> getCommonFilms(long userId, Long friendId);
 
     List<Film> getFilmsByIds(List<Long> filmIds);
+
+    List<Film> findFilmsByIds(List<Long> filmIds);
 }
@@ -5,4 +5,6 @@ import java.util.List;
 public interface RecommendationStorage {
 
     List<Long> recommendFilms(Long targetUserId);
+
+    List<Long> findSimilarFilms(Long filmId, int count);
 }
@@ -1,25 +1,36 @@
 package ru.yandex.practicum.filmorate.storage;
 
+import ru.yandex.practicum.filmorate.model.FilmLikes;
 import ru.yandex.practicum.filmorate.model.User;
 
 import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 public interface UserStorage {
     List<User> getAllUsers();
 
+    List<User> getUsersPage(long afterId, int limit);
+
     User addUser(User user);
 
     User updateUser(User user);
 
     User getUser(Long userId);
 
+    boolean containsUser(Long userId);
+
+    List<User> getUsersByIds(List<Long> userIds);
+
     List<User> getUserFriends(Long userId);
 
-    User addFriend(Long userId, Long friendId);
+    void forEachFriendship(BiConsumer<Long, Long> action);
+
+    User addFriend(Long userId, Long friendId, BiConsumer<Long, Long> confirmed);
 
-    User deleteFriend(Long userId, Long friendId);
+    User deleteFriend(Long userId, Long friendId, BiConsumer<Long, Long> removed);
 
-    Integer deleteUser(Long userId);
+    Integer deleteUser(Long userId, Consumer<FilmLikes> likesChanged);
 
     List<User> findCommonFriends(Long userId, Long otherId);
 }
@@ -0,0 +1,145 @@
+package ru.yandex.practicum.filmorate.storage.impl;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Director;
+import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.storage.DictionaryStorage;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class DictionaryDbStorage implements DictionaryStorage {
+
+    private final JdbcTemplate jdbcTemplate;
+    //жанры и MPA - массивы с индексом по id, режиссёры пересобираются при каждом изменении (copy-on-write)
+    private volatile Genre[] genres;
+    private volatile Mpa[] mpa;
+    private volatile Map<Integer, Director> directors;
+
+    @PostConstruct
+    @Override
+    public synchronized void reload() {
+        log.debug("reload dictionaries");
+        List<Genre> genreList = jdbcTemplate.query("select id, genre_name from genres order by id",
+                (rs, rowNum) -> new Genre(rs.getInt("id"), rs.getString("genre_name")));
+        Genre[] genresById = new Genre[genreList.isEmpty() ? 0 : genreList.get(genreList.size() - 1).getId() + 1];
+        genreList.forEach(g -> genresById[g.getId()] = g);
+
+        List<Mpa> mpaList = jdbcTemplate.query("select id, mpa_name from mpa order by id",
+                (rs, rowNum) -> new Mpa(rs.getInt("id"), rs.getString("mpa_name")));
+        Mpa[] mpaById = new Mpa[mpaList.isEmpty() ? 0 : mpaList.get(mpaList.size() - 1).getId() + 1];
+        mpaList.forEach(m -> mpaById[m.getId()] = m);
+
+        Map<Integer, Director> directorsById = new HashMap<>();
+        jdbcTemplate.query("select director_id, director_name from directors",
+                rs -> {
+                    directorsById.put(rs.getInt("director_id"),
+                            new Director(rs.getInt("director_id"), rs.getString("director_name")));
+                });
+
+        genres = genresById;
+        mpa = mpaById;
+        directors = Collections.unmodifiableMap(directorsById);
+        log.info("Dictionaries loaded: genres {}, mpa {}, directors {}",
+                genreList.size(), mpaList.size(), directorsById.size());
+    }
+
+    private void ensureLoaded() {
+        if (directors == null) {
+            reload();
+        }
+    }
+
+    @Override
+    public List<Genre> getAllGenres() {
+        log.debug("getAllGenres");
+        ensureLoaded();
+        List<Genre> result = new ArrayList<>();
+        for (Genre genre : genres) {
+            if (genre != null) {
+                result.add(genre);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public Genre getGenre(Integer genreId) {
+        ensureLoaded();
+        Genre[] genresById = genres;
+        if (genreId == null || genreId < 0 || genreId >= genresById.length) {
+            return null;
+        }
+
+        return genresById[genreId];
+    }
+
+    @Override
+    public List<Mpa> getAllMpa() {
+        log.debug("getAllMpa");
+        ensureLoaded();
+        List<Mpa> result = new ArrayList<>();
+        for (Mpa m : mpa) {
+            if (m != null) {
+                result.add(m);
+            }
+        }
+
+        return result;
+    }
+
+    @Override
+    public Mpa getMpa(Integer mpaId) {
+        ensureLoaded();
+        Mpa[] mpaById = mpa;
+        if (mpaId == null || mpaId < 0 || mpaId >= mpaById.length) {
+            return null;
+        }
+
+        return mpaById[mpaId];
+    }
+
+    @Override
+    public List<Director> getAllDirectors() {
+        log.debug("getAllDirectors");
+        ensureLoaded();
+        List<Director> result = new ArrayList<>(directors.values());
+        result.sort(Comparator.comparing(Director::getId));
+
+        return result;
+    }
+
+    @Override
+    public Director getDirector(Integer directorId) {
+        ensureLoaded();
+
+        return directors.get(directorId);
+    }
+
+    @Override
+    public synchronized void putDirector(Director director) {
+        log.debug("putDirector, directorId {}", director.getId());
+        ensureLoaded();
+        Map<Integer, Director> directorsById = new HashMap<>(directors);
+        //кладём копию, чтобы изменения объекта из запроса не попадали в справочник
+        directorsById.put(director.getId(), new Director(director.getId(), director.getName()));
+        directors = Collections.unmodifiableMap(directorsById);
+    }
+
+    @Override
+    public synchronized void removeDirector(Integer directorId) {
+        log.debug("removeDirector, directorId {}", directorId);
+        ensureLoaded();
+        Map<Integer, Director> directorsById = new HashMap<>(directors);
+        directorsById.remove(directorId);
+        directors = Collections.unmodifiableMap(directorsById);
+    }
+}
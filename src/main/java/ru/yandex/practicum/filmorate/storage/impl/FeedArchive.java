@@ -0,0 +1,422 @@
+package ru.yandex.practicum.filmorate.storage.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.practicum.filmorate.model.Feed;
+import ru.yandex.practicum.filmorate.model.FeedEventType;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+//Архив старых событий ленты. Раз в compactionInterval события старше horizon переносятся из FEEDS в сжатые файлы
+//в directory, по файлу на период bucket. В файле события сгруппированы по пользователям, каждая группа -
+//отдельный gzip-поток, её смещение и длина лежат в FEED_ARCHIVE_SEGMENTS, поэтому чтение ленты распаковывает
+//только группы нужного пользователя. Переносятся все события до некоторого id, так что любой id в архиве
+//меньше любого id в FEEDS и страницы склеиваются без пересечений
+@Component
+@Slf4j
+public class FeedArchive {
+
+    private static final String PREFIX = "feeds-";
+    private static final String SUFFIX = ".gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final boolean enabled;
+    private final Path directory;
+    private final long horizonMillis;
+    private final long bucketMillis;
+    private final long compactionIntervalMillis;
+    //чтение FEEDS вместе с архивом - под read lock, фиксация переноса - под write lock:
+    //событие всегда видно ровно в одном из двух мест
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean hasArchives;
+    private ScheduledExecutorService scheduler;
+
+    public FeedArchive(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                       @Value("${filmorate.feed.retention.enabled:true}") boolean enabled,
+                       @Value("${filmorate.feed.retention.directory:data/feed-archive}") String directory,
+                       @Value("${filmorate.feed.retention.horizon:90d}") Duration horizon,
+                       @Value("${filmorate.feed.retention.bucket:1d}") Duration bucket,
+                       @Value("${filmorate.feed.retention.compaction-interval:1h}") Duration compactionInterval) {
+        if (bucket.toMillis() <= 0) {
+            throw new IllegalArgumentException("feed retention bucket should be positive");
+        }
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.horizonMillis = horizon.toMillis();
+        this.bucketMillis = bucket.toMillis();
+        this.compactionIntervalMillis = compactionInterval.toMillis();
+    }
+
+    //свои файлы, которых нет в каталоге (перенос не зафиксирован или база создана заново), удаляются;
+    //остальные файлы каталога не трогаются
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        Set<String> fileNames = new HashSet<>(jdbcTemplate.queryForList("select file_name from feed_archives",
+                String.class));
+        hasArchives = !fileNames.isEmpty();
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                files.filter(file -> Files.isRegularFile(file) && isArchiveFile(file.getFileName().toString())
+                        && !fileNames.contains(file.getFileName().toString())).forEach(file -> {
+                            log.info("Removing orphan feed archive {}", file);
+                            deleteQuietly(file);
+                        });
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "feed-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::compactQuietly, compactionIntervalMillis, compactionIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        log.info("Feed retention enabled, horizon {} ms, bucket {} ms, archives {}", horizonMillis, bucketMillis,
+                fileNames.size());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    //чтение, которое склеивает FEEDS и архив
+    public <T> T read(Supplier<T> reader) {
+        lock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //перенос периодов, которые целиком старше now - horizon; возвращает число перенесённых событий
+    public int compact(long now) {
+        long boundary = Math.floorDiv(now - horizonMillis, bucketMillis) * bucketMillis;
+        int moved = 0;
+        while (true) {
+            Timestamp oldest = jdbcTemplate.queryForObject("select min(create_time) from feeds", Timestamp.class);
+            if (oldest == null || oldest.getTime() >= boundary) {
+                break;
+            }
+            long bucketEnd = Math.min((Math.floorDiv(oldest.getTime(), bucketMillis) + 1) * bucketMillis, boundary);
+            moved += archive(bucketEnd);
+        }
+
+        return moved;
+    }
+
+    //события пользователя с id < before от новых к старым
+    public List<Feed> getUserPage(long userId, long before, Long since, FeedEventType eventType, int limit) {
+        if (!hasArchives || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Segment> segments = jdbcTemplate.query("select a.file_name, s.file_offset, s.length, s.events "
+                        + "from feed_archive_segments s join feed_archives a on a.id = s.archive_id "
+                        + "where s.user_id = ? and s.min_id < ? and a.period_end >= ? order by s.max_id desc",
+                (rs, rowNum) -> new Segment(rs.getString(1), rs.getLong(2), rs.getInt(3), rs.getInt(4)),
+                userId, before, new Timestamp(since == null ? 0 : since));
+        List<Feed> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            List<Feed> feeds = readSegment(userId, segment);
+            for (int i = feeds.size() - 1; i >= 0 && result.size() < limit; i--) {
+                Feed feed = feeds.get(i);
+                if (feed.getEventId() < before && (since == null || feed.getTimestamp() >= since)
+                        && (eventType == null || eventType.name().equals(feed.getEventType()))) {
+                    result.add(feed);
+                }
+            }
+            if (result.size() == limit) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    //события пользователя с id > after по возрастанию id
+    public List<Feed> getUserEventsAfter(long userId, long after, int limit) {
+        if (!hasArchives || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Segment> segments = jdbcTemplate.query("select a.file_name, s.file_offset, s.length, s.events "
+                        + "from feed_archive_segments s join feed_archives a on a.id = s.archive_id "
+                        + "where s.user_id = ? and s.max_id > ? order by s.min_id",
+                (rs, rowNum) -> new Segment(rs.getString(1), rs.getLong(2), rs.getInt(3), rs.getInt(4)),
+                userId, after);
+        List<Feed> result = new ArrayList<>();
+        for (Segment segment : segments) {
+            for (Feed feed : readSegment(userId, segment)) {
+                if (feed.getEventId() > after && result.size() < limit) {
+                    result.add(feed);
+                }
+            }
+            if (result.size() == limit) {
+                break;
+            }
+        }
+
+        return result;
+    }
+
+    private void compactQuietly() {
+        try {
+            long startedAt = System.currentTimeMillis();
+            int moved = compact(startedAt);
+            if (moved > 0) {
+                log.info("Feed compaction moved {} events, {} ms", moved, System.currentTimeMillis() - startedAt);
+            }
+        } catch (RuntimeException e) {
+            log.error("Feed compaction failed, will retry", e);
+        }
+    }
+
+    private static boolean isArchiveFile(String fileName) {
+        return fileName.startsWith(PREFIX) && (fileName.endsWith(SUFFIX) || fileName.endsWith(SUFFIX + TEMP_SUFFIX));
+    }
+
+    //формат группы: gzip от последовательности (id, время, тип, операция, id сущности)
+    private int archive(long bucketEnd) {
+        Long maxId = jdbcTemplate.queryForObject("select max(id) from feeds where create_time < ?", Long.class,
+                new Timestamp(bucketEnd));
+        if (maxId == null) {
+            return 0;
+        }
+        String fileName = PREFIX + Instant.ofEpochMilli(bucketEnd - 1).atZone(ZoneOffset.UTC).toLocalDate()
+                + "-" + maxId + SUFFIX;
+        Path temp = directory.resolve(fileName + TEMP_SUFFIX);
+        Path file = directory.resolve(fileName);
+        List<long[]> segments = new ArrayList<>();
+        //{min id, число событий, min время, max время, сумма id}
+        long[] totals = {Long.MAX_VALUE, 0, Long.MAX_VALUE, Long.MIN_VALUE, 0};
+        try {
+            Files.createDirectories(directory);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                SegmentWriter writer = new SegmentWriter(channel, segments);
+                jdbcTemplate.query("select id, create_time, user_id, event_type_id, operation_id, entity_id "
+                        + "from feeds where id <= ? order by user_id, id", (RowCallbackHandler) rs -> {
+                            long id = rs.getLong(1);
+                            long time = rs.getTimestamp(2).getTime();
+                            writer.add(rs.getLong(3), id, time, rs.getInt(4), rs.getInt(5), rs.getLong(6));
+                            totals[0] = Math.min(totals[0], id);
+                            totals[1]++;
+                            totals[2] = Math.min(totals[2], time);
+                            totals[3] = Math.max(totals[3], time);
+                            totals[4] += id;
+                        }, maxId);
+                writer.finish();
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            deleteQuietly(temp);
+            throw e;
+        }
+
+        lock.writeLock().lock();
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                //событие с меньшим id могло быть зафиксировано уже после чтения - тогда его нет в файле,
+                //и удалять его нельзя; период будет перенесён заново при следующем запуске
+                Map<String, Object> current = jdbcTemplate.queryForMap("select count(*) events, "
+                        + "coalesce(sum(id), 0) id_sum from feeds where id <= ?", maxId);
+                if (((Number) current.get("events")).longValue() != totals[1]
+                        || ((Number) current.get("id_sum")).longValue() != totals[4]) {
+                    throw new IllegalStateException("Feed events changed while archiving " + fileName);
+                }
+                KeyHolder keyHolder = new GeneratedKeyHolder();
+                jdbcTemplate.update(connection -> {
+                    PreparedStatement ps = connection.prepareStatement("insert into feed_archives(file_name, "
+                            + "period_start, period_end, min_id, max_id, events, create_time) "
+                            + "values (?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+                    ps.setString(1, fileName);
+                    ps.setTimestamp(2, new Timestamp(totals[2]));
+                    ps.setTimestamp(3, new Timestamp(totals[3]));
+                    ps.setLong(4, totals[0]);
+                    ps.setLong(5, maxId);
+                    ps.setInt(6, (int) totals[1]);
+                    ps.setTimestamp(7, new Timestamp(System.currentTimeMillis()));
+                    return ps;
+                }, keyHolder);
+                long archiveId = keyHolder.getKey().longValue();
+                jdbcTemplate.batchUpdate("insert into feed_archive_segments(archive_id, user_id, file_offset, "
+                                + "length, events, min_id, max_id) values (?, ?, ?, ?, ?, ?, ?)", segments,
+                        segments.size(), (ps, segment) -> {
+                            ps.setLong(1, archiveId);
+                            ps.setLong(2, segment[0]);
+                            ps.setLong(3, segment[1]);
+                            ps.setInt(4, (int) segment[2]);
+                            ps.setInt(5, (int) segment[3]);
+                            ps.setLong(6, segment[4]);
+                            ps.setLong(7, segment[5]);
+                        });
+                int deleted = jdbcTemplate.update("delete from feeds where id <= ?", maxId);
+                if (deleted != totals[1]) {
+                    throw new IllegalStateException("Feed events changed while archiving " + fileName);
+                }
+            });
+            hasArchives = true;
+        } catch (RuntimeException e) {
+            deleteQuietly(file);
+            throw e;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("Feed archive {} written, events {}, users {}", fileName, totals[1], segments.size());
+
+        return (int) totals[1];
+    }
+
+    private List<Feed> readSegment(long userId, Segment segment) {
+        ByteBuffer buffer = ByteBuffer.allocate(segment.length);
+        try (FileChannel channel = FileChannel.open(directory.resolve(segment.fileName), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, segment.offset + buffer.position()) < 0) {
+                    throw new IOException("Feed archive " + segment.fileName + " is truncated");
+                }
+            }
+            List<Feed> feeds = new ArrayList<>(segment.events);
+            try (DataInputStream in = new DataInputStream(new GZIPInputStream(
+                    new ByteArrayInputStream(buffer.array())))) {
+                for (int i = 0; i < segment.events; i++) {
+                    long id = in.readLong();
+                    long time = in.readLong();
+                    FeedEventType eventType = FeedDbStorage.EVENT_TYPES[in.readByte()];
+                    String operation = FeedDbStorage.OPERATIONS[in.readByte()].name();
+                    feeds.add(new Feed(id, time, userId, eventType.name(), operation, in.readLong()));
+                }
+            }
+
+            return feeds;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Can`t delete {}", file, e);
+        }
+    }
+
+    private static final class Segment {
+        private final String fileName;
+        private final long offset;
+        private final int length;
+        private final int events;
+
+        private Segment(String fileName, long offset, int length, int events) {
+            this.fileName = fileName;
+            this.offset = offset;
+            this.length = length;
+            this.events = events;
+        }
+    }
+
+    //собирает группу пользователя в памяти и дописывает её в файл, когда приходит следующий пользователь
+    private static final class SegmentWriter {
+        private final FileChannel channel;
+        //{пользователь, смещение, длина, число событий, min id, max id}
+        private final List<long[]> segments;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private DataOutputStream out;
+        private long[] current;
+
+        private SegmentWriter(FileChannel channel, List<long[]> segments) {
+            this.channel = channel;
+            this.segments = segments;
+        }
+
+        private void add(long userId, long id, long time, int eventTypeId, int operationId, long entityId) {
+            try {
+                if (current == null || current[0] != userId) {
+                    finish();
+                    current = new long[]{userId, channel.position(), 0, 0, id, id};
+                    out = new DataOutputStream(new GZIPOutputStream(bytes));
+                }
+                out.writeLong(id);
+                out.writeLong(time);
+                out.writeByte(eventTypeId);
+                out.writeByte(operationId);
+                out.writeLong(entityId);
+                current[3]++;
+                current[5] = id;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void finish() throws IOException {
+            if (current == null) {
+                return;
+            }
+            out.close();
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            current[2] = bytes.size();
+            segments.add(current);
+            bytes.reset();
+            current = null;
+        }
+    }
+}
@@ -1,43 +1,81 @@
 package ru.yandex.practicum.filmorate.storage.impl;
 
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 import ru.yandex.practicum.filmorate.model.Feed;
 import ru.yandex.practicum.filmorate.model.FeedEventType;
 import ru.yandex.practicum.filmorate.model.FeedOperations;
 import ru.yandex.practicum.filmorate.storage.FeedStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FeedWriteQueue;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 @Component
-@RequiredArgsConstructor
 @Slf4j
 public class FeedDbStorage implements FeedStorage {
 
+    private static final String FEED_COLUMNS = "f.id, f.create_time, f.user_id, f.event_type_id, f.operation_id, "
+            + "f.entity_id ";
+    //справочники event_types и operations заполняются в data.sql и не меняются: имена берутся по id без join
+    static final FeedEventType[] EVENT_TYPES = {null, FeedEventType.LIKE, FeedEventType.REVIEW,
+            FeedEventType.FRIEND};
+    static final FeedOperations[] OPERATIONS = {null, FeedOperations.REMOVE, FeedOperations.ADD,
+            FeedOperations.UPDATE};
+    private static final Duration READ_BARRIER_TIMEOUT = Duration.ofSeconds(5);
     private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate batchTransaction;
+    private final FeedWriteQueue feedWriteQueue;
+    private final FeedArchive feedArchive;
+    private final List<Consumer<List<Feed>>> listeners = new CopyOnWriteArrayList<>();
+
+    //пачка пишется во вложенной транзакции: внутри чужой транзакции откатывается только она сама
+    public FeedDbStorage(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                         FeedWriteQueue feedWriteQueue, FeedArchive feedArchive) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.batchTransaction = new TransactionTemplate(transactionManager);
+        this.batchTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
+        this.feedWriteQueue = feedWriteQueue;
+        this.feedArchive = feedArchive;
+    }
+
+    @PostConstruct
+    public void init() {
+        feedWriteQueue.start(this::insertFeeds);
+    }
+
+    //хранилище останавливается после сервисов, но раньше источника данных - очередь дописывается здесь
+    @PreDestroy
+    public void shutdown() {
+        feedWriteQueue.stop();
+    }
 
     @Override
     public List<Feed> getUserFeed(Long userId) {
         log.debug("getUserFeed, userId {}", userId);
-        String sql = "select f.id, " +
-                "    f.create_time, " +
-                "    f.user_id, " +
-                "    et.event_type, " +
-                "    o.operation, " +
-                "    f.entity_id " +
-                "    from feeds f inner join event_types et on et.id = f.event_type_id " +
-                "    inner join operations o on o.id = f.operation_id " +
-                "    inner join users u " +
-                "    on u.id = f.user_id " +
-                "    where u.id = ? " +
-                "    order by f.id ";
-        List<Feed> feeds = jdbcTemplate.query(sql, (rs, rowNum) -> getFeedMapper(rs), userId);
+        feedWriteQueue.awaitWritten(userId, READ_BARRIER_TIMEOUT);
+        String sql = "select " + FEED_COLUMNS + "from feeds f where f.user_id = ? order by f.id";
+        List<Feed> feeds = feedArchive.read(() -> {
+            List<Feed> archived = feedArchive.getUserEventsAfter(userId, 0, Integer.MAX_VALUE);
+            List<Feed> hot = jdbcTemplate.query(sql, (rs, rowNum) -> getFeedMapper(rs), userId);
+            return concat(archived, hot);
+        });
         if (feeds.isEmpty()) {
             return Collections.emptyList();
         }
@@ -45,40 +83,159 @@ public class FeedDbStorage implements FeedStorage {
         return feeds;
     }
 
+    //страница от новых событий к старым: по индексу feeds_user_idx (user_id, id desc) читается не больше limit строк,
+    //с фильтром по типу события - по feeds_user_type_idx (user_id, event_type_id, id desc). Для since сначала
+    //берётся нижняя граница id по feeds_user_time_idx, чтобы не читать всю историю пользователя.
+    //Недостающее дочитывается из архива
+    @Override
+    public List<Feed> getUserFeedPage(Long userId, Long before, Long since, FeedEventType eventType, int limit) {
+        log.debug("getUserFeedPage, userId {}, before {}, since {}, eventType {}, limit {}",
+                userId, before, since, eventType, limit);
+        feedWriteQueue.awaitWritten(userId, READ_BARRIER_TIMEOUT);
+
+        return feedArchive.read(() -> {
+            StringBuilder sql = new StringBuilder("select " + FEED_COLUMNS + "from feeds f where f.user_id = ? ");
+            List<Object> args = new ArrayList<>();
+            args.add(userId);
+            if (before != null) {
+                sql.append("and f.id < ? ");
+                args.add(before);
+            }
+            if (since != null) {
+                Long sinceId = jdbcTemplate.queryForObject("select min(id) from feeds where user_id = ? "
+                        + "and create_time >= ?", Long.class, userId, new Timestamp(since));
+                //id и время растут не строго вместе, поэтому условие по времени остаётся
+                sql.append("and f.id >= ? and f.create_time >= ? ");
+                args.add(sinceId == null ? Long.MAX_VALUE : sinceId);
+                args.add(new Timestamp(since));
+            }
+            if (eventType != null) {
+                sql.append("and f.event_type_id = ? ");
+                args.add(Arrays.asList(EVENT_TYPES).indexOf(eventType));
+            }
+            sql.append("order by f.id desc limit ?");
+            args.add(limit);
+
+            List<Feed> hot = jdbcTemplate.query(sql.toString(), (rs, rowNum) -> getFeedMapper(rs), args.toArray());
+            return concat(hot, feedArchive.getUserPage(userId, before == null ? Long.MAX_VALUE : before, since,
+                    eventType, limit - hot.size()));
+        });
+    }
+
+    @Override
+    public List<Feed> getUserFeedAfter(Long userId, long after, int limit) {
+        log.debug("getUserFeedAfter, userId {}, after {}, limit {}", userId, after, limit);
+        feedWriteQueue.awaitWritten(userId, READ_BARRIER_TIMEOUT);
+        String sql = "select " + FEED_COLUMNS + "from feeds f where f.user_id = ? and f.id > ? order by f.id limit ?";
+
+        return feedArchive.read(() -> {
+            List<Feed> archived = feedArchive.getUserEventsAfter(userId, after, limit);
+            if (archived.size() == limit) {
+                return archived;
+            }
+            long hotAfter = archived.isEmpty() ? after : archived.get(archived.size() - 1).getEventId();
+            return concat(archived, jdbcTemplate.query(sql, (rs, rowNum) -> getFeedMapper(rs), userId, hotAfter,
+                    limit - archived.size()));
+        });
+    }
+
+    //для нескольких пользователей индекс feeds_user_idx читается по каждому, результат сортируется.
+    //Ленты друзей показывают недавние события, архив в них не читается. Записи чужих событий
+    //чтение не ждёт: при асинхронной записи они появляются в ленте с задержкой очереди
+    @Override
+    public List<Feed> getUsersFeedPage(List<Long> userIds, Long before, int limit) {
+        log.debug("getUsersFeedPage, users {}, before {}, limit {}", userIds.size(), before, limit);
+        if (userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String sql = "select " + FEED_COLUMNS + "from feeds f where f.user_id = any(?) and f.id < ? "
+                + "order by f.id desc limit ?";
+
+        return jdbcTemplate.query(sql, (rs, rowNum) -> getFeedMapper(rs), userIds.toArray(new Long[0]),
+                before == null ? Long.MAX_VALUE : before, limit);
+    }
+
+    @Override
+    public List<Feed> getFriendsFeedPage(Long userId, Long before, int limit) {
+        log.debug("getFriendsFeedPage, userId {}, before {}, limit {}", userId, before, limit);
+        String sql = "select " + FEED_COLUMNS + "from feeds f "
+                + "where f.user_id in (select friend_id from friends where user_id = ? and friendship_id = 1) "
+                + "and f.id < ? order by f.id desc limit ?";
+
+        return jdbcTemplate.query(sql, (rs, rowNum) -> getFeedMapper(rs), userId,
+                before == null ? Long.MAX_VALUE : before, limit);
+    }
+
+    @Override
+    public void addListener(Consumer<List<Feed>> listener) {
+        listeners.add(listener);
+    }
+
+    private static List<Feed> concat(List<Feed> first, List<Feed> second) {
+        if (second.isEmpty()) {
+            return first;
+        }
+        List<Feed> result = new ArrayList<>(first.size() + second.size());
+        result.addAll(first);
+        result.addAll(second);
+
+        return result;
+    }
+
     private Feed getFeedMapper(ResultSet rs) throws SQLException {
         log.debug("getUserMapper");
         return new Feed(rs.getLong("id"), rs.getTimestamp("create_time").toInstant().toEpochMilli(),
-                rs.getLong("user_id"), rs.getString("event_type"),
-                rs.getString("operation"), rs.getLong("entity_id"));
+                rs.getLong("user_id"), EVENT_TYPES[rs.getInt("event_type_id")].name(),
+                OPERATIONS[rs.getInt("operation_id")].name(), rs.getLong("entity_id"));
     }
 
+    //при включённой асинхронной записи событие только ставится в очередь, время берётся в момент вызова
     @Override
     public Integer addFeedEntity(long userId, FeedEventType feedEventType, FeedOperations feedOperation, long entityId) {
-        int feedEventTypeId = 0;
-        int feedOperationId = 0;
-        Timestamp sysdate = Timestamp.valueOf(java.time.LocalDateTime.now());
-
-        switch (feedEventType) {
-            case LIKE: feedEventTypeId = 1;
-                break;
-            case REVIEW: feedEventTypeId = 2;
-                break;
-            case FRIEND: feedEventTypeId = 3;
-                break;
-        }
-        switch (feedOperation) {
-            case REMOVE: feedOperationId = 1;
-                break;
-            case ADD: feedOperationId = 2;
-                break;
-            case UPDATE: feedOperationId = 3;
-                break;
+        Feed feed = new Feed(null, System.currentTimeMillis(), userId, feedEventType.name(), feedOperation.name(),
+                entityId);
+        if (feedWriteQueue.isRunning()) {
+            feedWriteQueue.add(feed);
+        } else {
+            insertFeeds(List.of(feed));
         }
-        String sqlQuery = "insert into feeds(create_time, user_id, event_type_id, operation_id, entity_id) " +
-                " values(?, ?, ?, ?, ?)";
-        jdbcTemplate.update(sqlQuery, sysdate, userId, feedEventTypeId, feedOperationId, entityId);
 
         return 0;
     }
-}
 
+    //одна пачка insert; сгенерированные id проставляются событиям до вызова слушателей.
+    //Пачка пишется целиком или не пишется: при ошибке одной строки H2 сохраняет остальные,
+    //и повторная запись по одному событию продублировала бы их
+    private void insertFeeds(List<Feed> feeds) {
+        log.debug("insertFeeds, size {}", feeds.size());
+        String sqlQuery = "insert into feeds(create_time, user_id, event_type_id, operation_id, entity_id) " +
+                " values(?, ?, ?, ?, ?)";
+        batchTransaction.executeWithoutResult(status -> jdbcTemplate.execute(
+                (Connection connection) -> connection.prepareStatement(sqlQuery, new String[]{"id"}),
+                (PreparedStatement ps) -> {
+                    for (Feed feed : feeds) {
+                        ps.setTimestamp(1, new Timestamp(feed.getTimestamp()));
+                        ps.setLong(2, feed.getUserId());
+                        ps.setInt(3, Arrays.asList(EVENT_TYPES).indexOf(FeedEventType.valueOf(feed.getEventType())));
+                        ps.setInt(4, Arrays.asList(OPERATIONS).indexOf(FeedOperations.valueOf(feed.getOperation())));
+                        ps.setLong(5, feed.getEntityId());
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    try (ResultSet keys = ps.getGeneratedKeys()) {
+                        for (int i = 0; i < feeds.size() && keys.next(); i++) {
+                            feeds.get(i).setEventId(keys.getLong(1));
+                        }
+                    }
+                    return null;
+                }));
+        //события уже записаны: ошибка слушателя не должна приводить к повторной записи
+        for (Consumer<List<Feed>> listener : listeners) {
+            try {
+                listener.accept(feeds);
+            } catch (RuntimeException e) {
+                log.error("Feed listener failed", e);
+            }
+        }
+    }
+}
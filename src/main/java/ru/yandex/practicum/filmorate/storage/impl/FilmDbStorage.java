@@ -2,6 +2,7 @@ package ru.yandex.practicum.filmorate.storage.impl;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
 import org.springframework.jdbc.core.RowMapper;
@@ -9,13 +10,22 @@ import org.springframework.jdbc.core.simple.SimpleJdbcInsert;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import ru.yandex.practicum.filmorate.exception.NotFoundException;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
 import ru.yandex.practicum.filmorate.model.Director;
 import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmLikes;
 import ru.yandex.practicum.filmorate.model.Genre;
+import ru.yandex.practicum.filmorate.model.LikeBatchResult;
+import ru.yandex.practicum.filmorate.model.LikeChange;
+import ru.yandex.practicum.filmorate.model.LikeResult;
 import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.storage.DictionaryStorage;
 import ru.yandex.practicum.filmorate.storage.FilmStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FilmCache;
 
 import java.sql.Date;
 import java.sql.PreparedStatement;
@@ -23,6 +33,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Component("filmDbStorage")
@@ -30,72 +41,135 @@ import java.util.stream.Collectors;
 @Slf4j
 public class FilmDbStorage implements FilmStorage {
 
+    private static final String FILM_COLUMNS = "f.id, f.name, f.description, f.release_date, f.duration, f.mpa_id ";
+    private static final int STREAM_FETCH_SIZE = 500;
+    //films.likes_count ведётся вместе с films_likes, по нему есть индекс (likes_count desc, id)
+    private static final String ORDER_BY_LIKES = "order by f.likes_count desc, f.id ";
     private final LocalDate minDateRelease = LocalDate.parse("1895-12-28");
     private final JdbcTemplate jdbcTemplate;
+    private final DictionaryStorage dictionaryStorage;
+    private final FilmCache filmCache;
+    private final IdIndex idIndex;
 
     @Override
     public List<Film> getAllFilms() {
         log.debug("getAllFilms");
-        String sqlQuery = "select " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   string_agg(gf.genre_id::text, ',') as genres, " +
-                "   string_agg(df.director_id::text, ',') as directors, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name " +
-                "from films f " +
-                "left join genres_films gf on f.id = gf.film_id " +
-                "left join directors_films df on f.id = df.film_id " +
-                "inner join mpa m on m.id = f.mpa_id " +
-                "group by " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name ";
-        List<Film> films = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> getFilmMapper(rs), null);
+        String sqlQuery = "select " + FILM_COLUMNS + "from films f order by f.id";
+        List<Film> films = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> getFilmMapper(rs));
         if (films.isEmpty()) {
             return Collections.emptyList();
         }
 
-        return films;
+        return hydrateFilms(films, true);
+    }
+
+    @Override
+    public List<Film> getFilmsPage(long afterId, int limit) {
+        log.debug("getFilmsPage, afterId {}, limit {}", afterId, limit);
+        String sqlQuery = "select " + FILM_COLUMNS + "from films f where f.id > ? order by f.id limit ?";
+        List<Film> films = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> getFilmMapper(rs), afterId, limit);
+
+        return hydrateFilms(films, false);
+    }
+
+    //Выгрузка всего каталога без накопления в памяти: фильмы читаются однонаправленным курсором
+    //и догружаются жанрами/режиссёрами пачками по STREAM_FETCH_SIZE.
+    //Транзакция нужна, чтобы драйверы вроде PostgreSQL учитывали fetch size, а не читали выборку целиком
+    @Override
+    @Transactional(readOnly = true)
+    public void forEachFilm(Consumer<Film> action) {
+        log.debug("forEachFilm");
+        String sqlQuery = "select " + FILM_COLUMNS + "from films f order by f.id";
+        List<Film> batch = new ArrayList<>(STREAM_FETCH_SIZE);
+        jdbcTemplate.query(connection -> {
+            PreparedStatement stmt = connection.prepareStatement(sqlQuery,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            return stmt;
+        }, rs -> {
+            batch.add(getFilmMapper(rs));
+            if (batch.size() == STREAM_FETCH_SIZE) {
+                hydrateFilms(batch, false).forEach(action);
+                batch.clear();
+            }
+        });
+        if (!batch.isEmpty()) {
+            hydrateFilms(batch, false).forEach(action);
+        }
     }
 
     private Film getFilmMapper(ResultSet rs) throws SQLException {
         log.debug("getFilmMapper");
-        List<Genre> genresList;
-        if (rs.getString("genres") != null) {
-            genresList = Arrays.stream(Optional.ofNullable(rs.getString("genres")).orElse("").split(","))
-                    .map(f -> getAllGenres().stream().filter(g -> g.getId().equals(Integer.parseInt(f)))
-                            .findFirst().get())
-                    .collect(Collectors.toList());
-        } else {
-            genresList = Collections.emptyList();
+
+        return new Film(rs.getLong("id"), rs.getString("name"),
+                rs.getString("description"), rs.getDate("release_date").toLocalDate(),
+                rs.getInt("duration"), new ArrayList<>(), new ArrayList<>(),
+                dictionaryStorage.getMpa(rs.getInt("mpa_id")));
+    }
+
+    //Вторая фаза загрузки фильмов: жанры и режиссёры всей выборки читаются одним запросом на связь
+    //и раскладываются по фильмам слиянием отсортированных по id последовательностей.
+    //allFilms = true - в выборке все фильмы, фильтр по id не нужен
+    private List<Film> hydrateFilms(List<Film> films, boolean allFilms) {
+        log.debug("hydrateFilms, size {}", films.size());
+        Film[] sortedFilms = films.toArray(new Film[0]);
+        Arrays.sort(sortedFilms, Comparator.comparingLong(Film::getId));
+        long[] sortedIds = new long[sortedFilms.length];
+        for (int i = 0; i < sortedFilms.length; i++) {
+            sortedIds[i] = sortedFilms[i].getId();
+        }
+
+        String filter = allFilms ? "" : "where film_id = any(?) ";
+        RelationMerger genresMerger = new RelationMerger(sortedIds);
+        jdbcTemplate.query("select film_id, genre_id from genres_films " + filter + "order by film_id, genre_id",
+                ps -> setFilmIds(ps, sortedIds, allFilms),
+                rs -> {
+                    int pos = genresMerger.position(rs.getLong(1));
+                    if (pos >= 0) {
+                        sortedFilms[pos].getGenres().add(dictionaryStorage.getGenre(rs.getInt(2)));
+                    }
+                });
+        RelationMerger directorsMerger = new RelationMerger(sortedIds);
+        jdbcTemplate.query("select film_id, director_id from directors_films " + filter
+                        + "order by film_id, director_id",
+                ps -> setFilmIds(ps, sortedIds, allFilms),
+                rs -> {
+                    int pos = directorsMerger.position(rs.getLong(1));
+                    if (pos >= 0) {
+                        sortedFilms[pos].getDirectors().add(dictionaryStorage.getDirector(rs.getInt(2)));
+                    }
+                });
+
+        return films;
+    }
+
+    private static void setFilmIds(PreparedStatement ps, long[] filmIds, boolean allFilms) throws SQLException {
+        if (allFilms) {
+            return;
+        }
+        Long[] ids = new Long[filmIds.length];
+        for (int i = 0; i < filmIds.length; i++) {
+            ids[i] = filmIds[i];
         }
+        ps.setArray(1, ps.getConnection().createArrayOf("BIGINT", ids));
+    }
 
-        genresList.sort((o1, o2) -> o1.getId() - o2.getId());
+    //курсор по отсортированному массиву id: строки связи приходят упорядоченными по film_id
+    private static class RelationMerger {
+        private final long[] sortedIds;
+        private int pos;
 
-        List<Director> directorList;
-        if (rs.getString("directors") != null) {
-            directorList = Arrays.stream(Optional.ofNullable(rs.getString("directors")).orElse("").split(","))
-                .map(f -> getAllDirectors().stream().filter(g -> g.getId().equals(Integer.parseInt(f)))
-                    .findFirst().get())
-                .collect(Collectors.toList());
-        } else {
-            directorList = Collections.emptyList();
+        RelationMerger(long[] sortedIds) {
+            this.sortedIds = sortedIds;
         }
 
-        directorList.sort((o1, o2) -> o1.getId() - o2.getId());
+        int position(long filmId) {
+            while (pos < sortedIds.length && sortedIds[pos] < filmId) {
+                pos++;
+            }
 
-        return new Film(rs.getLong("id"), rs.getString("name"),
-                rs.getString("description"), LocalDate.parse(rs.getString("release_date")),
-                rs.getInt("duration"), genresList, directorList, new Mpa(rs.getInt("mpa_id"),
-                rs.getString("mpa_name")));
+            return pos < sortedIds.length && sortedIds[pos] == filmId ? pos : -1;
+        }
     }
 
     @Override
@@ -116,6 +190,7 @@ public class FilmDbStorage implements FilmStorage {
             return stmt;
         }, keyHolder);
         film.setId(keyHolder.getKey().longValue());
+        idIndex.add(IdIndex.Kind.FILMS, film.getId());
 
         if (film.getGenres() != null) {
             Long filmId = film.getId();
@@ -139,6 +214,7 @@ public class FilmDbStorage implements FilmStorage {
     }
 
     @Override
+    @Transactional
     public Film updateFilm(Film film) {
         log.debug("updateFilm, filmId {}", film.getId());
         existsFilm(film.getId(), "updating film not exists!", 0);
@@ -171,14 +247,29 @@ public class FilmDbStorage implements FilmStorage {
             int[][] updateCounts = batchDirectorsInsert(uniqueDirectors.stream().collect(Collectors.toList()), filmId, 1000);
         }
         film.setDirectors(directorList);
+        invalidateAfterCommit(film.getId());
 
         return film;
     }
 
+    //сброс после записи жанров и режиссёров; чтение до фиксации транзакции видит старые строки,
+    //поэтому сброс повторяется после неё
+    private void invalidateAfterCommit(Long filmId) {
+        filmCache.invalidate(filmId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    filmCache.invalidate(filmId);
+                }
+            });
+        }
+    }
+
     private int[][] batchDirectorsInsert(List<Director> directors, long filmId, int batchSize) {
 
         int[][] updateCounts = jdbcTemplate.batchUpdate(
-                "insert into directors_films(film_id, director_id)  values(?,?)",
+                "merge into directors_films(film_id, director_id) key(film_id, director_id) values(?,?)",
                 directors,
                 batchSize,
                 new ParameterizedPreparedStatementSetter<Director>() {
@@ -195,7 +286,7 @@ public class FilmDbStorage implements FilmStorage {
     private int[][] batchGenresInsert(List<Genre> genres, long filmId, int batchSize) {
 
         int[][] updateCounts = jdbcTemplate.batchUpdate(
-                "insert into genres_films(film_id, genre_id) values(?,?)",
+                "merge into genres_films(film_id, genre_id) key(film_id, genre_id) values(?,?)",
                 genres,
                 batchSize,
                 new ParameterizedPreparedStatementSetter<Genre>() {
@@ -212,42 +303,27 @@ public class FilmDbStorage implements FilmStorage {
     @Override
     public List<Genre> getAllGenres() {
         log.debug("getAllGenres");
-        String sql = "select * from genres";
-        List<Genre> genres = jdbcTemplate.query(sql, (rs, rowNum) -> getGenreMapper(rs), null);
-        if (genres.isEmpty()) {
-            return Collections.emptyList();
-        }
 
-        return genres;
-    }
-
-    private Genre getGenreMapper(ResultSet rs) throws SQLException {
-        log.debug("getGenreMapper");
-
-        return new Genre(rs.getInt("id"), rs.getString("genre_name"));
+        return dictionaryStorage.getAllGenres();
     }
 
     @Override
     public List<Mpa> getAllMpa() {
         log.debug("getAllMpa");
-        String sql = "select * from mpa";
-        List<Mpa> mpaList = jdbcTemplate.query(sql, (rs, rowNum) -> getMpaMapper(rs), null);
-        if (mpaList.isEmpty()) {
-
-            return Collections.emptyList();
-        }
-
-        return mpaList;
-    }
-
-    private Mpa getMpaMapper(ResultSet rs) throws SQLException {
-        log.debug("getMpaMapper");
 
-        return new Mpa(rs.getInt("id"), rs.getString("mpa_name"));
+        return dictionaryStorage.getAllMpa();
     }
 
     private void existsFilm(Long userID, String errorMessage, Integer countValue) {
         log.debug("existsFilm");
+        //countValue 0 - фильм должен быть, 1 - не должен; индекс отвечает без запроса в БД
+        if (idIndex.isEnabled()) {
+            if (idIndex.mightContain(IdIndex.Kind.FILMS, userID) == (countValue == 1)) {
+                log.error(errorMessage);
+                throw new NotFoundException(errorMessage);
+            }
+            return;
+        }
         String sql = "select count(1) from films where id = ?";
         List<Integer> existsFilm = jdbcTemplate.query(sql, (rs, rowNum) -> existsFilmMapper(rs), userID);
         if (existsFilm.get(0) == countValue) {
@@ -265,67 +341,28 @@ public class FilmDbStorage implements FilmStorage {
     @Override
     public Film getFilm(Long filmId) {
         log.debug("getFilm, filmId {}", filmId);
-        String sqlQuery = "select " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   string_agg(gf.genre_id::text, ',') as genres, " +
-                "   string_agg(df.director_id::text, ',') as directors, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name " +
-                "from films f " +
-                "left join genres_films gf on f.id = gf.film_id " +
-                "left join directors_films df on f.id = df.film_id " +
-                "inner join mpa m on m.id = f.mpa_id where f.id = ? " +
-                "group by " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name ";
+
+        return filmCache.get(filmId, this::loadFilm);
+    }
+
+    private Film loadFilm(Long filmId) {
+        log.debug("loadFilm, filmId {}", filmId);
+        String sqlQuery = "select " + FILM_COLUMNS + "from films f where f.id = ?";
         List<Film> films = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> getFilmMapper(rs), filmId);
         if (films.isEmpty()) {
             throw new NotFoundException("Film not found!");
         }
 
-        return films.get(0);
+        return hydrateFilms(films, false).get(0);
     }
 
     @Override
     public List<Film> getFilmsByIds(List<Long> filmIds) {
         log.debug("getFilmsByIds");
-        String inSql = String.join(",", Collections.nCopies(filmIds.size(), "?"));
-        if (inSql.isBlank()) {
+        if (filmIds.isEmpty()) {
             return Collections.emptyList();
         }
-        String sqlQuery = "select " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   string_agg(gf.genre_id::text, ',') as genres, " +
-                "   string_agg(df.director_id::text, ',') as directors, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name " +
-                "from films f " +
-                "left join genres_films gf on f.id = gf.film_id " +
-                "left join directors_films df on f.id = df.film_id " +
-                "inner join mpa m on m.id = f.mpa_id where " +
-                "f.id in (%s) " +
-                "group by " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name ";
-        List<Film> films = jdbcTemplate.query(String.format(sqlQuery, inSql), (rs, rowNum) -> getFilmMapper(rs), filmIds.toArray());
+        List<Film> films = findFilmsByIds(filmIds);
         if (films.isEmpty()) {
             throw new NotFoundException("Film not found!");
         }
@@ -333,6 +370,29 @@ public class FilmDbStorage implements FilmStorage {
         return films;
     }
 
+    //фильмы, удалённые между выбором id и загрузкой, пропускаются без ошибки
+    @Override
+    public List<Film> findFilmsByIds(List<Long> filmIds) {
+        log.debug("findFilmsByIds");
+        if (filmIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Film> films = new ArrayList<>(filmCache.getAll(filmIds, this::loadFilmsByIds).values());
+        films.sort(Comparator.comparing(Film::getId));
+
+        return films;
+    }
+
+    private List<Film> loadFilmsByIds(List<Long> filmIds) {
+        log.debug("loadFilmsByIds, size {}", filmIds.size());
+        long[] ids = filmIds.stream().mapToLong(Long::longValue).toArray();
+        String sqlQuery = "select " + FILM_COLUMNS + "from films f where f.id = any(?) order by f.id";
+        List<Film> films = jdbcTemplate.query(sqlQuery, ps -> setFilmIds(ps, ids, false),
+                (rs, rowNum) -> getFilmMapper(rs));
+
+        return hydrateFilms(films, false);
+    }
+
     private void validateFilm(Film film) {
         log.debug("validation film");
         try {
@@ -347,6 +407,13 @@ public class FilmDbStorage implements FilmStorage {
 
     private List<Integer> checkLikes(Long filmId, Long userId) {
         log.debug("checkLikes, filmId {}, userId {}", filmId, userId);
+        if (idIndex.isEnabled()) {
+            //фильм и пользователь проверяются по индексу, в БД остаётся только сам лайк
+            boolean filmExists = idIndex.mightContain(IdIndex.Kind.FILMS, filmId);
+            boolean userExists = idIndex.mightContain(IdIndex.Kind.USERS, userId);
+            return List.of(filmExists ? 1 : 0, userExists ? 1 : 0,
+                    filmExists && userExists && isLiked(filmId, userId) ? 1 : 0);
+        }
         String sqlQuery = "SELECT \n" + "nvl((SELECT 1 FROM films WHERE id = ?), 0) film_exists,\n"
                 + "nvl((SELECT 1 FROM users WHERE id = ?), 0) user_exists,\n"
                 + "nvl((SELECT 1 FROM films_likes WHERE film_id = ? AND user_id = ?), 0) likes_exists\n"
@@ -361,7 +428,8 @@ public class FilmDbStorage implements FilmStorage {
     }
 
     @Override
-    public Film addLikeToFilm(Long filmId, Long userId) {
+    @Transactional
+    public LikeResult addLikeToFilm(Long filmId, Long userId) {
         log.debug("addLikeToFilm, filmId {}, userId {}", filmId, userId);
         List<Integer> likesParameters = checkLikes(filmId, userId);
 
@@ -375,13 +443,19 @@ public class FilmDbStorage implements FilmStorage {
 
         if (likesParameters.get(2) > 0) {
             //like уже поставлен!
-            return getFilm(filmId);
+            return new LikeResult(getFilm(filmId), null);
         }
 
         String sqlQuery = "insert into films_likes(film_id, user_id) values(?, ?)";
-        jdbcTemplate.update(sqlQuery, filmId, userId);
+        try {
+            jdbcTemplate.update(sqlQuery, filmId, userId);
+        } catch (DuplicateKeyException e) {
+            //like поставлен параллельным запросом
+            return new LikeResult(getFilm(filmId), null);
+        }
+        FilmLikes likes = changeLikesCount(filmId, 1);
 
-        return getFilm(filmId);
+        return new LikeResult(getFilm(filmId), likes);
     }
 
     private List<Integer> getLikesMapper(ResultSet rs) throws SQLException {
@@ -390,7 +464,9 @@ public class FilmDbStorage implements FilmStorage {
         return List.of(rs.getInt("film_exists"), rs.getInt("user_exists"), rs.getInt("likes_exists"));
     }
 
-    public Film deleteLikeFromFilm(Long filmId, Long userId) {
+    @Override
+    @Transactional
+    public LikeResult deleteLikeFromFilm(Long filmId, Long userId) {
         log.debug("deleteLikeFromFilm, filmId {}, userId {}", filmId, userId);
         List<Integer> likesParameters = checkLikes(filmId, userId);
 
@@ -404,108 +480,170 @@ public class FilmDbStorage implements FilmStorage {
 
         if (likesParameters.get(2) == 0) {
             //like не поставлен!
-            return getFilm(filmId);
+            return new LikeResult(getFilm(filmId), null);
         }
 
         String sqlQuery = "delete from films_likes where film_id = ? and user_id = ?";
-        jdbcTemplate.update(sqlQuery, filmId, userId);
+        if (jdbcTemplate.update(sqlQuery, filmId, userId) == 0) {
+            //like снят параллельным запросом
+            return new LikeResult(getFilm(filmId), null);
+        }
+        FilmLikes likes = changeLikesCount(filmId, -1);
+
+        return new LikeResult(getFilm(filmId), likes);
+    }
+
+    //счётчик меняется и читается одним запросом, строка фильма остаётся заблокированной до конца транзакции,
+    //поэтому версии изменений одного фильма идут в порядке коммитов
+    private FilmLikes changeLikesCount(Long filmId, long delta) {
+        List<FilmLikes> likes = jdbcTemplate.query("select id, likes_count, likes_version from final table "
+                        + "(update films set likes_count = likes_count + ?, likes_version = likes_version + 1 "
+                        + "where id = ?)",
+                (rs, rowNum) -> getFilmLikesMapper(rs), delta, filmId);
+
+        return likes.isEmpty() ? null : likes.get(0);
+    }
 
-        return getFilm(filmId);
+    private FilmLikes getFilmLikesMapper(ResultSet rs) throws SQLException {
+        return new FilmLikes(rs.getLong("id"), rs.getLong("likes_count"), rs.getLong("likes_version"));
+    }
+
+    @Override
+    public void checkLike(Long filmId, Long userId) {
+        log.debug("checkLike, filmId {}, userId {}", filmId, userId);
+        List<Integer> likesParameters = checkLikes(filmId, userId);
+
+        if (likesParameters.get(0) == 0) {
+            throw new NotFoundException("Film not found!");
+        }
+
+        if (likesParameters.get(1) == 0) {
+            throw new NotFoundException("User not found!");
+        }
+    }
+
+    @Override
+    public boolean isLiked(Long filmId, Long userId) {
+        log.debug("isLiked, filmId {}, userId {}", filmId, userId);
+        return !jdbcTemplate.queryForList("select 1 from films_likes where film_id = ? and user_id = ?",
+                Integer.class, filmId, userId).isEmpty();
+    }
+
+    //пакетная запись отложенных лайков: повторный лайк и лайк удалённого фильма/пользователя пропускаются,
+    //счётчики фильмов меняются на число реально вставленных/удалённых строк
+    @Override
+    @Transactional
+    public LikeBatchResult saveLikes(List<LikeChange> changes) {
+        log.debug("saveLikes, size {}", changes.size());
+        List<LikeChange> added = changes.stream().filter(LikeChange::isLiked).collect(Collectors.toList());
+        List<LikeChange> removed = changes.stream().filter(c -> !c.isLiked()).collect(Collectors.toList());
+        int[] addedRows = jdbcTemplate.batchUpdate("insert into films_likes(film_id, user_id) "
+                        + "select cast(? as bigint), cast(? as bigint) from dual "
+                        + "where not exists (select 1 from films_likes where film_id = ? and user_id = ?) "
+                        + "and exists (select 1 from films where id = ?) "
+                        + "and exists (select 1 from users where id = ?)",
+                added.stream()
+                        .map(c -> new Object[]{c.getFilmId(), c.getUserId(), c.getFilmId(), c.getUserId(),
+                                c.getFilmId(), c.getUserId()})
+                        .collect(Collectors.toList()));
+        int[] removedRows = jdbcTemplate.batchUpdate("delete from films_likes where film_id = ? and user_id = ?",
+                removed.stream()
+                        .map(c -> new Object[]{c.getFilmId(), c.getUserId()})
+                        .collect(Collectors.toList()));
+
+        List<LikeChange> applied = new ArrayList<>();
+        Map<Long, Long> deltas = new HashMap<>();
+        for (int i = 0; i < added.size(); i++) {
+            if (addedRows[i] > 0) {
+                applied.add(added.get(i));
+            }
+            deltas.merge(added.get(i).getFilmId(), (long) addedRows[i], Long::sum);
+        }
+        for (int i = 0; i < removed.size(); i++) {
+            if (removedRows[i] > 0) {
+                applied.add(removed.get(i));
+            }
+            deltas.merge(removed.get(i).getFilmId(), (long) -removedRows[i], Long::sum);
+        }
+        deltas.values().removeIf(delta -> delta == 0);
+        jdbcTemplate.batchUpdate("update films set likes_count = likes_count + ?, likes_version = likes_version + 1 "
+                        + "where id = ?",
+                deltas.entrySet().stream()
+                        .map(e -> new Object[]{e.getValue(), e.getKey()})
+                        .collect(Collectors.toList()));
+        //строки фильмов заблокированы до коммита - прочитанные счётчики и есть итог этой транзакции
+        long[] filmIds = deltas.keySet().stream().mapToLong(Long::longValue).toArray();
+        List<FilmLikes> likes = filmIds.length == 0 ? Collections.emptyList()
+                : jdbcTemplate.query("select id, likes_count, likes_version from films where id = any(?)",
+                        ps -> setFilmIds(ps, filmIds, false), (rs, rowNum) -> getFilmLikesMapper(rs));
+
+        return new LikeBatchResult(applied, likes);
+    }
+
+    //фильмы, лайки которых ни разу не менялись, не возвращаются
+    @Override
+    public Map<Long, FilmLikes> getLikesCounts() {
+        log.debug("getLikesCounts");
+        Map<Long, FilmLikes> likes = new HashMap<>();
+        jdbcTemplate.query("select id, likes_count, likes_version from films where likes_version > 0",
+                rs -> {
+                    likes.put(rs.getLong("id"), getFilmLikesMapper(rs));
+                });
+
+        return likes;
     }
 
     @Override
     public List<Film> getTopNfilms(Integer count, Integer genreId, Integer year) {
         log.debug("getTopNfilms, count {}", count);
-        StringBuilder sqlQuery = new StringBuilder("select\n" +
-                "   ff.id, \n" +
-                "   ff.name, \n" +
-                "   ff.description, \n" +
-                "   ff.release_date, \n" +
-                "   ff.duration,\n" +
-                "   ff.genres, \n" +
-                "   ff.directors, \n" +
-                "   ff.mpa_id,\n" +
-                "   ff.mpa_name,\n" +
-                "   count(fl.film_id) as cnt_likes\n" +
-                "from\n" +
-                "( select f.id, \n" +
-                "    f.name, \n" +
-                "    f.description, \n" +
-                "    f.release_date, \n" +
-                "    f.duration,\n" +
-                "    string_agg(distinct gf.genre_id::text, ',') as genres, \n" +
-                "    string_agg(distinct df.director_id::text, ',') as directors, \n" +
-                "    f.mpa_id,\n" +
-                "    m.mpa_name\n" +
-                "    from films f " +
-                "left join genres_films gf \n" +
-                "    on f.id = gf.film_id " +
-                "left join directors_films df on f.id = df.film_id " +
-                "inner join mpa m on m.id = f.mpa_id\n " +
-                " where 1 = 1 ");
+        StringBuilder sqlQuery = new StringBuilder("select " + FILM_COLUMNS + "from films f where 1 = 1 ");
+        List<Object> params = new ArrayList<>();
         if (year != null) {
-            sqlQuery.append(" and YEAR(f.RELEASE_DATE)  = ").append(year).append(" ");
-        }
-        sqlQuery.append(
-                "  group by     f.id,\n" +
-                "               f.name, \n" +
-                "               f.description, \n" +
-                "               f.release_date,\n" +
-                "               f.duration, \n" +
-                "               f.mpa_id,\n" +
-                "               m.mpa_name\n" +
-                ") ff left join films_likes fl on ff.id = fl.film_id\n ");
+            sqlQuery.append("and f.release_date >= ? and f.release_date < ? ");
+            params.add(LocalDate.of(year, 1, 1));
+            params.add(LocalDate.of(year + 1, 1, 1));
+        }
         if (genreId != null) {
-            sqlQuery.append("INNER JOIN genres_films gf2 ON ff.ID  = gf2.FILM_ID AND gf2.GENRE_ID = ").append(genreId);
-        }
-        sqlQuery.append(
-                " group by ff.id, \n" +
-                "     ff.name, \n" +
-                "     ff.description, \n" +
-                "     ff.release_date, \n" +
-                "     ff.duration,\n" +
-                "     ff.genres, \n" +
-                "     ff.mpa_id,\n" +
-                "     ff.mpa_name\n" +
-                "order by cnt_likes desc\n" +
-                "limit ? ");
-
-        List<Film> films = jdbcTemplate.query(sqlQuery.toString(), (rs, rowNum) -> getFilmMapper(rs), count);
+            sqlQuery.append("and exists (select 1 from genres_films gf where gf.film_id = f.id and gf.genre_id = ?) ");
+            params.add(genreId);
+        }
+        sqlQuery.append(ORDER_BY_LIKES).append("limit ?");
+        params.add(count);
 
-        return films;
+        List<Film> films = jdbcTemplate.query(sqlQuery.toString(), (rs, rowNum) -> getFilmMapper(rs), params.toArray());
+
+        return hydrateFilms(films, false);
     }
 
     @Override
     public Integer deleteFilm(Long filmId) {
         String sql = "DELETE FROM films WHERE id=?;";
-        return jdbcTemplate.update(sql, filmId);
+        int result = jdbcTemplate.update(sql, filmId);
+        filmCache.invalidate(filmId);
+        if (result > 0) {
+            idIndex.remove(IdIndex.Kind.FILMS, filmId);
+        }
+        return result;
     }
 
     @Override
     public List<Director> getAllDirectors() {
         log.debug("getAllDirectors");
-        String sql = "select director_id, director_name from directors";
-        List<Director> directors = jdbcTemplate.query(sql, getDirectorMapper());
-        if (directors.isEmpty()) {
-            return Collections.emptyList();
-        }
 
-        return directors;
+        return dictionaryStorage.getAllDirectors();
     }
 
     @Override
     public Director getDirector(Integer id) {
         log.debug("getDirector");
-        try {
-            String sql = "SELECT director_id, director_name FROM directors WHERE director_id = ?;";
-            Director director = jdbcTemplate.queryForObject(sql, getDirectorMapper(), id);
-
-            log.info("Founded director with id = {}", id);
-            return director;
-        } catch (RuntimeException e) {
+        Director director = dictionaryStorage.getDirector(id);
+        if (director == null) {
             log.warn("Not found director with id = {}", id);
             throw new NotFoundException("Not found director with id = " + id);
         }
+
+        log.info("Founded director with id = {}", id);
+        return director;
     }
 
     public List<Director> getDirectorsByFilmId(Long filmId) {
@@ -542,55 +680,15 @@ public class FilmDbStorage implements FilmStorage {
             throw new NotFoundException("Not found director with id = " + directorId);
         }
 
-        String sqlByLikes = "SELECT "
-            + "f.id, "
-            + "f.name, "
-            + "f.description, "
-            + "f.release_date, "
-            + "f.duration, "
-            + "string_agg(gf.genre_id::text, ',') as genres, "
-            + "string_agg(df.director_id::text, ',') as directors, "
-            + "f.mpa_id, "
-            + "m.mpa_name "
-            + "FROM films f "
-            + "LEFT JOIN genres_films gf ON f.id = gf.film_id "
-            + "LEFT JOIN films_likes l ON f.id = l.film_id "
-            + "JOIN directors_films df ON f.id = df.film_id "
-            + "INNER JOIN mpa m ON m.id = f.mpa_id "
-            + "WHERE df.director_id = ? "
-            + "GROUP BY f.id, "
-            + "f.name, "
-            + "f.description, "
-            + "f.release_date, "
-            + "f.duration, "
-            + "f.mpa_id, "
-            + "m.mpa_name "
-            + "ORDER BY count(l.film_id) DESC;";
-
-        String sqlByYear = "SELECT "
-            + "f.id, "
-            + "f.name, "
-            + "f.description, "
-            + "f.release_date, "
-            + "f.duration, "
-            + "string_agg(gf.genre_id::text, ',') as genres, "
-            + "string_agg(df.director_id::text, ',') as directors, "
-            + "f.mpa_id, "
-            + "m.mpa_name "
-            + "FROM films f "
-            + "LEFT JOIN genres_films gf ON f.id = gf.film_id "
-            + "JOIN directors_films df ON f.id = df.film_id "
-            + "JOIN directors d ON d.director_id = df.director_id "
-            + "INNER JOIN mpa m ON m.id = f.mpa_id "
-            + "WHERE d.director_id = ? "
-            + "GROUP BY f.id, "
-            + "f.name, "
-            + "f.description, "
-            + "f.release_date, "
-            + "f.duration, "
-            + "f.mpa_id, "
-            + "m.mpa_name "
-            + "ORDER BY EXTRACT(YEAR FROM f.release_date);";
+        String sqlByLikes = "select " + FILM_COLUMNS + "from films f "
+            + "join directors_films df on f.id = df.film_id "
+            + "where df.director_id = ? "
+            + ORDER_BY_LIKES;
+
+        String sqlByYear = "select " + FILM_COLUMNS + "from films f "
+            + "join directors_films df on f.id = df.film_id "
+            + "where df.director_id = ? "
+            + "order by extract(year from f.release_date), f.id";
 
         List<Film> films;
 
@@ -605,7 +703,7 @@ public class FilmDbStorage implements FilmStorage {
                 films = new ArrayList<>();
         }
 
-        return films;
+        return hydrateFilms(films, false);
     }
 
     @Override
@@ -622,6 +720,7 @@ public class FilmDbStorage implements FilmStorage {
 
         int id = insert.executeAndReturnKey(directorToMap(director)).intValue();
         director.setId(id);
+        dictionaryStorage.putDirector(director);
         return director;
     }
 
@@ -638,6 +737,8 @@ public class FilmDbStorage implements FilmStorage {
             + " WHERE director_id = ?;";
 
         jdbcTemplate.update(sql, director.getName(), director.getId());
+        dictionaryStorage.putDirector(director);
+        filmCache.invalidateIf(film -> hasDirector(film, director.getId()));
 
         log.info("Updated director with id = {}", director.getId());
         return getDirector(director.getId());
@@ -647,7 +748,14 @@ public class FilmDbStorage implements FilmStorage {
     public Integer deleteDirector(Integer id) {
         log.debug("deleteDirector");
         String sql = "DELETE FROM directors WHERE director_id = ?;";
-        return jdbcTemplate.update(sql, id);
+        int result = jdbcTemplate.update(sql, id);
+        dictionaryStorage.removeDirector(id);
+        filmCache.invalidateIf(film -> hasDirector(film, id));
+        return result;
+    }
+
+    private static boolean hasDirector(Film film, Integer directorId) {
+        return film.getDirectors().stream().anyMatch(d -> d.getId().equals(directorId));
     }
 
     private static RowMapper<Director> getDirectorMapper() {
@@ -672,71 +780,47 @@ public class FilmDbStorage implements FilmStorage {
     @Override
     public List<Film> getFilmByQuery(String query, String by) {
         log.debug("getFilmByQuery");
-        StringBuilder sql = new StringBuilder("select " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   string_agg(distinct gf.genre_id::text, ',') as genres, " +
-                "   string_agg(distinct df.director_id::text, ',') as directors, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name " +
-                " from films f " +
-                " left join films_likes fl on f.id = fl.film_id " +
-                " left join genres_films gf on f.id = gf.film_id " +
-                " left join mpa m on m.id = f.mpa_id " +
-                " left join directors_films df on f.id = df.film_id " +
-                " left join directors d on df.director_id = d.director_id ");
+        String titleCondition = "lower(f.name) like ? escape '\\' ";
+        String directorCondition = "exists (select 1 from directors_films df "
+                + "join directors d on df.director_id = d.director_id "
+                + "where df.film_id = f.id and lower(d.director_name) like ? escape '\\') ";
+        //запрос ищется как подстрока, как и в индексе: % и _ из запроса - обычные символы
+        String pattern = "%" + query.toLowerCase().replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+        StringBuilder sql = new StringBuilder("select " + FILM_COLUMNS + "from films f ");
+        List<Object> params = new ArrayList<>();
         if (by.equals("title")) {
-            sql.append(" where lower(f.name) like lower('%").append(query).append("%') ");
+            sql.append("where ").append(titleCondition);
+            params.add(pattern);
         } else if (by.equals("director")) {
-            sql.append(" where lower(d.director_name) like lower('%").append(query).append("%') ");
+            sql.append("where ").append(directorCondition);
+            params.add(pattern);
         } else if (by.equals("title,director") || by.equals("director,title")) {
-            sql.append(" where lower(f.name) like lower('%").append(query).append("%') ");
-            sql.append(" or lower(d.director_name) like lower('%").append(query).append("%') ");
+            sql.append("where ").append(titleCondition).append("or ").append(directorCondition);
+            params.add(pattern);
+            params.add(pattern);
         }
-        sql.append(" group by f.id order by count(fl.film_id) desc");
+        sql.append(ORDER_BY_LIKES);
 
-        return jdbcTemplate.query(sql.toString(), (rs, rowNum) -> getFilmMapper(rs));
+        List<Film> films = jdbcTemplate.query(sql.toString(), (rs, rowNum) -> getFilmMapper(rs), params.toArray());
+
+        return hydrateFilms(films, false);
     }
 
     @Override
     public List<Film> getCommonFilms(long userId, Long friendId) {
-        String sqlQuery = "select " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   string_agg(gf.genre_id::text, ',') as genres, " +
-                "   string_agg(df.director_id::text, ',') as directors, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name " +
-                "from films f " +
-                "left join genres_films gf on f.id = gf.film_id " +
-                "left join directors_films df on f.id = df.film_id " +
-                "inner join mpa m on m.id = f.mpa_id  " +
+        String sqlQuery = "select " + FILM_COLUMNS + "from films f " +
                 "inner join ( " +
                 " SELECT fl.FILM_ID  FROM FILMS_LIKES fl WHERE fl.USER_ID = ? " +
                 " INTERSECT   " +
                 " SELECT fl.FILM_ID  FROM FILMS_LIKES fl WHERE fl.USER_ID = ?  " +
                 ") fi on f.id  = fi.film_id " +
-                " LEFT JOIN FILMS_LIKES fl2 ON f.id = fl2.film_id " +
-                "group by " +
-                "   f.id, " +
-                "   f.name, " +
-                "   f.description, " +
-                "   f.release_date, " +
-                "   f.duration, " +
-                "   f.mpa_id, " +
-                "   m.mpa_name " +
-                " ORDER BY count(fl2.film_id) desc ";
+                ORDER_BY_LIKES;
         List<Film> films = jdbcTemplate.query(sqlQuery, (rs, rowNum) -> getFilmMapper(rs), userId, friendId);
         if (films.isEmpty()) {
             return Collections.emptyList();
         }
 
-        return films;
+        return hydrateFilms(films, false);
     }
+
 }
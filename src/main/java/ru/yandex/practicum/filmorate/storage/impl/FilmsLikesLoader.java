@@ -0,0 +1,163 @@
+package ru.yandex.practicum.filmorate.storage.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.storage.memory.LikeMatrix;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Чтение всей таблицы FILMS_LIKES в заданном порядке. Диапазон ведущего столбца делится на partitions частей,
+//части читаются параллельно (каждая - своим соединением из пула) в примитивные массивы
+//и отдаются потребителю строго по порядку. В памяти одновременно не больше parallelism + 1 частей
+@Component
+@Slf4j
+public class FilmsLikesLoader {
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+    private final JdbcTemplate jdbcTemplate;
+    private final int parallelism;
+    private final int partitions;
+
+    public FilmsLikesLoader(JdbcTemplate jdbcTemplate,
+                            @Value("${filmorate.likes.loader.parallelism:4}") int parallelism,
+                            @Value("${filmorate.likes.loader.partitions:32}") int partitions,
+                            @Value("${filmorate.likes.loader.fetch-size:10000}") int fetchSize) {
+        if (parallelism <= 0 || partitions <= 0) {
+            throw new IllegalArgumentException("likes loader parallelism and partitions should be positive");
+        }
+        //отдельный шаблон, чтобы размер выборки не менялся у общего
+        this.jdbcTemplate = new JdbcTemplate(jdbcTemplate.getDataSource());
+        this.jdbcTemplate.setFetchSize(fetchSize);
+        this.parallelism = parallelism;
+        this.partitions = partitions;
+    }
+
+    public enum Order {
+        BY_USER("user_id", "film_id"),
+        BY_FILM("film_id", "user_id");
+
+        private final String leading;
+        private final String trailing;
+
+        Order(String leading, String trailing) {
+            this.leading = leading;
+            this.trailing = trailing;
+        }
+    }
+
+    //обе сортировки покрыты индексами: PK (film_id, user_id) и films_likes_user_idx (user_id, film_id)
+    public long forEach(Order order, LikeMatrix.LikeConsumer sink) {
+        log.debug("forEach, order {}", order);
+        long startedAt = System.currentTimeMillis();
+        long[] bounds = jdbcTemplate.queryForObject("select min(" + order.leading + "), max(" + order.leading
+                        + ") from films_likes",
+                (rs, rowNum) -> rs.getObject(1) == null ? null : new long[]{rs.getLong(1), rs.getLong(2)});
+        if (bounds == null) {
+            return 0;
+        }
+        List<long[]> ranges = split(bounds[0], bounds[1]);
+        String sql = "select user_id, film_id from films_likes where " + order.leading + " between ? and ? "
+                + "order by " + order.leading + ", " + order.trailing;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, ranges.size()), runnable -> {
+            Thread thread = new Thread(runnable, "films-likes-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicInteger done = new AtomicInteger();
+        Deque<Future<Chunk>> pending = new ArrayDeque<>();
+        long rows = 0;
+        long progressAt = startedAt;
+        try {
+            //parallelism частей в работе или готовы, ещё одна - у потребителя; на место взятой сразу ставится новая
+            int next = 0;
+            while (next < ranges.size() && pending.size() < parallelism) {
+                pending.add(submit(executor, sql, ranges.get(next++), done));
+            }
+            while (!pending.isEmpty()) {
+                Chunk chunk = pending.poll().get();
+                if (next < ranges.size()) {
+                    pending.add(submit(executor, sql, ranges.get(next++), done));
+                }
+                for (int i = 0; i < chunk.size; i++) {
+                    sink.accept(chunk.userIds[i], chunk.filmIds[i]);
+                }
+                rows += chunk.size;
+                long now = System.currentTimeMillis();
+                if (now - progressAt >= PROGRESS_INTERVAL_MILLIS) {
+                    progressAt = now;
+                    log.info("Loading films likes {}, partitions {}/{}, rows {}, {} rows/s", order, done.get(),
+                            ranges.size(), rows, throughput(rows, now - startedAt));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Films likes loading interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Films likes loading failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        long millis = System.currentTimeMillis() - startedAt;
+        log.info("Films likes loaded {}, partitions {}, threads {}, rows {}, {} ms, {} rows/s", order,
+                ranges.size(), Math.min(parallelism, ranges.size()), rows, millis, throughput(rows, millis));
+
+        return rows;
+    }
+
+    //равные по ширине диапазоны [from, to] ведущего столбца
+    private List<long[]> split(long min, long max) {
+        long step = (max - min) / partitions + 1;
+        List<long[]> ranges = new ArrayList<>(partitions);
+        for (long from = min; from <= max; from += step) {
+            ranges.add(new long[]{from, Math.min(max, from + step - 1)});
+        }
+
+        return ranges;
+    }
+
+    private Future<Chunk> submit(ExecutorService executor, String sql, long[] range, AtomicInteger done) {
+        return executor.submit(() -> {
+            Chunk chunk = new Chunk();
+            jdbcTemplate.query(sql, (RowCallbackHandler) rs -> chunk.add(rs.getLong(1), rs.getLong(2)),
+                    range[0], range[1]);
+            done.incrementAndGet();
+            return chunk;
+        });
+    }
+
+    private static long throughput(long rows, long millis) {
+        return millis == 0 ? rows : rows * 1000 / millis;
+    }
+
+    private static class Chunk {
+        private long[] userIds = new long[1024];
+        private long[] filmIds = new long[1024];
+        private int size;
+
+        private void add(long userId, long filmId) {
+            if (size == userIds.length) {
+                userIds = Arrays.copyOf(userIds, size * 2);
+                filmIds = Arrays.copyOf(filmIds, size * 2);
+            }
+            userIds[size] = userId;
+            filmIds[size] = filmId;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ru.yandex.practicum.filmorate.storage.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Множества существующих id пользователей, фильмов и отзывов - плотные битовые массивы по id.
+//Отрицательный ответ точный и не идёт в БД: бит ставится сразу после вставки строки, снимается после удаления.
+//Положительный ответ для пользователей и фильмов точный (удаляются только через deleteUser/deleteFilm),
+//для отзывов - нет: они удаляются каскадом вместе с пользователем или фильмом, такие id проверяет сам запрос
+@Component
+@Slf4j
+public class IdIndex {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final boolean enabled;
+    private final Map<Kind, IdSet> sets = new EnumMap<>(Kind.class);
+
+    public IdIndex(JdbcTemplate jdbcTemplate, @Value("${filmorate.id-index.enabled:true}") boolean enabled) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.enabled = enabled;
+        for (Kind kind : Kind.values()) {
+            sets.put(kind, new IdSet());
+        }
+    }
+
+    public enum Kind {
+        USERS("users"),
+        FILMS("films"),
+        REVIEWS("reviews");
+
+        private final String table;
+
+        Kind(String table) {
+            this.table = table;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //false - id точно нет; выключенный индекс отвечает true, проверка остаётся за БД
+    public boolean mightContain(Kind kind, Long id) {
+        if (!enabled) {
+            return true;
+        }
+        if (id == null) {
+            return false;
+        }
+        IdSet set = sets.get(kind);
+        ensureLoaded(kind, set);
+
+        return set.contains(id);
+    }
+
+    //вызывается после вставки строки, до того как id отдан клиенту
+    public void add(Kind kind, long id) {
+        IdSet set = sets.get(kind);
+        synchronized (set) {
+            if (set.loaded) {
+                set.set(id, true);
+            }
+        }
+    }
+
+    public void remove(Kind kind, long id) {
+        IdSet set = sets.get(kind);
+        synchronized (set) {
+            if (set.loaded) {
+                set.set(id, false);
+            }
+        }
+    }
+
+    private void ensureLoaded(Kind kind, IdSet set) {
+        if (set.loaded) {
+            return;
+        }
+        synchronized (set) {
+            if (set.loaded) {
+                return;
+            }
+            long[] count = {0};
+            jdbcTemplate.query("select id from " + kind.table, (RowCallbackHandler) rs -> {
+                set.set(rs.getLong(1), true);
+                count[0]++;
+            });
+            set.loaded = true;
+            log.info("Id index loaded, {} {}", kind.table, count[0]);
+        }
+    }
+
+    //чтение без блокировок: запись идёт под монитором множества, при росте массив копируется и заменяется целиком.
+    //id больше MAX_DENSE_ID (массив не больше 256 МБ) хранятся в отдельном множестве, ответ по ним тоже точный
+    private static class IdSet {
+        private static final long MAX_DENSE_ID = Integer.MAX_VALUE;
+        private final Set<Long> sparse = ConcurrentHashMap.newKeySet();
+        private volatile AtomicLongArray words = new AtomicLongArray(1024);
+        private volatile boolean loaded;
+
+        private boolean contains(long id) {
+            if (id < 0) {
+                return false;
+            }
+            if (id > MAX_DENSE_ID) {
+                return sparse.contains(id);
+            }
+            AtomicLongArray current = words;
+            long word = id >>> 6;
+            return word < current.length() && (current.get((int) word) & (1L << id)) != 0;
+        }
+
+        //только под монитором множества
+        private void set(long id, boolean value) {
+            if (id < 0) {
+                return;
+            }
+            if (id > MAX_DENSE_ID) {
+                if (value) {
+                    sparse.add(id);
+                } else {
+                    sparse.remove(id);
+                }
+                return;
+            }
+            int word = (int) (id >>> 6);
+            AtomicLongArray current = words;
+            if (word >= current.length()) {
+                if (!value) {
+                    return;
+                }
+                AtomicLongArray grown = new AtomicLongArray((int) Math.min(MAX_DENSE_ID / 64 + 1,
+                        Math.max(word + 1L, current.length() * 2L)));
+                for (int i = 0; i < current.length(); i++) {
+                    grown.set(i, current.get(i));
+                }
+                words = grown;
+                current = grown;
+            }
+            long bit = 1L << id;
+            current.set(word, value ? current.get(word) | bit : current.get(word) & ~bit);
+        }
+    }
+}
@@ -2,94 +2,158 @@ package ru.yandex.practicum.filmorate.storage.impl;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.util.Pair;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Component;
 import ru.yandex.practicum.filmorate.storage.RecommendationStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FilmSimilarityIndex;
+import ru.yandex.practicum.filmorate.storage.memory.LikeMatrix;
+import ru.yandex.practicum.filmorate.storage.memory.MinHashIndex;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.*;
 
 @Component
 @Slf4j
 public class RecommendationDbStorage implements RecommendationStorage {
 
-
+    private static final int NEIGHBOURS_LIMIT = 1;
     private final JdbcTemplate jdbcTemplate;
+    private final FilmsLikesLoader filmsLikesLoader;
+    private final LikeMatrix likeMatrix;
+    private final MinHashIndex minHashIndex;
+    private final FilmSimilarityIndex filmSimilarityIndex;
+    private final LikeMatrix.LikeSource likeSource = new DbLikeSource();
 
     @Autowired
-    public RecommendationDbStorage(JdbcTemplate jdbcTemplate) {
+    public RecommendationDbStorage(JdbcTemplate jdbcTemplate, FilmsLikesLoader filmsLikesLoader, LikeMatrix likeMatrix,
+                                   MinHashIndex minHashIndex, FilmSimilarityIndex filmSimilarityIndex) {
         this.jdbcTemplate = jdbcTemplate;
+        this.filmsLikesLoader = filmsLikesLoader;
+        this.likeMatrix = likeMatrix;
+        this.minHashIndex = minHashIndex;
+        this.filmSimilarityIndex = filmSimilarityIndex;
     }
 
 
     @Override
     public List<Long> recommendFilms(Long targetUserId) {
+        log.debug("recommendFilms, userId {}", targetUserId);
+        // Матрица лайков загружается из БД один раз, дальше обновляется из FilmService
+        likeMatrix.ensureLoaded(likeSource);
+        long[] targetFilms = likeMatrix.getUserFilms(targetUserId);
 
-        // Создаём мапу где ключ-id пользователя, а значение лист с лайкнутыми фильмами
-        Map<Long, List<Long>> userAndFilms = usersAndLikedFilms();
-
-        if (!userAndFilms.containsKey(targetUserId)) {
+        if (targetFilms.length == 0) {
             log.info("Target user didn't put a like");
             return List.of();
         }
 
-        // Создаём мапу где ключ-id пользователя, а значение количество пересечений
-        Map<Long, Integer> intersectionCounts = new HashMap<>();
+        // Ближайший сосед - пользователь с наибольшим числом общих лайков, при равенстве - с меньшим id.
+        // Если общих лайков нет ни с кем, берём пользователя с наименьшим id, как и раньше.
+        // В приближённом режиме сосед ищется среди кандидатов MinHash, без них - точным поиском
+        List<Long> neighbours = minHashIndex.isEnabled()
+                ? findApproximateNeighbours(targetUserId, targetFilms, NEIGHBOURS_LIMIT)
+                : List.of();
+        if (neighbours.isEmpty()) {
+            neighbours = findNeighbours(targetUserId, targetFilms, NEIGHBOURS_LIMIT);
+        }
+        long mostSimilarUser = neighbours.isEmpty() ? likeMatrix.firstUserExcept(targetUserId) : neighbours.get(0);
 
-        // Находим количество пересечений лайков для каждой пары пользователей
-        for (Long userId : userAndFilms.keySet()) {
-            if (!userId.equals(targetUserId)) {
-                Set<Long> intersection = new HashSet<>(userAndFilms.get(userId));
-                intersection.retainAll(userAndFilms.get(targetUserId));
-                intersectionCounts.put(userId, intersection.size());
+        List<Long> result = new ArrayList<>();
+        //Добавляем фильмы наиболее похожего пользователя, кроме фильмов таргет пользователя
+        for (long filmId : likeMatrix.getUserFilms(mostSimilarUser)) {
+            if (Arrays.binarySearch(targetFilms, filmId) < 0) {
+                result.add(filmId);
             }
         }
 
+        return result;
+    }
 
-        // Создаём список пользователей
-        List<Long> sortedUsers = new ArrayList<>(userAndFilms.keySet());
-        // Удаляем нашего таргет пользователя, что бы не получить null
-        sortedUsers.remove(targetUserId);
-        // Сортируем пользователей по убыванию количества пересечений
-        sortedUsers.sort(Comparator.comparingInt(intersectionCounts::get).reversed());
+    @Override
+    public List<Long> findSimilarFilms(Long filmId, int count) {
+        log.debug("findSimilarFilms, filmId {}, count {}", filmId, count);
+        likeMatrix.ensureLoaded(likeSource);
 
-        // Находим первого по кол-ву совпадений пользователя
-        Long mostSimilarUser = sortedUsers.stream().findFirst().orElse(-1L);
+        return filmSimilarityIndex.getSimilar(filmId, count);
+    }
 
-        List<Long> result = new ArrayList<>();
-        //Добавляем фильмы наиболее похожего пользователя
-        result.addAll(Optional.ofNullable(userAndFilms.get(mostSimilarUser)).orElse(new ArrayList<>()));
-        //удаляем фильмы таргет пользователя
-        result.removeAll(userAndFilms.get(targetUserId));
+    // Число общих лайков считается только для пользователей, лайкнувших хотя бы один фильм таргета,
+    // лучшие limit соседей отбираются кучей ограниченного размера
+    private List<Long> findNeighbours(long targetUserId, long[] targetFilms, int limit) {
+        Map<Long, int[]> overlaps = new HashMap<>();
+        for (long filmId : targetFilms) {
+            for (long userId : likeMatrix.getFilmUsers(filmId)) {
+                if (userId != targetUserId) {
+                    overlaps.computeIfAbsent(userId, id -> new int[1])[0]++;
+                }
+            }
+        }
 
-        return result;
+        return topNeighbours(overlaps, limit);
     }
 
+    // Точное число общих лайков считается только для кандидатов из LSH-корзин таргета
+    private List<Long> findApproximateNeighbours(long targetUserId, long[] targetFilms, int limit) {
+        Map<Long, int[]> overlaps = new HashMap<>();
+        for (Long userId : minHashIndex.getCandidates(targetUserId)) {
+            int overlap = LikeMatrix.intersectionSize(likeMatrix.getUserFilms(userId), targetFilms);
+            if (overlap > 0) {
+                overlaps.put(userId, new int[]{overlap});
+            }
+        }
 
-    public Map<Long, List<Long>> usersAndLikedFilms() {
-        String sql = "SELECT * FROM FILMS_LIKES";
-        List<Pair<Long, Long>> pairsUsersAndFilms = jdbcTemplate.query(sql, (rs, rowNum) -> mapUserIdAndFilmId(rs));
-        Map<Long, List<Long>> usersAndLikedFilms = new HashMap<>();
+        return topNeighbours(overlaps, limit);
+    }
 
-        for (Pair<Long, Long> pairsUsersAndFilm : pairsUsersAndFilms) {
-            Long userId = pairsUsersAndFilm.getFirst();
-            Long filmId = pairsUsersAndFilm.getSecond();
+    private List<Long> topNeighbours(Map<Long, int[]> overlaps, int limit) {
+        // в вершине кучи - худший из отобранных соседей
+        Comparator<Map.Entry<Long, int[]>> worstFirst = Comparator
+                .comparingInt((Map.Entry<Long, int[]> entry) -> entry.getValue()[0])
+                .thenComparing(Map.Entry::getKey, Comparator.reverseOrder());
+        PriorityQueue<Map.Entry<Long, int[]>> heap = new PriorityQueue<>(limit + 1, worstFirst);
+        for (Map.Entry<Long, int[]> entry : overlaps.entrySet()) {
+            heap.add(entry);
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
 
-            usersAndLikedFilms.computeIfAbsent(userId, k -> new ArrayList<>()).add(filmId);
+        LinkedList<Long> neighbours = new LinkedList<>();
+        while (!heap.isEmpty()) {
+            neighbours.addFirst(heap.poll().getKey());
         }
 
-        return usersAndLikedFilms;
+        return neighbours;
     }
 
+    private class DbLikeSource implements LikeMatrix.LikeSource {
+
+        @Override
+        public void forEachByUser(LikeMatrix.LikeConsumer sink) {
+            filmsLikesLoader.forEach(FilmsLikesLoader.Order.BY_USER, sink);
+        }
+
+        @Override
+        public void forEachByFilm(LikeMatrix.LikeConsumer sink) {
+            filmsLikesLoader.forEach(FilmsLikesLoader.Order.BY_FILM, sink);
+        }
 
-    Pair<Long, Long> mapUserIdAndFilmId(ResultSet resultSet) throws SQLException {
-        Long userId = resultSet.getLong("USER_ID");
-        Long filmId = resultSet.getLong("FILM_ID");
+        @Override
+        public long[] summary() {
+            return jdbcTemplate.queryForObject("select count(1), " + pairHashSum(LikeMatrix.HASH_FACTORS[0]) + ", "
+                            + pairHashSum(LikeMatrix.HASH_FACTORS[1]) + " from films_likes",
+                    (rs, rowNum) -> new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)});
+        }
+
+        //LikeMatrix.pairHash в SQL. H2 даёт mod тип делителя, поэтому модуль приводится к bigint:
+        //иначе произведения считаются в integer и переполняются
+        private String pairHashSum(long[] factors) {
+            String modulus = "cast(" + LikeMatrix.HASH_MODULUS + " as bigint)";
+            String x = "mod(mod(mod(film_id, " + modulus + ") * " + factors[0] + ", " + modulus + ") "
+                    + "+ mod(mod(user_id, " + modulus + ") * " + factors[1] + ", " + modulus + ") + " + factors[2]
+                    + ", " + modulus + ")";
 
-        Pair pair = Pair.of(userId, filmId);
-        return pair;
+            return "nvl(sum(mod(mod(" + x + " * " + x + ", " + modulus + ") * " + x + ", " + modulus + ")), 0)";
+        }
     }
 
 }
@@ -24,9 +24,27 @@ import java.util.Optional;
 public class ReviewDbStorage implements ReviewStorage {
 
     private final JdbcTemplate jdbcTemplate;
+    private final IdIndex idIndex;
 
     private void existsReview(long filmId, long userId) {
         log.debug("existsReview, filmId {} userId {}", filmId, userId);
+        if (idIndex.isEnabled()) {
+            //фильм и пользователь проверяются по индексу, в БД остаётся только повторный отзыв
+            if (!idIndex.mightContain(IdIndex.Kind.FILMS, filmId)) {
+                log.error("Film not found!");
+                throw new NotFoundException("Film not found!");
+            }
+            if (!idIndex.mightContain(IdIndex.Kind.USERS, userId)) {
+                log.error("User not found!");
+                throw new NotFoundException("User not found!");
+            }
+            if (!jdbcTemplate.queryForList("select 1 from reviews where film_id = ? and user_id = ?",
+                    Integer.class, filmId, userId).isEmpty()) {
+                log.error("Review already exists!");
+                throw new ValidationException("Review already exists!");
+            }
+            return;
+        }
         String sql = " select " +
                 "(select count(1) from reviews where film_id = ? and user_id = ?) review_exist, " +
                 "(select count(1) from films where id = ?) film_exist, " +
@@ -48,6 +66,13 @@ public class ReviewDbStorage implements ReviewStorage {
         }
     }
 
+    //несуществующий отзыв отсекается индексом; удалённый каскадом индекс пропустит - его не найдёт сам запрос
+    private void checkReview(long reviewId) {
+        if (!idIndex.mightContain(IdIndex.Kind.REVIEWS, reviewId)) {
+            throw new NotFoundException("Review not found!");
+        }
+    }
+
     private List<Integer> existsReviewMapper(ResultSet rs) throws SQLException {
         log.debug("existsReviewMapper");
 
@@ -77,6 +102,7 @@ public class ReviewDbStorage implements ReviewStorage {
             return stmt;
         }, keyHolder);
         review.setReviewId(keyHolder.getKey().longValue());
+        idIndex.add(IdIndex.Kind.REVIEWS, review.getReviewId());
 
         return review;
     }
@@ -95,13 +121,18 @@ public class ReviewDbStorage implements ReviewStorage {
     public Integer deleteReview(long id) {
         log.debug("deleteReview");
         String sql = "delete from reviews where id=?;";
+        int result = jdbcTemplate.update(sql, id);
+        if (result > 0) {
+            idIndex.remove(IdIndex.Kind.REVIEWS, id);
+        }
 
-        return jdbcTemplate.update(sql, id);
+        return result;
     }
 
     @Override
     public Review getReview(long id) {
         log.debug("getReview, filmId {}", id);
+        checkReview(id);
         String sql = "select r.id, " +
                 " r.review, " +
                 " r.is_positive, " +
@@ -184,16 +215,14 @@ public class ReviewDbStorage implements ReviewStorage {
 
     private Review addLikeDislikeReview(long reviewId, long userId, boolean is_useful) {
         log.debug("addLikeDislikeReview");
-        String sqlQuery = "insert into review_estimation(review_id, user_id, is_useful) " +
+        checkReview(reviewId);
+        if (!idIndex.mightContain(IdIndex.Kind.USERS, userId)) {
+            throw new NotFoundException("User not found!");
+        }
+        //оценка пользователя одна: повторная заменяет предыдущую
+        String sqlQuery = "merge into review_estimation(review_id, user_id, is_useful) key(review_id, user_id) " +
                 "values (?, ?, ?)";
-        KeyHolder keyHolder = new GeneratedKeyHolder();
-        jdbcTemplate.update(connection -> {
-            PreparedStatement stmt = connection.prepareStatement(sqlQuery, new String[]{"id"});
-            stmt.setLong(1, reviewId);
-            stmt.setLong(2, userId);
-            stmt.setBoolean(3, is_useful);
-            return stmt;
-        }, keyHolder);
+        jdbcTemplate.update(sqlQuery, reviewId, userId, is_useful);
 
         return getReview(reviewId);
     }
@@ -213,6 +242,7 @@ public class ReviewDbStorage implements ReviewStorage {
     }
 
     private Review deleteLikeDislikeReview(long reviewId, long userId, boolean is_useful) {
+        checkReview(reviewId);
         String sqlQuery = "delete from review_estimation where review_id = ? and user_id = ? and is_useful = ? ";
         jdbcTemplate.update(sqlQuery, reviewId, userId, is_useful);
 
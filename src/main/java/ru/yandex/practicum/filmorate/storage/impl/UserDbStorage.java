@@ -2,12 +2,16 @@ package ru.yandex.practicum.filmorate.storage.impl;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.practicum.filmorate.exception.NotFoundException;
 import ru.yandex.practicum.filmorate.exception.ValidationException;
+import ru.yandex.practicum.filmorate.model.FilmLikes;
 import ru.yandex.practicum.filmorate.model.User;
 import ru.yandex.practicum.filmorate.storage.UserStorage;
 
@@ -19,6 +23,8 @@ import java.time.LocalDate;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 @Component("userDbStorage")
 @RequiredArgsConstructor
@@ -26,6 +32,7 @@ import java.util.Optional;
 public class UserDbStorage implements UserStorage {
 
     private final JdbcTemplate jdbcTemplate;
+    private final IdIndex idIndex;
 
     @Override
     public List<User> getAllUsers() {
@@ -39,6 +46,14 @@ public class UserDbStorage implements UserStorage {
         return users;
     }
 
+    @Override
+    public List<User> getUsersPage(long afterId, int limit) {
+        log.debug("getUsersPage, afterId {}, limit {}", afterId, limit);
+        String sql = "select * from users where id > ? order by id limit ?";
+
+        return jdbcTemplate.query(sql, (rs, rowNum) -> getUserMapper(rs), afterId, limit);
+    }
+
     @Override
     public User getUser(Long userId) {
         log.debug("getUser, userId {}", userId);
@@ -51,6 +66,19 @@ public class UserDbStorage implements UserStorage {
         return users.get(0);
     }
 
+    @Override
+    public List<User> getUsersByIds(List<Long> userIds) {
+        log.debug("getUsersByIds, size {}", userIds.size());
+        if (userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Long[] ids = userIds.toArray(new Long[0]);
+        String sql = "select * from users where id = any(?) order by id";
+
+        return jdbcTemplate.query(sql, ps -> ps.setArray(1, ps.getConnection().createArrayOf("BIGINT", ids)),
+                (rs, rowNum) -> getUserMapper(rs));
+    }
+
     private User getUserMapper(ResultSet rs) throws SQLException {
         log.debug("getUserMapper");
         return new User(rs.getLong("id"), rs.getString("email"),
@@ -75,6 +103,7 @@ public class UserDbStorage implements UserStorage {
             return stmt;
         }, keyHolder);
         userValidated.setId(keyHolder.getKey().longValue());
+        idIndex.add(IdIndex.Kind.USERS, userValidated.getId());
 
         return userValidated;
     }
@@ -98,10 +127,10 @@ public class UserDbStorage implements UserStorage {
         log.debug("getUserFriends, userId {}", userId);
         //проверка на то существует ли пользователь(тесты требуют)
         existsUser(userId, "пользователь не существует", 0);
-        String sql = "select uf.id, uf.email, uf.login, uf.name, uf.birthday from users uf where uf.id IN ( \n" +
-                "SELECT f.FRIEND_ID\n" +
-                "FROM users u INNER JOIN friends f ON u.ID = f.USER_ID\n" +
-                "WHERE f.FRIENDSHIP_ID = 1 and u.ID = ?)";
+        String sql = "select uf.id, uf.email, uf.login, uf.name, uf.birthday from friends f \n" +
+                "join users uf on uf.id = f.friend_id \n" +
+                "where f.user_id = ? and f.friendship_id = 1 \n" +
+                "order by uf.id";
         List<User> users = jdbcTemplate.query(sql, (rs, rowNum) -> getUserMapper(rs), userId);
         if (users.isEmpty()) {
             Collections.emptyList();
@@ -110,24 +139,22 @@ public class UserDbStorage implements UserStorage {
         return users;
     }
 
+    @Override
+    public void forEachFriendship(BiConsumer<Long, Long> action) {
+        log.debug("forEachFriendship");
+        jdbcTemplate.query("select user_id, friend_id from friends where friendship_id = 1 "
+                        + "order by user_id, friend_id",
+                (RowCallbackHandler) rs -> action.accept(rs.getLong("USER_ID"), rs.getLong("FRIEND_ID")));
+    }
+
     public List<User> findCommonFriends(Long userId, Long otherId) {
         log.debug("UserId {}, OtherId {}", userId, otherId);
-        String sql = "SELECT \n" +
-                "DISTINCT \n" +
-                "id, email, login, name, birthday\n" +
-                "from\n" +
-                "(\n" +
-                "select uf.id, uf.email, uf.login, uf.name, uf.birthday from users uf where uf.id IN ( \n" +
-                "                SELECT f.FRIEND_ID\n" +
-                "                FROM users u INNER JOIN friends f ON u.ID = f.USER_ID\n" +
-                "                WHERE f.FRIENDSHIP_ID = 1 and u.ID = ?)\n" +
-                "INTERSECT \n" +
-                "select uf.id, uf.email, uf.login, uf.name, uf.birthday from users uf where uf.id IN ( \n" +
-                "                SELECT f.FRIEND_ID\n" +
-                "                FROM users u INNER JOIN friends f ON u.ID = f.USER_ID\n" +
-                "                WHERE f.FRIENDSHIP_ID = 1 and u.ID = ?)\n" +
-                ") ORDER BY id";
-        List<User> users = jdbcTemplate.query(sql, (rs, rowNum) -> getUserMapper(rs), userId, otherId);
+        String sql = "select u.id, u.email, u.login, u.name, u.birthday from users u where u.id in ( \n" +
+                "select f1.friend_id from friends f1 \n" +
+                "join friends f2 on f2.user_id = ? and f2.friend_id = f1.friend_id and f2.friendship_id = 1 \n" +
+                "where f1.user_id = ? and f1.friendship_id = 1) \n" +
+                "order by u.id";
+        List<User> users = jdbcTemplate.query(sql, (rs, rowNum) -> getUserMapper(rs), otherId, userId);
         if (users.isEmpty()) {
             Collections.emptyList();
         }
@@ -135,8 +162,26 @@ public class UserDbStorage implements UserStorage {
         return users;
     }
 
+    @Override
+    public boolean containsUser(Long userId) {
+        log.debug("containsUser, userId {}", userId);
+        if (idIndex.isEnabled()) {
+            return idIndex.mightContain(IdIndex.Kind.USERS, userId);
+        }
+
+        return jdbcTemplate.queryForObject("select count(1) from users where id = ?", Integer.class, userId) > 0;
+    }
+
     private void existsUser(Long userID, String errorMessage, Integer countValue) {
         log.debug("existsUser, userId {}", userID);
+        //countValue 0 - пользователь должен быть, 1 - не должен; индекс отвечает без запроса в БД
+        if (idIndex.isEnabled()) {
+            if (idIndex.mightContain(IdIndex.Kind.USERS, userID) == (countValue == 1)) {
+                log.error(errorMessage);
+                throw new NotFoundException(errorMessage);
+            }
+            return;
+        }
         String sql = "select count(1) from users where id = ?";
         List<Integer> existsUser = jdbcTemplate.query(sql, (rs, rowNum) -> existsUserMapper(rs), userID);
         if (existsUser.get(0) == countValue) {
@@ -151,8 +196,9 @@ public class UserDbStorage implements UserStorage {
         return rs.getInt(1);
     }
 
+    //confirmed получает строку (пользователь, друг), которая этим вызовом стала подтверждённой
     @Override
-    public User addFriend(Long userId, Long friendId) {
+    public User addFriend(Long userId, Long friendId, BiConsumer<Long, Long> confirmed) {
         log.debug("addFriend, userId {}, friendId {}", userId, friendId);
         existsUser(userId, "User not found!", 0);
         existsUser(friendId, "Friend not found!", 0);
@@ -166,7 +212,13 @@ public class UserDbStorage implements UserStorage {
             // нет дружбы
             String sqlQuery = "insert into friends(user_id, friend_id, friendship_id) " +
                     "values (?, ?, ?)";
-            jdbcTemplate.update(sqlQuery, userId, friendId, 1);
+            try {
+                jdbcTemplate.update(sqlQuery, userId, friendId, 1);
+                confirmed.accept(userId, friendId);
+            } catch (DuplicateKeyException e) {
+                //дружба добавлена параллельным запросом
+                log.debug("Friendship already added, userId {}, friendId {}", userId, friendId);
+            }
 
             return getUser(friendId);
         } else if (existsFriendship.get(0) == 1) {
@@ -183,10 +235,12 @@ public class UserDbStorage implements UserStorage {
             return getUser(friendId);
         } else if (existsFriendship.get(0) == 200) {
             //не подтвержденная
-            String sqlQuery = "update friend set " +
-                    "friendship_id = 2" +
+            String sqlQuery = "update friends set " +
+                    "friendship_id = 1 " +
                     "where user_id = ? and friend_id = ? ";
-            jdbcTemplate.update(sqlQuery, friendId, userId);
+            if (jdbcTemplate.update(sqlQuery, friendId, userId) > 0) {
+                confirmed.accept(friendId, userId);
+            }
 
             return getUser(friendId);
         }
@@ -194,22 +248,22 @@ public class UserDbStorage implements UserStorage {
         throw new NotFoundException("Error adding friendship!");
     }
 
+    //removed получает удалённую строку (пользователь, друг)
     @Override
-    public User deleteFriend(Long userId, Long friendId) {
+    public User deleteFriend(Long userId, Long friendId, BiConsumer<Long, Long> removed) {
         log.debug("deleteFriend, userId {}, friendId {}", userId, friendId);
         existsUser(userId, "User not found!", 0);
         existsUser(friendId, "Friend not found!", 0);
-        String sql = "select id from friends where user_id = ? and friend_id = ? \n" +
-                "union all select id from friends where friend_id = ? and user_id = ? ";
-        List<Integer> existsFriendship = jdbcTemplate.query(sql, (rs, rowNum) -> existsUserMapper(rs),
-                userId, friendId, userId, friendId);
-
-        if (existsFriendship.isEmpty()) {
+        //удаляем связь в прямом направлении, если её нет - в обратном
+        String sqlQuery = "delete from friends where user_id = ? and friend_id = ? ";
+        if (jdbcTemplate.update(sqlQuery, userId, friendId) > 0) {
+            removed.accept(userId, friendId);
+        } else if (jdbcTemplate.update(sqlQuery, friendId, userId) > 0) {
+            removed.accept(friendId, userId);
+        } else {
             // нет дружбы
             throw new NotFoundException("Error adding friendship!");
         }
-        String sqlQuery = "delete from friends where id = ? ";
-        jdbcTemplate.update(sqlQuery, existsFriendship.get(0));
 
         return getUser(friendId);
     }
@@ -230,10 +284,25 @@ public class UserDbStorage implements UserStorage {
         return userO.get();
     }
 
+    //likesChanged получает новые счётчики фильмов, которые лайкал пользователь
     @Override
-    public Integer deleteUser(Long userId) {
+    @Transactional
+    public Integer deleteUser(Long userId, Consumer<FilmLikes> likesChanged) {
+        //лайки пользователя удалятся каскадом - заранее уменьшаем счётчики фильмов
+        List<FilmLikes> likes = jdbcTemplate.query("select id, likes_count, likes_version from final table ("
+                        + "update films f set likes_version = likes_version + 1, likes_count = likes_count - "
+                        + "(select count(1) from films_likes fl where fl.film_id = f.id and fl.user_id = ?) "
+                        + "where f.id in (select film_id from films_likes where user_id = ?))",
+                (rs, rowNum) -> new FilmLikes(rs.getLong("id"), rs.getLong("likes_count"),
+                        rs.getLong("likes_version")),
+                userId, userId);
         String sql = "DELETE FROM USERS WHERE id=?;";
+        int result = jdbcTemplate.update(sql, userId);
+        if (result > 0) {
+            idIndex.remove(IdIndex.Kind.USERS, userId);
+            likes.forEach(likesChanged);
+        }
 
-        return jdbcTemplate.update(sql, userId);
+        return result;
     }
 }
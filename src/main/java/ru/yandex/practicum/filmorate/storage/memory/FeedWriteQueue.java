@@ -0,0 +1,288 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Feed;
+import ru.yandex.practicum.filmorate.model.FeedWriterStats;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+//Асинхронная запись событий ленты: очередь без блокировок, ограниченная счётчиком capacity,
+//один фоновый поток забирает из неё до batchSize событий и пишет их одной пачкой.
+//Порядок записи совпадает с порядком добавления, поэтому id событий растут так же, как раньше
+@Component
+@Slf4j
+public class FeedWriteQueue {
+
+    private final boolean enabled;
+    private final int capacity;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final Overflow overflow;
+    private final Object lifecycleMonitor = new Object();
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    //сколько событий каждого пользователя ещё не записано; пользователь удаляется, когда счётчик доходит до нуля
+    private final Map<Long, Integer> pendingByUser = new ConcurrentHashMap<>();
+    private final Object progressMonitor = new Object();
+    private final AtomicInteger queued = new AtomicInteger();
+    //добавленные, но ещё не записанные события, включая пачку, которую пишет поток
+    private final AtomicInteger unwritten = new AtomicInteger();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong callerWrites = new AtomicLong();
+    private volatile long maxLagNanos;
+    private volatile int lastBatchSize;
+    private volatile Consumer<List<Feed>> writer;
+    private volatile boolean running;
+    private volatile Thread writerThread;
+
+    public FeedWriteQueue(@Value("${filmorate.feed.writer.async:true}") boolean enabled,
+                          @Value("${filmorate.feed.writer.capacity:10000}") int capacity,
+                          @Value("${filmorate.feed.writer.batch-size:500}") int batchSize,
+                          @Value("${filmorate.feed.writer.flush-interval:50ms}") Duration flushInterval,
+                          @Value("${filmorate.feed.writer.overflow:block}") Overflow overflow) {
+        if (capacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("feed writer capacity and batch size should be positive");
+        }
+        this.enabled = enabled;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = flushInterval.toNanos();
+        this.overflow = overflow;
+    }
+
+    //что делать, если очередь заполнена: ждать места, записать событие в вызывающем потоке
+    //(его id окажется меньше, чем у ждущих в очереди) или отбросить его
+    public enum Overflow {
+        BLOCK,
+        CALLER_RUNS,
+        DROP
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void start(Consumer<List<Feed>> writer) {
+        synchronized (lifecycleMonitor) {
+            if (!enabled || writerThread != null) {
+                return;
+            }
+            log.info("Feed async writer enabled, capacity {}, batch size {}, overflow {}",
+                    capacity, batchSize, overflow);
+            this.writer = writer;
+            running = true;
+            writerThread = new Thread(this::drainLoop, "feed-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    //событие получает время в момент добавления; false - отброшено по политике DROP
+    public boolean add(Feed feed) {
+        if (!running) {
+            writeInCaller(feed);
+            return true;
+        }
+        while (true) {
+            int size = queued.get();
+            if (size < capacity) {
+                if (queued.compareAndSet(size, size + 1)) {
+                    break;
+                }
+                continue;
+            }
+            switch (overflow) {
+                case DROP:
+                    dropped.incrementAndGet();
+                    log.warn("Feed writer queue is full, event dropped, userId {}", feed.getUserId());
+                    return false;
+                case CALLER_RUNS:
+                    writeInCaller(feed);
+                    return true;
+                default:
+                    LockSupport.unpark(writerThread);
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    if (!running) {
+                        writeInCaller(feed);
+                        return true;
+                    }
+            }
+        }
+        unwritten.incrementAndGet();
+        enqueued.incrementAndGet();
+        pendingByUser.merge(feed.getUserId(), 1, Integer::sum);
+        queue.add(new Entry(feed, System.nanoTime()));
+
+        return true;
+    }
+
+    //ждёт, пока будут записаны события пользователя; чтение своей ленты видит свои же изменения.
+    //Незаписанные события других пользователей чтение не задерживают
+    public void awaitWritten(long userId, Duration timeout) {
+        if (!running || !pendingByUser.containsKey(userId)) {
+            return;
+        }
+        LockSupport.unpark(writerThread);
+        long deadline = System.nanoTime() + timeout.toNanos();
+        synchronized (progressMonitor) {
+            while (pendingByUser.containsKey(userId)) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    log.warn("Feed writer is lagging, reading feed without pending events, userId {}", userId);
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(progressMonitor, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public FeedWriterStats getStats() {
+        Entry head = queue.peek();
+        long oldestPendingNanos = head != null ? System.nanoTime() - head.enqueuedAt : 0;
+
+        return FeedWriterStats.builder()
+                .enqueued(enqueued.get())
+                .written(written.get())
+                .batches(batches.get())
+                .dropped(dropped.get())
+                .failed(failed.get())
+                .callerWrites(callerWrites.get())
+                .pending(unwritten.get())
+                .capacity(capacity)
+                .lastBatchSize(lastBatchSize)
+                .lagMillis(TimeUnit.NANOSECONDS.toMillis(oldestPendingNanos))
+                .maxLagMillis(TimeUnit.NANOSECONDS.toMillis(maxLagNanos))
+                .build();
+    }
+
+    //остановка потока: он дописывает всё, что уже в очереди; новые события пишутся в вызывающем потоке
+    public void stop() {
+        synchronized (lifecycleMonitor) {
+            if (writerThread == null) {
+                return;
+            }
+            running = false;
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (writerThread.isAlive()) {
+                log.warn("Feed writer did not drain in time, pending {}", unwritten.get());
+                return;
+            }
+            //события, добавленные одновременно с остановкой потока
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                queued.decrementAndGet();
+                List<Feed> batch = List.of(entry.feed);
+                write(batch);
+                markWritten(batch);
+            }
+            writerThread = null;
+            log.info("Feed writer drained, written {}", written.get());
+        }
+    }
+
+    private void drainLoop() {
+        List<Feed> batch = new ArrayList<>(batchSize);
+        while (true) {
+            long firstEnqueuedAt = 0;
+            Entry entry;
+            while (batch.size() < batchSize && (entry = queue.poll()) != null) {
+                if (batch.isEmpty()) {
+                    firstEnqueuedAt = entry.enqueuedAt;
+                }
+                batch.add(entry.feed);
+            }
+            if (!batch.isEmpty()) {
+                queued.addAndGet(-batch.size());
+                maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - firstEnqueuedAt);
+                write(batch);
+                markWritten(batch);
+                batch.clear();
+            }
+            if (queue.isEmpty()) {
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(flushIntervalNanos);
+            }
+        }
+    }
+
+    //при ошибке пачка пишется по одному событию: событие удалённого за это время пользователя
+    //не должно терять остальные
+    private void write(List<Feed> batch) {
+        try {
+            writer.accept(batch);
+            written.addAndGet(batch.size());
+            batches.incrementAndGet();
+            lastBatchSize = batch.size();
+        } catch (RuntimeException e) {
+            log.warn("Feed batch write failed, writing {} events one by one", batch.size(), e);
+            for (Feed feed : batch) {
+                try {
+                    writer.accept(List.of(feed));
+                    written.incrementAndGet();
+                } catch (RuntimeException ex) {
+                    failed.incrementAndGet();
+                    log.error("Feed event lost, userId {}, entityId {}", feed.getUserId(), feed.getEntityId(), ex);
+                }
+            }
+        }
+    }
+
+    //потерянные при записи события тоже считаются обработанными: ждать их бессмысленно
+    private void markWritten(List<Feed> batch) {
+        unwritten.addAndGet(-batch.size());
+        for (Feed feed : batch) {
+            pendingByUser.computeIfPresent(feed.getUserId(), (userId, count) -> count == 1 ? null : count - 1);
+        }
+        synchronized (progressMonitor) {
+            progressMonitor.notifyAll();
+        }
+    }
+
+    private void writeInCaller(Feed feed) {
+        callerWrites.incrementAndGet();
+        writer.accept(List.of(feed));
+        written.incrementAndGet();
+    }
+
+    private static final class Entry {
+        private final Feed feed;
+        private final long enqueuedAt;
+
+        Entry(Feed feed, long enqueuedAt) {
+            this.feed = feed;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.CacheStats;
+import ru.yandex.practicum.filmorate.model.Film;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+//Кэш собранных фильмов по id: LRU по размеру + время жизни записи.
+//Загрузка из БД идёт вне блокировки; если за время загрузки был сброс кэша, результат не сохраняется
+@Component
+@Slf4j
+public class FilmCache {
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<Long, Entry> entries;
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public FilmCache(@Value("${filmorate.film-cache.max-size:10000}") int maxSize,
+                     @Value("${filmorate.film-cache.ttl:10m}") Duration ttl) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, FilmCache.Entry> eldest) {
+                if (size() > FilmCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    public Film get(Long filmId, Function<Long, Film> loader) {
+        long loadGeneration;
+        synchronized (this) {
+            Entry entry = entries.get(filmId);
+            if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                hits++;
+                return copyOf(entry.film);
+            }
+            if (entry != null) {
+                entries.remove(filmId);
+                evictions++;
+            }
+            misses++;
+            loadGeneration = generation;
+        }
+
+        Film film = loader.apply(filmId);
+        synchronized (this) {
+            if (film != null && loadGeneration == generation && maxSize > 0) {
+                entries.put(filmId, new Entry(copyOf(film), System.nanoTime() + ttlNanos));
+            }
+        }
+
+        return film;
+    }
+
+    public Map<Long, Film> getAll(Collection<Long> filmIds, Function<List<Long>, List<Film>> loader) {
+        Map<Long, Film> result = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        long loadGeneration;
+        synchronized (this) {
+            for (Long filmId : filmIds) {
+                if (result.containsKey(filmId) || missing.contains(filmId)) {
+                    continue;
+                }
+                Entry entry = entries.get(filmId);
+                if (entry != null && entry.expiresAt - System.nanoTime() > 0) {
+                    hits++;
+                    result.put(filmId, copyOf(entry.film));
+                    continue;
+                }
+                if (entry != null) {
+                    entries.remove(filmId);
+                    evictions++;
+                }
+                misses++;
+                missing.add(filmId);
+            }
+            loadGeneration = generation;
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+
+        List<Film> films = loader.apply(missing);
+        synchronized (this) {
+            if (loadGeneration == generation && maxSize > 0) {
+                long expiresAt = System.nanoTime() + ttlNanos;
+                films.forEach(film -> entries.put(film.getId(), new Entry(copyOf(film), expiresAt)));
+            }
+        }
+        films.forEach(film -> result.put(film.getId(), film));
+
+        return result;
+    }
+
+    public synchronized void invalidate(Long filmId) {
+        log.debug("invalidate, filmId {}", filmId);
+        generation++;
+        entries.remove(filmId);
+    }
+
+    public synchronized void invalidateIf(Predicate<Film> predicate) {
+        log.debug("invalidateIf");
+        generation++;
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (predicate.test(iterator.next().film)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, entries.size(), maxSize);
+    }
+
+    //наружу отдаём копию, чтобы изменения объекта вызывающим кодом не попадали в кэш
+    private static Film copyOf(Film film) {
+        return new Film(film.getId(), film.getName(), film.getDescription(), film.getReleaseDate(),
+                film.getDuration(), new ArrayList<>(film.getGenres()), new ArrayList<>(film.getDirectors()),
+                film.getMpa());
+    }
+
+    private static class Entry {
+        private final Film film;
+        private final long expiresAt;
+
+        Entry(Film film, long expiresAt) {
+            this.film = film;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
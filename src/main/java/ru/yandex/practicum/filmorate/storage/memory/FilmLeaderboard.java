@@ -0,0 +1,260 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Film;
+import ru.yandex.practicum.filmorate.model.FilmLikes;
+import ru.yandex.practicum.filmorate.model.Genre;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+//Рейтинг фильмов по лайкам в памяти: упорядоченные множества по всем фильмам, по жанру, по году и по жанру+году.
+//Число лайков приходит из транзакции, которая его изменила, вместе с версией счётчика фильма;
+//значение с версией не новее уже применённой отбрасывается, поэтому порядок применения не важен
+@Component
+@Slf4j
+public class FilmLeaderboard {
+
+    private static final Comparator<Rank> ORDER = Comparator.comparingLong((Rank rank) -> -rank.likes)
+            .thenComparingLong(rank -> rank.filmId);
+    private final Object writeMonitor = new Object();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    //null - рейтинг не построен, запросы идут в БД
+    private Buckets buckets;
+
+    public List<Long> getTop(int count, Integer genreId, Integer year) {
+        lock.readLock().lock();
+        try {
+            if (buckets == null) {
+                return null;
+            }
+            NavigableSet<Rank> bucket = buckets.get(genreId, year);
+            List<Long> filmIds = new ArrayList<>(Math.max(0, Math.min(count, bucket.size())));
+            for (Rank rank : bucket) {
+                if (filmIds.size() >= count) {
+                    break;
+                }
+                filmIds.add(rank.filmId);
+            }
+
+            return filmIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //упорядочивание произвольного набора фильмов по рейтингу; null - рейтинг не построен
+    public List<Long> rank(Collection<Long> filmIds) {
+        lock.readLock().lock();
+        try {
+            if (buckets == null) {
+                return null;
+            }
+            List<Rank> ranks = new ArrayList<>(filmIds.size());
+            for (Long filmId : filmIds) {
+                Rank rank = buckets.ranks.get(filmId);
+                if (rank != null) {
+                    ranks.add(rank);
+                }
+            }
+            ranks.sort(ORDER);
+            List<Long> result = new ArrayList<>(ranks.size());
+            ranks.forEach(rank -> result.add(rank.filmId));
+
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isBuilt() {
+        lock.readLock().lock();
+        try {
+            return buckets != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //source передаёт в приёмник каждый фильм и счётчик его лайков (null - лайков не было);
+    //пока идёт загрузка, чтение уходит в БД
+    public void ensureBuilt(Consumer<BiConsumer<Film, FilmLikes>> source) {
+        if (isBuilt()) {
+            return;
+        }
+        synchronized (writeMonitor) {
+            if (isBuilt()) {
+                return;
+            }
+            log.debug("build leaderboard");
+            Buckets newBuckets = new Buckets();
+            source.accept((film, likes) -> newBuckets.add(likes == null ? new Rank(film, 0, 0)
+                    : new Rank(film, likes.getLikes(), likes.getVersion())));
+            setBuckets(newBuckets);
+            log.info("Leaderboard built, films {}", newBuckets.ranks.size());
+        }
+    }
+
+    public void invalidate() {
+        log.debug("invalidate leaderboard");
+        synchronized (writeMonitor) {
+            setBuckets(null);
+        }
+    }
+
+    //добавление или изменение фильма, число лайков сохраняется
+    public void putFilm(Film film) {
+        log.debug("putFilm, filmId {}", film.getId());
+        synchronized (writeMonitor) {
+            update(buckets -> {
+                Rank old = buckets.remove(film.getId());
+                buckets.add(old == null ? new Rank(film, 0, 0) : new Rank(film, old.likes, old.version));
+            });
+        }
+    }
+
+    public void updateLikes(FilmLikes likes) {
+        log.debug("updateLikes, filmId {}, version {}", likes.getFilmId(), likes.getVersion());
+        synchronized (writeMonitor) {
+            update(buckets -> {
+                Rank old = buckets.ranks.get(likes.getFilmId());
+                if (old != null && old.version < likes.getVersion()) {
+                    buckets.add(new Rank(old, likes.getLikes(), likes.getVersion()));
+                }
+            });
+        }
+    }
+
+    public void removeFilm(Long filmId) {
+        log.debug("removeFilm, filmId {}", filmId);
+        synchronized (writeMonitor) {
+            update(buckets -> buckets.remove(filmId));
+        }
+    }
+
+    private void update(Consumer<Buckets> action) {
+        lock.writeLock().lock();
+        try {
+            if (buckets != null) {
+                action.accept(buckets);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void setBuckets(Buckets newBuckets) {
+        lock.writeLock().lock();
+        try {
+            buckets = newBuckets;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static class Buckets {
+        private final Map<Long, Rank> ranks = new HashMap<>();
+        private final NavigableSet<Rank> all = new TreeSet<>(ORDER);
+        private final Map<Integer, NavigableSet<Rank>> byGenre = new HashMap<>();
+        private final Map<Integer, NavigableSet<Rank>> byYear = new HashMap<>();
+        private final Map<Long, NavigableSet<Rank>> byGenreYear = new HashMap<>();
+
+        NavigableSet<Rank> get(Integer genreId, Integer year) {
+            NavigableSet<Rank> bucket;
+            if (genreId != null && year != null) {
+                bucket = byGenreYear.get(genreYearKey(genreId, year));
+            } else if (genreId != null) {
+                bucket = byGenre.get(genreId);
+            } else if (year != null) {
+                bucket = byYear.get(year);
+            } else {
+                bucket = all;
+            }
+
+            return bucket == null ? Collections.emptyNavigableSet() : bucket;
+        }
+
+        void add(Rank rank) {
+            Rank old = ranks.put(rank.filmId, rank);
+            if (old != null) {
+                removeFromBuckets(old);
+            }
+            all.add(rank);
+            for (int genreId : rank.genreIds) {
+                byGenre.computeIfAbsent(genreId, k -> new TreeSet<>(ORDER)).add(rank);
+            }
+            if (rank.year != null) {
+                byYear.computeIfAbsent(rank.year, k -> new TreeSet<>(ORDER)).add(rank);
+                for (int genreId : rank.genreIds) {
+                    byGenreYear.computeIfAbsent(genreYearKey(genreId, rank.year), k -> new TreeSet<>(ORDER))
+                            .add(rank);
+                }
+            }
+        }
+
+        Rank remove(Long filmId) {
+            Rank rank = ranks.remove(filmId);
+            if (rank != null) {
+                removeFromBuckets(rank);
+            }
+
+            return rank;
+        }
+
+        private void removeFromBuckets(Rank rank) {
+            all.remove(rank);
+            for (int genreId : rank.genreIds) {
+                removeFrom(byGenre, genreId, rank);
+            }
+            if (rank.year != null) {
+                removeFrom(byYear, rank.year, rank);
+                for (int genreId : rank.genreIds) {
+                    removeFrom(byGenreYear, genreYearKey(genreId, rank.year), rank);
+                }
+            }
+        }
+
+        private static <K> void removeFrom(Map<K, NavigableSet<Rank>> buckets, K key, Rank rank) {
+            NavigableSet<Rank> bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.remove(rank);
+                if (bucket.isEmpty()) {
+                    buckets.remove(key);
+                }
+            }
+        }
+
+        private static long genreYearKey(int genreId, int year) {
+            return ((long) genreId << 32) | (year & 0xffffffffL);
+        }
+    }
+
+    private static class Rank {
+        private final long filmId;
+        private final long likes;
+        private final long version;
+        private final Integer year;
+        private final int[] genreIds;
+
+        Rank(Film film, long likes, long version) {
+            this.filmId = film.getId();
+            this.likes = likes;
+            this.version = version;
+            this.year = film.getReleaseDate() == null ? null : film.getReleaseDate().getYear();
+            this.genreIds = film.getGenres() == null ? new int[0]
+                    : film.getGenres().stream().mapToInt(Genre::getId).distinct().toArray();
+        }
+
+        Rank(Rank rank, long likes, long version) {
+            this.filmId = rank.filmId;
+            this.likes = likes;
+            this.version = version;
+            this.year = rank.year;
+            this.genreIds = rank.genreIds;
+        }
+    }
+}
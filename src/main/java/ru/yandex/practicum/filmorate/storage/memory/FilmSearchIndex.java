@@ -0,0 +1,243 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Director;
+import ru.yandex.practicum.filmorate.model.Film;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+//Триграммный индекс по названиям фильмов и именам режиссёров для поиска подстроки без учёта регистра.
+//Кандидаты - пересечение списков по триграммам запроса, затем проверка contains;
+//запросы короче триграммы проверяются перебором строк в памяти
+@Component
+@Slf4j
+public class FilmSearchIndex {
+
+    private static final int GRAM_LENGTH = 3;
+    private final Object writeMonitor = new Object();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    //null - индекс не построен, поиск идёт в БД
+    private Index index;
+
+    public boolean isBuilt() {
+        lock.readLock().lock();
+        try {
+            return index != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void ensureBuilt(Collection<Director> directors, Consumer<Consumer<Film>> films) {
+        if (isBuilt()) {
+            return;
+        }
+        synchronized (writeMonitor) {
+            if (isBuilt()) {
+                return;
+            }
+            log.debug("build search index");
+            Index newIndex = new Index();
+            directors.forEach(newIndex::putDirector);
+            films.accept(newIndex::putFilm);
+            setIndex(newIndex);
+            log.info("Search index built, films {}, directors {}", newIndex.titles.size(),
+                    newIndex.directorNames.size());
+        }
+    }
+
+    //null - индекс не построен
+    public Set<Long> search(String query, boolean byTitle, boolean byDirector) {
+        String text = query.toLowerCase();
+        lock.readLock().lock();
+        try {
+            if (index == null) {
+                return null;
+            }
+            Set<Long> filmIds = new HashSet<>();
+            if (byTitle) {
+                filmIds.addAll(find(text, index.titles, index.titleGrams));
+            }
+            if (byDirector) {
+                for (Integer directorId : find(text, index.directorNames, index.directorGrams)) {
+                    filmIds.addAll(index.directorFilms.getOrDefault(directorId, Collections.emptySet()));
+                }
+            }
+
+            return filmIds;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void putFilm(Film film) {
+        log.debug("putFilm, filmId {}", film.getId());
+        update(index -> index.putFilm(film));
+    }
+
+    public void removeFilm(Long filmId) {
+        log.debug("removeFilm, filmId {}", filmId);
+        update(index -> index.removeFilm(filmId));
+    }
+
+    public void putDirector(Director director) {
+        log.debug("putDirector, directorId {}", director.getId());
+        update(index -> index.putDirector(director));
+    }
+
+    public void removeDirector(Integer directorId) {
+        log.debug("removeDirector, directorId {}", directorId);
+        update(index -> index.removeDirector(directorId));
+    }
+
+    private void update(Consumer<Index> action) {
+        synchronized (writeMonitor) {
+            lock.writeLock().lock();
+            try {
+                if (index != null) {
+                    action.accept(index);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void setIndex(Index newIndex) {
+        lock.writeLock().lock();
+        try {
+            index = newIndex;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static <K> List<K> find(String text, Map<K, String> values, Map<String, Set<K>> grams) {
+        List<K> result = new ArrayList<>();
+        if (text.length() < GRAM_LENGTH) {
+            values.forEach((key, value) -> {
+                if (value.contains(text)) {
+                    result.add(key);
+                }
+            });
+            return result;
+        }
+
+        //пересекаем, начиная с самого короткого списка
+        List<Set<K>> postings = new ArrayList<>();
+        for (String gram : grams(text)) {
+            Set<K> posting = grams.get(gram);
+            if (posting == null) {
+                return result;
+            }
+            postings.add(posting);
+        }
+        postings.sort(Comparator.comparingInt(Set::size));
+        for (K key : postings.get(0)) {
+            boolean inAll = true;
+            for (int i = 1; i < postings.size() && inAll; i++) {
+                inAll = postings.get(i).contains(key);
+            }
+            if (inAll && values.get(key).contains(text)) {
+                result.add(key);
+            }
+        }
+
+        return result;
+    }
+
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM_LENGTH));
+        }
+
+        return grams;
+    }
+
+    private static <K> void addPostings(Map<String, Set<K>> postings, String text, K key) {
+        for (String gram : grams(text)) {
+            postings.computeIfAbsent(gram, g -> new HashSet<>()).add(key);
+        }
+    }
+
+    private static <K> void removePostings(Map<String, Set<K>> postings, String text, K key) {
+        for (String gram : grams(text)) {
+            Set<K> posting = postings.get(gram);
+            if (posting != null) {
+                posting.remove(key);
+                if (posting.isEmpty()) {
+                    postings.remove(gram);
+                }
+            }
+        }
+    }
+
+    private static class Index {
+        private final Map<Long, String> titles = new HashMap<>();
+        private final Map<String, Set<Long>> titleGrams = new HashMap<>();
+        private final Map<Integer, String> directorNames = new HashMap<>();
+        private final Map<String, Set<Integer>> directorGrams = new HashMap<>();
+        private final Map<Integer, Set<Long>> directorFilms = new HashMap<>();
+        private final Map<Long, List<Integer>> filmDirectors = new HashMap<>();
+
+        void putFilm(Film film) {
+            removeFilm(film.getId());
+            String title = film.getName() == null ? "" : film.getName().toLowerCase();
+            titles.put(film.getId(), title);
+            addPostings(titleGrams, title, film.getId());
+            List<Integer> directorIds = new ArrayList<>();
+            if (film.getDirectors() != null) {
+                film.getDirectors().forEach(director -> directorIds.add(director.getId()));
+            }
+            filmDirectors.put(film.getId(), directorIds);
+            directorIds.forEach(directorId ->
+                    directorFilms.computeIfAbsent(directorId, id -> new HashSet<>()).add(film.getId()));
+        }
+
+        void removeFilm(Long filmId) {
+            String title = titles.remove(filmId);
+            if (title != null) {
+                removePostings(titleGrams, title, filmId);
+            }
+            List<Integer> directorIds = filmDirectors.remove(filmId);
+            if (directorIds != null) {
+                for (Integer directorId : directorIds) {
+                    Set<Long> films = directorFilms.get(directorId);
+                    if (films != null) {
+                        films.remove(filmId);
+                        if (films.isEmpty()) {
+                            directorFilms.remove(directorId);
+                        }
+                    }
+                }
+            }
+        }
+
+        void putDirector(Director director) {
+            String oldName = directorNames.get(director.getId());
+            if (oldName != null) {
+                removePostings(directorGrams, oldName, director.getId());
+            }
+            String name = director.getName() == null ? "" : director.getName().toLowerCase();
+            directorNames.put(director.getId(), name);
+            addPostings(directorGrams, name, director.getId());
+        }
+
+        //связи фильмов с режиссёром удаляются в БД каскадом
+        void removeDirector(Integer directorId) {
+            String name = directorNames.remove(directorId);
+            if (name != null) {
+                removePostings(directorGrams, name, directorId);
+            }
+            Set<Long> films = directorFilms.remove(directorId);
+            if (films != null) {
+                films.forEach(filmId -> filmDirectors.get(filmId).remove(directorId));
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+//Похожие фильмы по коэффициенту Жаккара множеств лайкнувших: |A∩B| / |A∪B|.
+//Совместные лайки считаются при чтении по LikeMatrix, готовые top-K хранятся в LRU-кэше ограниченного размера.
+//Лайк меняет коэффициенты только пар своего фильма: сбрасываются сам фильм, остальные фильмы пользователя
+//и списки, в которые фильм уже входит. Снятие лайка может поднять фильм в чужой список - кэш сбрасывается целиком
+@Component
+@Slf4j
+public class FilmSimilarityIndex {
+
+    private final LikeMatrix likeMatrix;
+    private final boolean enabled;
+    private final int topK;
+    private final int maxSize;
+    private final LinkedHashMap<Long, long[]> similar;
+    //фильм -> фильмы, в готовых списках которых он стоит
+    private final Map<Long, Set<Long>> listedIn = new HashMap<>();
+    private long generation;
+
+    public FilmSimilarityIndex(LikeMatrix likeMatrix,
+                               @Value("${filmorate.similar-films.enabled:true}") boolean enabled,
+                               @Value("${filmorate.similar-films.top-k:20}") int topK,
+                               @Value("${filmorate.similar-films.max-size:10000}") int maxSize) {
+        this.likeMatrix = likeMatrix;
+        this.enabled = enabled;
+        this.topK = topK;
+        this.maxSize = maxSize;
+        this.similar = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+                if (size() > FilmSimilarityIndex.this.maxSize) {
+                    unlist(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+
+                return false;
+            }
+        };
+        if (enabled) {
+            likeMatrix.addListener(this::updateUser);
+        }
+    }
+
+    //count больше topK считается без сохранения
+    public List<Long> getSimilar(long filmId, int count) {
+        if (!enabled || count > topK) {
+            return top(filmId, countCoLikes(filmId), count);
+        }
+        long[] filmIds;
+        long loadGeneration;
+        synchronized (this) {
+            filmIds = similar.get(filmId);
+            loadGeneration = generation;
+        }
+        if (filmIds == null) {
+            filmIds = top(filmId, countCoLikes(filmId), topK).stream().mapToLong(Long::longValue).toArray();
+            synchronized (this) {
+                //за время подсчёта матрица могла измениться - такой список не сохраняется
+                if (loadGeneration == generation && maxSize > 0) {
+                    unlist(filmId, similar.put(filmId, filmIds));
+                    for (long otherId : filmIds) {
+                        listedIn.computeIfAbsent(otherId, id -> new HashSet<>()).add(filmId);
+                    }
+                }
+            }
+        }
+        List<Long> result = new ArrayList<>(Math.min(count, filmIds.length));
+        for (int i = 0; i < filmIds.length && i < count; i++) {
+            result.add(filmIds[i]);
+        }
+
+        return result;
+    }
+
+    private synchronized void updateUser(long userId, long[] oldFilms, long[] films) {
+        generation++;
+        if (similar.isEmpty()) {
+            return;
+        }
+        for (long filmId : oldFilms) {
+            if (Arrays.binarySearch(films, filmId) < 0) {
+                similar.clear();
+                listedIn.clear();
+                return;
+            }
+        }
+        for (long filmId : films) {
+            if (Arrays.binarySearch(oldFilms, filmId) < 0) {
+                //у пар с остальными фильмами пользователя растёт пересечение, у прочих пар - объединение
+                for (long otherId : films) {
+                    evict(otherId);
+                }
+                Set<Long> lists = listedIn.remove(filmId);
+                if (lists != null) {
+                    new ArrayList<>(lists).forEach(this::evict);
+                }
+            }
+        }
+    }
+
+    private void evict(long filmId) {
+        unlist(filmId, similar.remove(filmId));
+    }
+
+    private void unlist(long filmId, long[] filmIds) {
+        if (filmIds == null) {
+            return;
+        }
+        for (long otherId : filmIds) {
+            Set<Long> lists = listedIn.get(otherId);
+            if (lists != null) {
+                lists.remove(filmId);
+                if (lists.isEmpty()) {
+                    listedIn.remove(otherId);
+                }
+            }
+        }
+    }
+
+    //совместные лайки одного фильма напрямую по матрице: лайкнувшие его -> их остальные фильмы
+    private Map<Long, int[]> countCoLikes(long filmId) {
+        Map<Long, int[]> pairs = new HashMap<>();
+        for (long userId : likeMatrix.getFilmUsers(filmId)) {
+            for (long otherId : likeMatrix.getUserFilms(userId)) {
+                if (otherId != filmId) {
+                    pairs.computeIfAbsent(otherId, id -> new int[1])[0]++;
+                }
+            }
+        }
+
+        return pairs;
+    }
+
+    //по убыванию коэффициента, при равенстве - по возрастанию id
+    private List<Long> top(long filmId, Map<Long, int[]> pairs, int count) {
+        int likes = likeMatrix.getFilmUsers(filmId).length;
+        List<Map.Entry<Long, Double>> scores = new ArrayList<>(pairs.size());
+        for (Map.Entry<Long, int[]> pair : pairs.entrySet()) {
+            int both = pair.getValue()[0];
+            int union = likes + likeMatrix.getFilmUsers(pair.getKey()).length - both;
+            scores.add(Map.entry(pair.getKey(), union == 0 ? 0 : (double) both / union));
+        }
+        scores.sort(Map.Entry.<Long, Double>comparingByValue().reversed()
+                .thenComparing(Map.Entry.comparingByKey()));
+        List<Long> filmIds = new ArrayList<>(Math.min(count, scores.size()));
+        for (int i = 0; i < scores.size() && i < count; i++) {
+            filmIds.add(scores.get(i).getKey());
+        }
+
+        return filmIds;
+    }
+}
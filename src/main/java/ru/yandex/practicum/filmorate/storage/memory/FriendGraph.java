@@ -0,0 +1,252 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.LongToIntFunction;
+
+//Граф подтверждённых дружб (friendship_id = 1) в памяти: для пользователя - отсортированный массив id друзей
+//и обратный индекс - id тех, у кого он в друзьях. Массивы не меняются после публикации, изменение заменяет
+//строку целиком (копирование при записи), поэтому чтение идёт без блокировок. Изменения применяются по одному
+//под writeMonitor
+@Component
+@Slf4j
+public class FriendGraph {
+
+    private final Object writeMonitor = new Object();
+    private final Map<Long, long[]> friends = new ConcurrentHashMap<>();
+    private final Map<Long, long[]> followers = new ConcurrentHashMap<>();
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean loaded;
+
+    //вызывается под writeMonitor, когда меняется список друзей пользователя
+    //и когда меняется число тех, у кого пользователь в друзьях
+    public interface ChangeListener {
+        void friendsChanged(long userId);
+
+        default void followersChanged(long userId, int oldCount, int newCount) {
+        }
+    }
+
+    public void addListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    //loader отдаёт пары (пользователь, друг), упорядоченные по пользователю и другу
+    public void ensureLoaded(Consumer<BiConsumer<Long, Long>> loader) {
+        if (loaded) {
+            return;
+        }
+        synchronized (writeMonitor) {
+            if (loaded) {
+                return;
+            }
+            long startedAt = System.currentTimeMillis();
+            LikeRows.Grouper grouper = new LikeRows.Grouper(false, friends::put);
+            loader.accept(grouper::accept);
+            grouper.finish();
+            buildFollowers();
+            loaded = true;
+            log.info("Friend graph loaded, users {}, {} ms", friends.size(), System.currentTimeMillis() - startedAt);
+        }
+    }
+
+    public long[] getFriends(long userId) {
+        return friends.getOrDefault(userId, LikeRows.EMPTY);
+    }
+
+    //пользователи, у которых userId в друзьях
+    public long[] getFollowers(long userId) {
+        return followers.getOrDefault(userId, LikeRows.EMPTY);
+    }
+
+    //пересечение слиянием двух отсортированных массивов
+    public long[] getCommonFriends(long userId, long otherId) {
+        long[] first = getFriends(userId);
+        long[] second = getFriends(otherId);
+        long[] common = new long[Math.min(first.length, second.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < first.length && j < second.length) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                common[size++] = first[i];
+                i++;
+                j++;
+            }
+        }
+
+        return size == common.length ? common : Arrays.copyOf(common, size);
+    }
+
+    //друзья друзей, которых ещё нет в друзьях: по убыванию числа общих друзей, при равенстве - по убыванию
+    //boost (null - без него), затем по возрастанию id. Обход ограничен maxVisited просмотренными связями
+    public long[] getSuggestions(long userId, int count, int maxVisited, LongToIntFunction boost) {
+        long[] friendIds = getFriends(userId);
+        long edges = 0;
+        for (int i = 0; i < friendIds.length && edges < maxVisited; i++) {
+            edges += getFriends(friendIds[i]).length;
+        }
+        //счётчики общих друзей - открытая адресация по примитивным массивам, 0 - пустая ячейка (id начинаются с 1)
+        int capacity = Integer.highestOneBit((int) Math.max(8, Math.min(edges, maxVisited)) * 2 - 1) * 2;
+        long[] keys = new long[capacity];
+        int[] mutual = new int[capacity];
+        int visited = 0;
+        for (int i = 0; i < friendIds.length && visited < maxVisited; i++) {
+            long[] secondIds = getFriends(friendIds[i]);
+            for (int j = 0; j < secondIds.length && visited < maxVisited; j++, visited++) {
+                long candidate = secondIds[j];
+                if (candidate != userId && Arrays.binarySearch(friendIds, candidate) < 0) {
+                    int slot = (int) (candidate * 0x9E3779B97F4A7C15L >>> 40) & (capacity - 1);
+                    while (keys[slot] != 0 && keys[slot] != candidate) {
+                        slot = (slot + 1) & (capacity - 1);
+                    }
+                    keys[slot] = candidate;
+                    mutual[slot]++;
+                }
+            }
+        }
+
+        //порог - число общих друзей у последнего попадающего в выдачу, по гистограмме
+        int[] histogram = new int[friendIds.length + 1];
+        for (int slot = 0; slot < capacity; slot++) {
+            histogram[mutual[slot]]++;
+        }
+        int threshold = 1;
+        int above = 0;
+        for (int m = friendIds.length; m > 1; m--) {
+            if (above + histogram[m] >= count) {
+                threshold = m;
+                break;
+            }
+            above += histogram[m];
+        }
+
+        //выше порога попадают все; на пороге без boost - с меньшими id (куча ограниченного размера),
+        //с boost - все, их порядок решает boost
+        List<long[]> result = new ArrayList<>();
+        PriorityQueue<Long> lowestIds = new PriorityQueue<>(Comparator.reverseOrder());
+        for (int slot = 0; slot < capacity; slot++) {
+            if (mutual[slot] > threshold || mutual[slot] == threshold && boost != null) {
+                result.add(new long[]{keys[slot], mutual[slot], 0});
+            } else if (mutual[slot] == threshold && count > above) {
+                if (lowestIds.size() < count - above) {
+                    lowestIds.add(keys[slot]);
+                } else if (keys[slot] < lowestIds.peek()) {
+                    lowestIds.poll();
+                    lowestIds.add(keys[slot]);
+                }
+            }
+        }
+        for (Long id : lowestIds) {
+            result.add(new long[]{id, threshold, 0});
+        }
+        if (boost != null) {
+            for (long[] candidate : result) {
+                candidate[2] = boost.applyAsInt(candidate[0]);
+            }
+        }
+        result.sort(Comparator.comparingLong((long[] candidate) -> -candidate[1])
+                .thenComparingLong(candidate -> -candidate[2])
+                .thenComparingLong(candidate -> candidate[0]));
+
+        return result.stream().limit(count).mapToLong(candidate -> candidate[0]).toArray();
+    }
+
+    //строку (userId, friendId) передаёт хранилище после записи: confirmed - стала подтверждённой, иначе удалена
+    public void update(long userId, long friendId, boolean confirmed) {
+        synchronized (writeMonitor) {
+            if (!loaded) {
+                return;
+            }
+            if (replace(friends, userId, friendId, confirmed)) {
+                int oldCount = getFollowers(friendId).length;
+                replace(followers, friendId, userId, confirmed);
+                int newCount = getFollowers(friendId).length;
+                listeners.forEach(listener -> {
+                    listener.friendsChanged(userId);
+                    listener.followersChanged(friendId, oldCount, newCount);
+                });
+            }
+        }
+    }
+
+    //дружбы удалённого пользователя удалены каскадом в обе стороны
+    public void removeUser(long userId) {
+        synchronized (writeMonitor) {
+            long[] userFriends = friends.getOrDefault(userId, LikeRows.EMPTY);
+            long[] userFollowers = followers.getOrDefault(userId, LikeRows.EMPTY);
+            for (long friendId : userFriends) {
+                int oldCount = getFollowers(friendId).length;
+                replace(followers, friendId, userId, false);
+                int newCount = getFollowers(friendId).length;
+                listeners.forEach(listener -> listener.followersChanged(friendId, oldCount, newCount));
+            }
+            for (long followerId : userFollowers) {
+                replace(friends, followerId, userId, false);
+                listeners.forEach(listener -> listener.friendsChanged(followerId));
+            }
+            friends.remove(userId);
+            followers.remove(userId);
+            listeners.forEach(listener -> listener.friendsChanged(userId));
+        }
+    }
+
+    //true - строка изменилась
+    private static boolean replace(Map<Long, long[]> rows, long id, long value, boolean present) {
+        long[] row = rows.getOrDefault(id, LikeRows.EMPTY);
+        long[] changed = present ? LikeRows.insert(row, value) : LikeRows.remove(row, value);
+        if (changed == row) {
+            return false;
+        }
+        if (changed.length == 0) {
+            rows.remove(id);
+        } else {
+            rows.put(id, changed);
+        }
+
+        return true;
+    }
+
+    //обратный индекс по уже загруженным строкам: пользователи обходятся по возрастанию id,
+    //поэтому строки обратного индекса получаются отсортированными
+    private void buildFollowers() {
+        Map<Long, Integer> counts = new HashMap<>();
+        friends.values().forEach(row -> {
+            for (long friendId : row) {
+                counts.merge(friendId, 1, Integer::sum);
+            }
+        });
+        Map<Long, long[]> rows = new HashMap<>(counts.size() * 2);
+        Map<Long, int[]> sizes = new HashMap<>(counts.size() * 2);
+        counts.forEach((friendId, count) -> {
+            rows.put(friendId, new long[count]);
+            sizes.put(friendId, new int[1]);
+        });
+        friends.keySet().stream().sorted().forEach(userId -> {
+            for (long friendId : friends.get(userId)) {
+                rows.get(friendId)[sizes.get(friendId)[0]++] = userId;
+            }
+        });
+        followers.putAll(rows);
+    }
+}
@@ -0,0 +1,228 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.Feed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+import java.util.function.LongPredicate;
+
+//Ленты событий друзей: для пользователя - кольцевой буфер последних capacity событий его друзей.
+//Новое событие раскладывается в буферы всех, у кого автор в друзьях (запись веером).
+//Авторы, у которых больше fanOutLimit подписчиков, веером не пишутся - их события читаются из БД при чтении ленты.
+//Буфер заводится при первом чтении ленты и сбрасывается при изменении списка друзей.
+//Буферов не больше maxUsers: при превышении вытесняются те, что дольше всех не читались
+@Component
+@Slf4j
+public class FriendTimeline {
+
+    private final FriendGraph friendGraph;
+    private final int capacity;
+    private final int fanOutLimit;
+    private final int maxUsers;
+    private final Map<Long, Ring> rings = new ConcurrentHashMap<>();
+    private final Object evictionMonitor = new Object();
+
+    public FriendTimeline(FriendGraph friendGraph,
+                          @Value("${filmorate.timeline.capacity:200}") int capacity,
+                          @Value("${filmorate.timeline.fan-out-limit:1000}") int fanOutLimit,
+                          @Value("${filmorate.timeline.max-users:10000}") int maxUsers) {
+        if (capacity <= 0 || maxUsers <= 0) {
+            throw new IllegalArgumentException("timeline capacity and max users should be positive");
+        }
+        this.friendGraph = friendGraph;
+        this.capacity = capacity;
+        this.fanOutLimit = fanOutLimit;
+        this.maxUsers = maxUsers;
+        friendGraph.addListener(new FriendGraph.ChangeListener() {
+            @Override
+            public void friendsChanged(long userId) {
+                rings.remove(userId);
+            }
+
+            //автор перешёл порог записи веером: буферы его подписчиков собраны по старому правилу
+            @Override
+            public void followersChanged(long userId, int oldCount, int newCount) {
+                if ((oldCount <= fanOutLimit) != (newCount <= fanOutLimit)) {
+                    for (long followerId : friendGraph.getFollowers(userId)) {
+                        rings.remove(followerId);
+                    }
+                }
+            }
+        });
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    //false - события автора читаются из БД. Когда автор переходит порог, буферы его подписчиков сбрасываются
+    public boolean isPushed(long actorId) {
+        return friendGraph.getFollowers(actorId).length <= fanOutLimit;
+    }
+
+    //вызывается после записи пачки событий, до загрузки графа друзей буферов нет
+    public void publish(List<Feed> feeds) {
+        if (!friendGraph.isLoaded() || rings.isEmpty()) {
+            return;
+        }
+        for (Feed feed : feeds) {
+            long[] followerIds = friendGraph.getFollowers(feed.getUserId());
+            if (feed.getEventId() == null || followerIds.length > fanOutLimit) {
+                continue;
+            }
+            for (long followerId : followerIds) {
+                Ring ring = rings.get(followerId);
+                if (ring != null) {
+                    ring.add(feed);
+                }
+            }
+        }
+    }
+
+    //до rows событий с id < before от новых к старым среди авторов, прошедших actorFilter;
+    //null - буфер не может ответить (ещё заполняется или более старые события из него вытеснены).
+    //seeder отдаёт из БД последние события друзей, попадающих в буфер, - не больше переданного числа
+    public List<Feed> getPage(long userId, Long before, int rows, LongPredicate actorFilter,
+                              IntFunction<List<Feed>> seeder) {
+        Ring ring = rings.get(userId);
+        if (ring == null) {
+            Ring created = new Ring(capacity);
+            ring = rings.putIfAbsent(userId, created);
+            if (ring == null) {
+                evictIfFull(userId);
+                //буфер уже виден записи веером, поэтому события, записанные во время выборки, не теряются
+                ring = created;
+                List<Feed> seed;
+                try {
+                    seed = seeder.apply(capacity);
+                } catch (RuntimeException e) {
+                    rings.remove(userId, created);
+                    throw e;
+                }
+                ring.seed(seed, seed.size() < capacity);
+                log.debug("Timeline seeded, userId {}, events {}", userId, seed.size());
+            }
+        }
+
+        ring.lastReadAt = System.nanoTime();
+
+        return ring.collect(before == null ? Long.MAX_VALUE : before, rows, actorFilter);
+    }
+
+    public int getSize() {
+        return rings.size();
+    }
+
+    //вытесняется десятая часть буферов, чтобы сортировка не шла при каждом новом читателе
+    private void evictIfFull(long keepUserId) {
+        if (rings.size() <= maxUsers) {
+            return;
+        }
+        synchronized (evictionMonitor) {
+            int excess = rings.size() - maxUsers;
+            if (excess <= 0) {
+                return;
+            }
+            int toEvict = Math.max(excess, maxUsers / 10);
+            rings.entrySet().stream()
+                    .filter(entry -> entry.getKey() != keepUserId)
+                    .map(entry -> Map.entry(entry.getKey(), entry.getValue().lastReadAt))
+                    .sorted(Map.Entry.comparingByValue())
+                    .limit(toEvict)
+                    .forEach(entry -> rings.remove(entry.getKey()));
+            log.debug("Timeline buffers evicted, remaining {}", rings.size());
+        }
+    }
+
+    //события упорядочены по возрастанию id, start - самое старое
+    private static final class Ring {
+        private final Feed[] items;
+        private int start;
+        private int size;
+        //более старые события могли не попасть в буфер
+        private boolean truncated;
+        private volatile boolean seeded;
+        private volatile long lastReadAt = System.nanoTime();
+
+        private Ring(int capacity) {
+            items = new Feed[capacity];
+        }
+
+        private synchronized void add(Feed feed) {
+            if (size > 0 && feed.getEventId() <= get(size - 1).getEventId()) {
+                insert(feed);
+                return;
+            }
+            if (size == items.length) {
+                start = (start + 1) % items.length;
+                size--;
+                truncated = true;
+            }
+            items[(start + size) % items.length] = feed;
+            size++;
+        }
+
+        //события не по порядку: заполнение из БД и записи в вызывающем потоке при переполнении очереди
+        private void insert(Feed feed) {
+            List<Feed> ordered = new ArrayList<>(size + 1);
+            boolean inserted = false;
+            for (int i = 0; i < size; i++) {
+                Feed current = get(i);
+                if (current.getEventId().equals(feed.getEventId())) {
+                    return;
+                }
+                if (!inserted && feed.getEventId() < current.getEventId()) {
+                    ordered.add(feed);
+                    inserted = true;
+                }
+                ordered.add(current);
+            }
+            if (!inserted) {
+                ordered.add(feed);
+            }
+            int from = Math.max(0, ordered.size() - items.length);
+            truncated |= from > 0;
+            start = 0;
+            size = ordered.size() - from;
+            for (int i = 0; i < size; i++) {
+                items[i] = ordered.get(from + i);
+            }
+        }
+
+        private synchronized void seed(List<Feed> newestFirst, boolean complete) {
+            for (Feed feed : newestFirst) {
+                insert(feed);
+            }
+            truncated |= !complete;
+            seeded = true;
+        }
+
+        private synchronized List<Feed> collect(long before, int rows, LongPredicate actorFilter) {
+            if (!seeded) {
+                return null;
+            }
+            List<Feed> result = new ArrayList<>(Math.min(rows, size));
+            for (int i = size - 1; i >= 0 && result.size() < rows; i--) {
+                Feed feed = get(i);
+                if (feed.getEventId() < before && actorFilter.test(feed.getUserId())) {
+                    result.add(feed);
+                }
+            }
+            if (result.size() < rows && truncated) {
+                return null;
+            }
+
+            return result;
+        }
+
+        private Feed get(int index) {
+            return items[(start + index) % items.length];
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiConsumer;
+
+//Строки матрицы в куче: отсортированные long[] в map. Массивы не меняются, при изменении строка заменяется целиком
+@Component
+@ConditionalOnProperty(name = "filmorate.like-matrix.mode", havingValue = "heap", matchIfMissing = true)
+public class HeapLikeStore implements LikeStore {
+
+    private static final long[] EMPTY = new long[0];
+    //строки пользователей упорядочены по id - нужен пользователь с наименьшим id
+    private final ConcurrentNavigableMap<Long, long[]> userFilms = new ConcurrentSkipListMap<>();
+    private final Map<Long, long[]> filmUsers = new ConcurrentHashMap<>();
+
+    @Override
+    public long[] getUserFilms(long userId) {
+        return userFilms.getOrDefault(userId, EMPTY);
+    }
+
+    @Override
+    public long[] getFilmUsers(long filmId) {
+        return filmUsers.getOrDefault(filmId, EMPTY);
+    }
+
+    @Override
+    public long firstUserExcept(long userId) {
+        for (Long id : userFilms.keySet()) {
+            if (id != userId) {
+                return id;
+            }
+        }
+
+        return -1;
+    }
+
+    @Override
+    public boolean add(long filmId, long userId) {
+        long[] films = getUserFilms(userId);
+        long[] newFilms = LikeRows.insert(films, filmId);
+        if (newFilms == films) {
+            return false;
+        }
+        userFilms.put(userId, newFilms);
+        filmUsers.put(filmId, LikeRows.insert(getFilmUsers(filmId), userId));
+
+        return true;
+    }
+
+    @Override
+    public boolean remove(long filmId, long userId) {
+        long[] films = getUserFilms(userId);
+        long[] newFilms = LikeRows.remove(films, filmId);
+        if (newFilms == films) {
+            return false;
+        }
+        put(userFilms, userId, newFilms);
+        put(filmUsers, filmId, LikeRows.remove(getFilmUsers(filmId), userId));
+
+        return true;
+    }
+
+    @Override
+    public void forEachUser(BiConsumer<Long, long[]> action) {
+        userFilms.forEach(action);
+    }
+
+    @Override
+    public void load(LikeMatrix.LikeSource source) {
+        userFilms.clear();
+        filmUsers.clear();
+        try {
+            LikeRows.Grouper rows = new LikeRows.Grouper(false, userFilms::put);
+            source.forEachByUser(rows);
+            rows.finish();
+            LikeRows.Grouper columns = new LikeRows.Grouper(true, filmUsers::put);
+            source.forEachByFilm(columns);
+            columns.finish();
+        } catch (RuntimeException e) {
+            userFilms.clear();
+            filmUsers.clear();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean restore(LikeMatrix.LikeSource source) {
+        return false;
+    }
+
+    private static void put(Map<Long, long[]> rows, long key, long[] row) {
+        if (row.length == 0) {
+            rows.remove(key);
+        } else {
+            rows.put(key, row);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+//Разреженная матрица лайков: для пользователя - отсортированный массив id фильмов, для фильма - id пользователей.
+//Строки хранит LikeStore (в куче или в отображённых в память файлах), изменения идут по одному
+//под блокировкой записи, чтение - без блокировок
+@Component
+@Slf4j
+public class LikeMatrix {
+
+    private final Object writeMonitor = new Object();
+    private final LikeStore store;
+    private final List<RowListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean loaded;
+
+    public LikeMatrix() {
+        this(new HeapLikeStore());
+    }
+
+    @Autowired
+    public LikeMatrix(LikeStore store) {
+        this.store = store;
+    }
+
+    public interface LikeConsumer {
+        void accept(long userId, long filmId);
+    }
+
+    //множители отпечатков пар (фильм, пользователь): {множитель фильма, множитель пользователя, слагаемое}
+    public static final long HASH_MODULUS = 2147483647L;
+    public static final long[][] HASH_FACTORS = {{1103515245L, 1664525013L, 1013904223L},
+            {2054435761L, 1597334677L, 374761393L}};
+
+    //источник всех лайков: две выборки целиком, отсортированные по (пользователь, фильм) и по (фильм, пользователь),
+    //и сводка {число лайков, сумма отпечатков pairHash по HASH_FACTORS[0], то же по HASH_FACTORS[1]}
+    //для сверки сохранённых данных
+    public interface LikeSource {
+        void forEachByUser(LikeConsumer sink);
+
+        void forEachByFilm(LikeConsumer sink);
+
+        long[] summary();
+    }
+
+    //вызывается под блокировкой записи при каждом изменении строки пользователя; пустой массив - строки нет
+    public interface RowListener {
+        void rowChanged(long userId, long[] oldFilms, long[] films);
+    }
+
+    //новый слушатель сразу получает все уже загруженные строки
+    public void addListener(RowListener listener) {
+        synchronized (writeMonitor) {
+            listeners.add(listener);
+            if (loaded) {
+                store.forEachUser((userId, films) -> listener.rowChanged(userId, LikeRows.EMPTY, films));
+            }
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void ensureLoaded(LikeSource source) {
+        if (loaded) {
+            return;
+        }
+        synchronized (writeMonitor) {
+            if (loaded) {
+                return;
+            }
+            log.debug("load like matrix");
+            long startedAt = System.currentTimeMillis();
+            boolean restored = store.restore(source);
+            if (!restored) {
+                store.load(source);
+            }
+            long[] users = {0};
+            store.forEachUser((userId, films) -> {
+                users[0]++;
+                listeners.forEach(listener -> listener.rowChanged(userId, LikeRows.EMPTY, films));
+            });
+            loaded = true;
+            log.info("Like matrix {}, {}, users {}, {} ms", restored ? "restored" : "loaded",
+                    store.getClass().getSimpleName(), users[0], System.currentTimeMillis() - startedAt);
+        }
+    }
+
+    public long[] getUserFilms(long userId) {
+        return store.getUserFilms(userId);
+    }
+
+    public long[] getFilmUsers(long filmId) {
+        return store.getFilmUsers(filmId);
+    }
+
+    //пользователь с наименьшим id, у которого есть лайки, кроме указанного; -1 - такого нет
+    public long firstUserExcept(long userId) {
+        return store.firstUserExcept(userId);
+    }
+
+    //вызывается после коммита, только если строка лайка действительно вставлена (liked) или удалена
+    public void update(long filmId, long userId, boolean liked) {
+        synchronized (writeMonitor) {
+            if (!loaded) {
+                return;
+            }
+            long[] oldFilms = store.getUserFilms(userId);
+            boolean changed = liked ? store.add(filmId, userId) : store.remove(filmId, userId);
+            if (changed) {
+                notifyListeners(userId, oldFilms);
+            }
+        }
+    }
+
+    public void removeUser(long userId) {
+        synchronized (writeMonitor) {
+            long[] films = store.getUserFilms(userId);
+            for (long filmId : films) {
+                store.remove(filmId, userId);
+            }
+            if (films.length > 0) {
+                notifyListeners(userId, films);
+            }
+        }
+    }
+
+    public void removeFilm(long filmId) {
+        synchronized (writeMonitor) {
+            for (long userId : store.getFilmUsers(filmId)) {
+                long[] oldFilms = store.getUserFilms(userId);
+                if (store.remove(filmId, userId)) {
+                    notifyListeners(userId, oldFilms);
+                }
+            }
+        }
+    }
+
+    //отпечаток пары - куб линейной формы от id по модулю простого 2^31-1. Сумма отпечатков не зависит от порядка
+    //строк и, в отличие от сумм id, различает перестановки пар. Все произведения меньше 2^63, поэтому тот же расчёт
+    //без переполнения повторяется в SQL
+    public static long pairHash(long filmId, long userId, long[] factors) {
+        long x = (filmId % HASH_MODULUS * factors[0] % HASH_MODULUS
+                + userId % HASH_MODULUS * factors[1] % HASH_MODULUS + factors[2]) % HASH_MODULUS;
+
+        return x * x % HASH_MODULUS * x % HASH_MODULUS;
+    }
+
+    //размер пересечения двух отсортированных массивов
+    public static int intersectionSize(long[] first, long[] second) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < first.length && j < second.length) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+
+        return count;
+    }
+
+    private void notifyListeners(long userId, long[] oldFilms) {
+        long[] films = store.getUserFilms(userId);
+        listeners.forEach(listener -> listener.rowChanged(userId, oldFilms, films));
+    }
+}
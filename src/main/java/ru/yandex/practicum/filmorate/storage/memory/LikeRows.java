@@ -0,0 +1,78 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+//Операции над отсортированными строками матрицы лайков; исходный массив не меняется
+final class LikeRows {
+
+    static final long[] EMPTY = new long[0];
+
+    private LikeRows() {
+    }
+
+    //тот же массив - значение уже есть
+    static long[] insert(long[] values, long value) {
+        int position = Arrays.binarySearch(values, value);
+        if (position >= 0) {
+            return values;
+        }
+        position = -position - 1;
+        long[] result = new long[values.length + 1];
+        System.arraycopy(values, 0, result, 0, position);
+        result[position] = value;
+        System.arraycopy(values, position, result, position + 1, values.length - position);
+
+        return result;
+    }
+
+    //тот же массив - значения не было
+    static long[] remove(long[] values, long value) {
+        int position = Arrays.binarySearch(values, value);
+        if (position < 0) {
+            return values;
+        }
+        if (values.length == 1) {
+            return EMPTY;
+        }
+        long[] result = new long[values.length - 1];
+        System.arraycopy(values, 0, result, 0, position);
+        System.arraycopy(values, position + 1, result, position, values.length - position - 1);
+
+        return result;
+    }
+
+    //собирает поток пар, отсортированный по ключу, в строки; byFilm - ключ фильм, иначе пользователь
+    static final class Grouper implements LikeMatrix.LikeConsumer {
+        private final boolean byFilm;
+        private final BiConsumer<Long, long[]> sink;
+        private long key = Long.MIN_VALUE;
+        private long[] values = new long[16];
+        private int size;
+
+        Grouper(boolean byFilm, BiConsumer<Long, long[]> sink) {
+            this.byFilm = byFilm;
+            this.sink = sink;
+        }
+
+        @Override
+        public void accept(long userId, long filmId) {
+            long rowKey = byFilm ? filmId : userId;
+            if (rowKey != key) {
+                finish();
+                key = rowKey;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = byFilm ? userId : filmId;
+        }
+
+        void finish() {
+            if (size > 0) {
+                sink.accept(key, Arrays.copyOf(values, size));
+            }
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import java.util.function.BiConsumer;
+
+//Хранилище строк матрицы лайков. Все изменения приходят из LikeMatrix под её блокировкой записи,
+//чтение - из любых потоков без блокировок
+public interface LikeStore {
+
+    long[] getUserFilms(long userId);
+
+    long[] getFilmUsers(long filmId);
+
+    //пользователь с наименьшим id, у которого есть лайки, кроме указанного; -1 - такого нет
+    long firstUserExcept(long userId);
+
+    //false - лайк уже был
+    boolean add(long filmId, long userId);
+
+    //false - лайка не было
+    boolean remove(long filmId, long userId);
+
+    //все непустые строки пользователей по возрастанию id
+    void forEachUser(BiConsumer<Long, long[]> action);
+
+    //полная загрузка из источника; прежнее содержимое отбрасывается
+    void load(LikeMatrix.LikeSource source);
+
+    //быстрый старт из ранее сохранённых данных; false - данных нет или они разошлись с источником
+    boolean restore(LikeMatrix.LikeSource source);
+}
@@ -0,0 +1,198 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.LikeChange;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+//Отложенная запись лайков: изменения по одной паре (фильм, пользователь) схлопываются до последнего,
+//фоновый поток пишет их пачками. Если запись отстала больше чем на maxLag, пишет сам вызывающий поток
+@Component
+@Slf4j
+public class LikeWriteBuffer {
+
+    private final boolean enabled;
+    private final long flushIntervalMillis;
+    private final long maxLagNanos;
+    //добавление под read lock, подмена буфера при сбросе - под write lock
+    private final ReadWriteLock swapLock = new ReentrantReadWriteLock();
+    private final Object lifecycleMonitor = new Object();
+    private volatile Pending pending = new Pending();
+    private volatile Consumer<List<LikeChange>> writer;
+    private ScheduledExecutorService flusher;
+
+    public LikeWriteBuffer(@Value("${filmorate.likes.write-behind.enabled:false}") boolean enabled,
+                           @Value("${filmorate.likes.write-behind.flush-interval:200ms}") Duration flushInterval,
+                           @Value("${filmorate.likes.write-behind.max-lag:2s}") Duration maxLag) {
+        this.enabled = enabled;
+        this.flushIntervalMillis = flushInterval.toMillis();
+        this.maxLagNanos = maxLag.toNanos();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void start(Consumer<List<LikeChange>> writer) {
+        synchronized (lifecycleMonitor) {
+            if (!enabled || flusher != null) {
+                return;
+            }
+            log.info("Like write-behind enabled, flush interval {} ms", flushIntervalMillis);
+            this.writer = writer;
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "like-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //изменение уже в буфере: ошибка записи в вызывающем потоке не возвращается клиенту,
+    //изменения остаются в буфере до следующего сброса
+    public void add(Long filmId, Long userId, boolean liked) {
+        swapLock.readLock().lock();
+        try {
+            pending.oldestAt.compareAndSet(Pending.EMPTY, System.nanoTime());
+            pending.changes.put(new Key(filmId, userId), liked);
+        } finally {
+            swapLock.readLock().unlock();
+        }
+        if (getLagNanos() > maxLagNanos) {
+            log.warn("Like write-behind lag exceeded, flushing in caller thread");
+            flushQuietly();
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.changes.size();
+    }
+
+    //возраст самого старого незаписанного изменения
+    public long getLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(getLagNanos());
+    }
+
+    //запись всего накопленного; при ошибке изменения возвращаются в буфер, если их не перекрыли более новые
+    public synchronized void flush() {
+        if (writer == null) {
+            return;
+        }
+        Pending batch;
+        swapLock.writeLock().lock();
+        try {
+            if (pending.changes.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new Pending();
+        } finally {
+            swapLock.writeLock().unlock();
+        }
+
+        List<LikeChange> changes = new ArrayList<>(batch.changes.size());
+        batch.changes.forEach((key, liked) -> changes.add(new LikeChange(key.filmId, key.userId, liked)));
+        log.debug("flush likes, size {}", changes.size());
+        try {
+            writer.accept(changes);
+        } catch (RuntimeException e) {
+            //возвращённые изменения сохраняют время, с которого они ждут записи
+            swapLock.writeLock().lock();
+            try {
+                batch.changes.forEach(pending.changes::putIfAbsent);
+                long oldestAt = pending.oldestAt.get();
+                if (oldestAt == Pending.EMPTY || batch.oldestAt.get() - oldestAt < 0) {
+                    pending.oldestAt.set(batch.oldestAt.get());
+                }
+            } finally {
+                swapLock.writeLock().unlock();
+            }
+            throw e;
+        }
+    }
+
+    //остановка фонового потока и запись всего, что осталось в буфере
+    public void stop() {
+        synchronized (lifecycleMonitor) {
+            if (flusher == null) {
+                return;
+            }
+            flusher.shutdown();
+            try {
+                if (!flusher.awaitTermination(30, TimeUnit.SECONDS)) {
+                    log.warn("Like write-behind flusher did not stop in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+            flush();
+            log.info("Like write-behind drained");
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Like write-behind flush failed, will retry", e);
+        }
+    }
+
+    private long getLagNanos() {
+        long oldestAt = pending.oldestAt.get();
+
+        return oldestAt == Pending.EMPTY ? 0 : System.nanoTime() - oldestAt;
+    }
+
+    //изменения и время первого из них меняются вместе при подмене буфера
+    private static final class Pending {
+        private static final long EMPTY = Long.MIN_VALUE;
+        private final Map<Key, Boolean> changes = new ConcurrentHashMap<>();
+        private final AtomicLong oldestAt = new AtomicLong(EMPTY);
+    }
+
+    private static final class Key {
+        private final long filmId;
+        private final long userId;
+
+        Key(long filmId, long userId) {
+            this.filmId = filmId;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+
+            return filmId == key.filmId && userId == key.userId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(filmId, userId);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+//Строки матрицы вне кучи: снимок в формате CSR (ключи, смещения, значения) для пользователей и для фильмов,
+//отображённый в память, плюс изменённые после снимка строки в куче и журнал изменений на диске.
+//После перезапуска снимок открывается сразу, журнал доигрывается. Когда журнал дорастает до compactThreshold,
+//изменённые строки замораживаются вместе с журналом, и снимок пересобирается в фоне из прежнего снимка
+//и замороженных строк; новые изменения тем временем идут в свежий слой и свежий журнал
+@Component
+@ConditionalOnProperty(name = "filmorate.like-matrix.mode", havingValue = "mapped")
+@Slf4j
+public class MappedLikeStore implements LikeStore {
+
+    private static final String BASE = "base";
+    private static final String USERS = "users";
+    private static final String FILMS = "films";
+    private static final String META = "meta.properties";
+    private static final String JOURNAL = "likes.log";
+    //журнал замороженных строк; остаётся на диске, пока их не вберёт новый снимок
+    private static final String FROZEN_JOURNAL = "likes.log.frozen";
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+    private final Path directory;
+    private final long compactThreshold;
+    private final ExecutorService compactor;
+    private volatile Layers users = Layers.EMPTY;
+    private volatile Layers films = Layers.EMPTY;
+    //сводка для сверки с источником, см. LikeMatrix.LikeSource
+    private final long[] summary = new long[3];
+    private DataOutputStream journal;
+    private long journalEntries;
+    private volatile boolean compacting;
+
+    public MappedLikeStore(@Value("${filmorate.like-matrix.directory:data/likes}") String directory,
+                           @Value("${filmorate.like-matrix.compact-threshold:1000000}") long compactThreshold) {
+        this.directory = Paths.get(directory);
+        this.compactThreshold = compactThreshold;
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "like-matrix-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public long[] getUserFilms(long userId) {
+        return users.row(userId);
+    }
+
+    @Override
+    public long[] getFilmUsers(long filmId) {
+        return films.row(filmId);
+    }
+
+    @Override
+    public long firstUserExcept(long userId) {
+        Layers current = users;
+        long[] result = {-1};
+        current.forEachKey(key -> {
+            if (key != userId && current.row(key).length > 0) {
+                result[0] = key;
+                return false;
+            }
+            return true;
+        });
+
+        return result[0];
+    }
+
+    @Override
+    public boolean add(long filmId, long userId) {
+        long[] userFilms = getUserFilms(userId);
+        long[] newFilms = LikeRows.insert(userFilms, filmId);
+        if (newFilms == userFilms) {
+            return false;
+        }
+        append(true, filmId, userId);
+        users.live.put(userId, newFilms);
+        films.live.put(filmId, LikeRows.insert(getFilmUsers(filmId), userId));
+        changeSummary(filmId, userId, 1);
+        compactIfNeeded();
+
+        return true;
+    }
+
+    @Override
+    public boolean remove(long filmId, long userId) {
+        long[] userFilms = getUserFilms(userId);
+        long[] newFilms = LikeRows.remove(userFilms, filmId);
+        if (newFilms == userFilms) {
+            return false;
+        }
+        append(false, filmId, userId);
+        users.live.put(userId, newFilms);
+        films.live.put(filmId, LikeRows.remove(getFilmUsers(filmId), userId));
+        changeSummary(filmId, userId, -1);
+        compactIfNeeded();
+
+        return true;
+    }
+
+    @Override
+    public void forEachUser(BiConsumer<Long, long[]> action) {
+        Layers current = users;
+        current.forEachKey(key -> {
+            long[] row = current.row(key);
+            if (row.length > 0) {
+                action.accept(key, row);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public void load(LikeMatrix.LikeSource source) {
+        try {
+            Path next = directory.resolve(BASE + ".next");
+            deleteRecursively(next);
+            Files.createDirectories(next);
+            long[] loaded = new long[3];
+            writeCsr(next, USERS, false, sink -> source.forEachByUser((userId, filmId) -> {
+                addToSummary(loaded, filmId, userId, 1);
+                sink.accept(userId, filmId);
+            }));
+            writeCsr(next, FILMS, true, source::forEachByFilm);
+            switchBase(next, loaded);
+            openBase(directory.resolve(BASE), loaded);
+            Files.deleteIfExists(directory.resolve(FROZEN_JOURNAL));
+            closeJournal();
+            openJournal(true);
+            journalEntries = 0;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean restore(LikeMatrix.LikeSource source) {
+        Path base = directory.resolve(BASE);
+        if (!Files.exists(base.resolve(META))) {
+            return false;
+        }
+        try {
+            Properties meta = new Properties();
+            try (InputStream in = Files.newInputStream(base.resolve(META))) {
+                meta.load(in);
+            }
+            openBase(base, new long[]{Long.parseLong(meta.getProperty("likes")),
+                    Long.parseLong(meta.getProperty("hash-a")), Long.parseLong(meta.getProperty("hash-b"))});
+            long replayed = replayJournals();
+            if (!Arrays.equals(summary, source.summary())) {
+                log.warn("Like matrix files differ from database, reloading");
+                closeJournal();
+                return false;
+            }
+            log.info("Like matrix files restored, likes {}, journal entries {}", summary[0], replayed);
+
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Like matrix files are unreadable, reloading", e);
+            closeJournal();
+            return false;
+        }
+    }
+
+    //прерванная пересборка не опасна: при старте замороженный журнал доигрывается заново
+    @PreDestroy
+    public void close() {
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn("Like matrix compaction did not finish in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeJournal();
+    }
+
+    private void changeSummary(long filmId, long userId, int delta) {
+        addToSummary(summary, filmId, userId, delta);
+    }
+
+    private static void addToSummary(long[] target, long filmId, long userId, int delta) {
+        target[0] += delta;
+        target[1] += delta * LikeMatrix.pairHash(filmId, userId, LikeMatrix.HASH_FACTORS[0]);
+        target[2] += delta * LikeMatrix.pairHash(filmId, userId, LikeMatrix.HASH_FACTORS[1]);
+    }
+
+    //лайк уже записан в БД, поэтому ошибка диска не доходит до запроса: строки в куче всё равно меняются,
+    //журнал больше не пишется до следующей заморозки. Если до конца пересборки процесс остановится, сводка файлов
+    //разойдётся с БД и при старте матрица загрузится заново
+    private void append(boolean liked, long filmId, long userId) {
+        journalEntries++;
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.writeBoolean(liked);
+            journal.writeLong(filmId);
+            journal.writeLong(userId);
+            journal.flush();
+        } catch (IOException e) {
+            log.error("Like matrix journal write failed, journal is off until the next compaction", e);
+            closeJournal();
+        }
+    }
+
+    //вызывается писателем под блокировкой LikeMatrix; пока идёт пересборка, новая не начинается
+    private void compactIfNeeded() {
+        if (journalEntries < compactThreshold || compacting || compactor.isShutdown()) {
+            return;
+        }
+        Layers frozenUsers;
+        Layers frozenFilms;
+        try {
+            freezeJournal();
+            frozenUsers = users.freeze();
+            frozenFilms = films.freeze();
+        } catch (IOException e) {
+            //следующая попытка - через compactThreshold изменений
+            log.error("Like matrix journal freeze failed", e);
+            journalEntries = 0;
+            return;
+        }
+        users = frozenUsers;
+        films = frozenFilms;
+        long[] frozenSummary = summary.clone();
+        log.info("Compact like matrix in background, journal entries {}", journalEntries);
+        journalEntries = 0;
+        compacting = true;
+        compactor.execute(() -> compact(frozenUsers, frozenFilms, frozenSummary));
+    }
+
+    //текущий журнал дописывается к замороженному (он остаётся после неудачной пересборки) или становится им
+    private void freezeJournal() throws IOException {
+        closeJournal();
+        Path journalPath = directory.resolve(JOURNAL);
+        Path frozenPath = directory.resolve(FROZEN_JOURNAL);
+        if (Files.exists(journalPath)) {
+            if (Files.exists(frozenPath)) {
+                try (OutputStream out = Files.newOutputStream(frozenPath, StandardOpenOption.APPEND)) {
+                    Files.copy(journalPath, out);
+                }
+                Files.delete(journalPath);
+            } else {
+                Files.move(journalPath, frozenPath);
+            }
+        }
+        openJournal(true);
+    }
+
+    //новый снимок из прежнего и замороженных строк. Читатели переходят на него одной подменой слоёв,
+    //после чего замороженные строки и их журнал больше не нужны
+    private void compact(Layers frozenUsers, Layers frozenFilms, long[] frozenSummary) {
+        long startedAt = System.currentTimeMillis();
+        try {
+            Path next = directory.resolve(BASE + ".next");
+            deleteRecursively(next);
+            Files.createDirectories(next);
+            writeCsr(next, USERS, false, sink -> frozenUsers.forEachFrozenKey(key -> {
+                for (long filmId : frozenUsers.frozenRow(key)) {
+                    sink.accept(key, filmId);
+                }
+                return true;
+            }));
+            writeCsr(next, FILMS, true, sink -> frozenFilms.forEachFrozenKey(key -> {
+                for (long userId : frozenFilms.frozenRow(key)) {
+                    sink.accept(userId, key);
+                }
+                return true;
+            }));
+            switchBase(next, frozenSummary);
+            Path base = directory.resolve(BASE);
+            users = users.rebase(Csr.open(base, USERS));
+            films = films.rebase(Csr.open(base, FILMS));
+            Files.deleteIfExists(directory.resolve(FROZEN_JOURNAL));
+            log.info("Like matrix compacted, likes {}, {} ms", frozenSummary[0],
+                    System.currentTimeMillis() - startedAt);
+        } catch (IOException | RuntimeException e) {
+            //замороженные строки остаются слоем чтения, следующая заморозка добавит к ним новые
+            log.error("Like matrix compaction failed", e);
+        } finally {
+            compacting = false;
+        }
+    }
+
+    //замороженный журнал, если прошлая пересборка не закончилась, затем текущий. Записи применяются к строкам
+    //в куче; повтор уже вошедших в снимок записей ничего не меняет. Журналы склеиваются в один текущий
+    private long replayJournals() throws IOException {
+        Path journalPath = directory.resolve(JOURNAL);
+        Path frozenPath = directory.resolve(FROZEN_JOURNAL);
+        long entries = replayJournal(frozenPath) + replayJournal(journalPath);
+        if (Files.exists(frozenPath)) {
+            Path merged = directory.resolve(JOURNAL + ".next");
+            try (OutputStream out = Files.newOutputStream(merged)) {
+                Files.copy(frozenPath, out);
+                if (Files.exists(journalPath)) {
+                    Files.copy(journalPath, out);
+                }
+            }
+            Files.move(merged, journalPath, StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(frozenPath);
+        }
+        journalEntries = entries;
+        openJournal(false);
+
+        return entries;
+    }
+
+    //недописанная последняя запись отбрасывается
+    private long replayJournal(Path journalPath) throws IOException {
+        if (!Files.exists(journalPath)) {
+            return 0;
+        }
+        long entries = 0;
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journalPath)))) {
+            while (true) {
+                boolean liked;
+                long filmId;
+                long userId;
+                try {
+                    liked = in.readBoolean();
+                    filmId = in.readLong();
+                    userId = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                long[] userFilms = getUserFilms(userId);
+                long[] newFilms = liked ? LikeRows.insert(userFilms, filmId) : LikeRows.remove(userFilms, filmId);
+                if (newFilms != userFilms) {
+                    users.live.put(userId, newFilms);
+                    long[] filmUsers = getFilmUsers(filmId);
+                    films.live.put(filmId, liked ? LikeRows.insert(filmUsers, userId)
+                            : LikeRows.remove(filmUsers, userId));
+                    changeSummary(filmId, userId, liked ? 1 : -1);
+                }
+                entries++;
+                valid += 17;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+            channel.truncate(valid);
+        }
+
+        return entries;
+    }
+
+    //готовый снимок подменяет файлы текущего
+    private void switchBase(Path next, long[] newSummary) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("likes", String.valueOf(newSummary[0]));
+        meta.setProperty("hash-a", String.valueOf(newSummary[1]));
+        meta.setProperty("hash-b", String.valueOf(newSummary[2]));
+        try (OutputStream out = Files.newOutputStream(next.resolve(META))) {
+            meta.store(out, null);
+        }
+        Path base = directory.resolve(BASE);
+        Path old = directory.resolve(BASE + ".old");
+        deleteRecursively(old);
+        if (Files.exists(base)) {
+            Files.move(base, old);
+        }
+        Files.move(next, base);
+        deleteRecursively(old);
+    }
+
+    //снимок без изменённых строк; только при загрузке, когда пересборки нет
+    private void openBase(Path base, long[] newSummary) throws IOException {
+        Csr newUsers = Csr.open(base, USERS);
+        Csr newFilms = Csr.open(base, FILMS);
+        users = new Layers(new ConcurrentSkipListMap<>(), Layers.NONE, newUsers);
+        films = new Layers(new ConcurrentSkipListMap<>(), Layers.NONE, newFilms);
+        System.arraycopy(newSummary, 0, summary, 0, summary.length);
+    }
+
+    private void openJournal(boolean truncate) throws IOException {
+        Files.createDirectories(directory);
+        OutputStream out = truncate
+                ? Files.newOutputStream(directory.resolve(JOURNAL))
+                : Files.newOutputStream(directory.resolve(JOURNAL), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        journal = new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.warn("Like matrix journal close failed", e);
+            }
+            journal = null;
+        }
+    }
+
+    //поток пар должен идти по возрастанию ключа: пользователя, а для byFilm - фильма
+    private static void writeCsr(Path dir, String name, boolean byFilm,
+                                 Consumer<LikeMatrix.LikeConsumer> pairs) throws IOException {
+        try (DataOutputStream keys = open(dir.resolve(name + ".keys"));
+             DataOutputStream offsets = open(dir.resolve(name + ".offsets"));
+             DataOutputStream values = open(dir.resolve(name + ".values"))) {
+            long[] state = {Long.MIN_VALUE, 0};
+            pairs.accept((userId, filmId) -> {
+                long key = byFilm ? filmId : userId;
+                try {
+                    if (key != state[0]) {
+                        keys.writeLong(key);
+                        offsets.writeLong(state[1]);
+                        state[0] = key;
+                    }
+                    values.writeLong(byFilm ? userId : filmId);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                state[1]++;
+            });
+            offsets.writeLong(state[1]);
+        }
+    }
+
+    private static DataOutputStream open(Path path) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16));
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    //строки одной стороны матрицы, сверху вниз: изменённые после заморозки, замороженные на время пересборки
+    //и снимок; пустой массив - строка удалена. Набор слоёв неизменяем и подменяется целиком
+    private static final class Layers {
+        private static final ConcurrentNavigableMap<Long, long[]> NONE = new ConcurrentSkipListMap<>();
+        private static final Layers EMPTY = new Layers(new ConcurrentSkipListMap<>(), NONE, Csr.EMPTY_CSR);
+        private final ConcurrentNavigableMap<Long, long[]> live;
+        private final ConcurrentNavigableMap<Long, long[]> frozen;
+        private final Csr base;
+
+        private Layers(ConcurrentNavigableMap<Long, long[]> live, ConcurrentNavigableMap<Long, long[]> frozen,
+                       Csr base) {
+            this.live = live;
+            this.frozen = frozen;
+            this.base = base;
+        }
+
+        long[] row(long key) {
+            long[] row = live.get(key);
+            return row != null ? row : frozenRow(key);
+        }
+
+        long[] frozenRow(long key) {
+            long[] row = frozen.get(key);
+            return row != null ? row : base.row(key);
+        }
+
+        //изменённые строки уходят в замороженный слой поверх оставшихся от неудачной пересборки
+        Layers freeze() {
+            ConcurrentNavigableMap<Long, long[]> newFrozen = live;
+            if (!frozen.isEmpty()) {
+                newFrozen = new ConcurrentSkipListMap<>(frozen);
+                newFrozen.putAll(live);
+            }
+
+            return new Layers(new ConcurrentSkipListMap<>(), newFrozen, base);
+        }
+
+        //новый снимок уже содержит замороженные строки
+        Layers rebase(Csr newBase) {
+            return new Layers(live, NONE, newBase);
+        }
+
+        //ключи всех слоёв по возрастанию без повторов; action возвращает false, чтобы остановиться
+        void forEachKey(KeyAction action) {
+            forEachKey(live, action);
+        }
+
+        void forEachFrozenKey(KeyAction action) {
+            forEachKey(NONE, action);
+        }
+
+        private void forEachKey(ConcurrentNavigableMap<Long, long[]> top, KeyAction action) {
+            Iterator<Long> topKeys = top.keySet().iterator();
+            Iterator<Long> frozenKeys = frozen.keySet().iterator();
+            long topKey = next(topKeys);
+            long frozenKey = next(frozenKeys);
+            long index = 0;
+            while (index < base.size || topKey != Long.MAX_VALUE || frozenKey != Long.MAX_VALUE) {
+                long baseKey = index < base.size ? base.keys.get(index) : Long.MAX_VALUE;
+                long key = Math.min(baseKey, Math.min(topKey, frozenKey));
+                if (baseKey == key) {
+                    index++;
+                }
+                if (topKey == key) {
+                    topKey = next(topKeys);
+                }
+                if (frozenKey == key) {
+                    frozenKey = next(frozenKeys);
+                }
+                if (!action.accept(key)) {
+                    return;
+                }
+            }
+        }
+
+        private static long next(Iterator<Long> keys) {
+            return keys.hasNext() ? keys.next() : Long.MAX_VALUE;
+        }
+    }
+
+    private interface KeyAction {
+        boolean accept(long key);
+    }
+
+    //отображённый в память файл long-ов; отображается кусками по 1 ГБ, т.к. один буфер ограничен 2 ГБ
+    private static final class LongFile {
+        private static final int CHUNK_SHIFT = 27;
+        private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+        private final LongBuffer[] chunks;
+        private final long length;
+
+        private LongFile(LongBuffer[] chunks, long length) {
+            this.chunks = chunks;
+            this.length = length;
+        }
+
+        static LongFile map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long length = channel.size() / Long.BYTES;
+                LongBuffer[] chunks = new LongBuffer[(int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT)];
+                for (int i = 0; i < chunks.length; i++) {
+                    long start = (long) i << CHUNK_SHIFT;
+                    long size = Math.min(CHUNK_MASK + 1, length - start);
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start * Long.BYTES, size * Long.BYTES)
+                            .asLongBuffer();
+                }
+
+                return new LongFile(chunks, length);
+            }
+        }
+
+        long get(long index) {
+            return chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK));
+        }
+    }
+
+    //строки в формате CSR: отсортированные ключи, начало строки каждого ключа и значения подряд
+    private static final class Csr {
+        private static final Csr EMPTY_CSR = new Csr(null, null, null, 0);
+        private final LongFile keys;
+        private final LongFile offsets;
+        private final LongFile values;
+        private final long size;
+
+        private Csr(LongFile keys, LongFile offsets, LongFile values, long size) {
+            this.keys = keys;
+            this.offsets = offsets;
+            this.values = values;
+            this.size = size;
+        }
+
+        static Csr open(Path dir, String name) throws IOException {
+            LongFile keys = LongFile.map(dir.resolve(name + ".keys"));
+            return new Csr(keys, LongFile.map(dir.resolve(name + ".offsets")),
+                    LongFile.map(dir.resolve(name + ".values")), keys.length);
+        }
+
+        long[] row(long key) {
+            long low = 0;
+            long high = size - 1;
+            while (low <= high) {
+                long middle = (low + high) >>> 1;
+                long middleKey = keys.get(middle);
+                if (middleKey < key) {
+                    low = middle + 1;
+                } else if (middleKey > key) {
+                    high = middle - 1;
+                } else {
+                    long start = offsets.get(middle);
+                    long[] row = new long[(int) (offsets.get(middle + 1) - start)];
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = values.get(start + i);
+                    }
+                    return row;
+                }
+            }
+
+            return LikeRows.EMPTY;
+        }
+    }
+}
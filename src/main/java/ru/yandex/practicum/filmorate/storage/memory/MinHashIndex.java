@@ -0,0 +1,144 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//MinHash-подписи множеств лайков пользователей и LSH-корзины по полосам подписи.
+//Пользователи, совпавшие с таргетом хотя бы в одной полосе, - кандидаты в соседи (приближённый поиск).
+//Подписи пересчитываются по строкам LikeMatrix при каждом их изменении
+@Component
+@Slf4j
+public class MinHashIndex {
+
+    private final boolean enabled;
+    private final int hashes;
+    private final int bands;
+    private final int rows;
+    private final int maxCandidates;
+    private final long[] seeds;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, long[]> signatures = new HashMap<>();
+    //для каждой полосы: хеш полосы -> пользователи
+    private final List<Map<Long, Set<Long>>> buckets = new ArrayList<>();
+
+    public MinHashIndex(LikeMatrix likeMatrix,
+                        @Value("${filmorate.recommendations.minhash.enabled:false}") boolean enabled,
+                        @Value("${filmorate.recommendations.minhash.hashes:64}") int hashes,
+                        @Value("${filmorate.recommendations.minhash.bands:32}") int bands,
+                        @Value("${filmorate.recommendations.minhash.max-candidates:2000}") int maxCandidates) {
+        if (bands <= 0 || hashes % bands != 0) {
+            throw new IllegalArgumentException("minhash hashes should be a multiple of bands");
+        }
+        this.enabled = enabled;
+        this.hashes = hashes;
+        this.bands = bands;
+        this.rows = hashes / bands;
+        this.maxCandidates = maxCandidates;
+        this.seeds = new long[hashes];
+        Random random = new Random(hashes);
+        for (int i = 0; i < hashes; i++) {
+            seeds[i] = random.nextLong();
+            if (i < bands) {
+                buckets.add(new HashMap<>());
+            }
+        }
+        if (enabled) {
+            log.info("MinHash recommendations enabled, hashes {}, bands {}", hashes, bands);
+            likeMatrix.addListener(this::updateUser);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    //кандидаты в соседи пользователя без него самого, не больше maxCandidates
+    public Set<Long> getCandidates(long userId) {
+        lock.readLock().lock();
+        try {
+            Set<Long> candidates = new HashSet<>();
+            long[] signature = signatures.get(userId);
+            if (signature == null) {
+                return candidates;
+            }
+            for (int band = 0; band < bands && candidates.size() < maxCandidates; band++) {
+                for (Long candidate : buckets.get(band).get(bandKey(signature, band))) {
+                    if (candidate != userId) {
+                        candidates.add(candidate);
+                        if (candidates.size() >= maxCandidates) {
+                            break;
+                        }
+                    }
+                }
+            }
+
+            return candidates;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void updateUser(long userId, long[] oldFilms, long[] films) {
+        long[] signature = films.length == 0 ? null : signature(films);
+        lock.writeLock().lock();
+        try {
+            long[] old = signature == null ? signatures.remove(userId) : signatures.put(userId, signature);
+            for (int band = 0; band < bands; band++) {
+                Map<Long, Set<Long>> bandBuckets = buckets.get(band);
+                Long newKey = signature == null ? null : bandKey(signature, band);
+                if (old != null) {
+                    long oldKey = bandKey(old, band);
+                    if (newKey != null && newKey == oldKey) {
+                        continue;
+                    }
+                    Set<Long> users = bandBuckets.get(oldKey);
+                    users.remove(userId);
+                    if (users.isEmpty()) {
+                        bandBuckets.remove(oldKey);
+                    }
+                }
+                if (newKey != null) {
+                    bandBuckets.computeIfAbsent(newKey, key -> new HashSet<>()).add(userId);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long[] signature(long[] films) {
+        long[] signature = new long[hashes];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        for (long filmId : films) {
+            for (int i = 0; i < hashes; i++) {
+                long hash = mix(filmId ^ seeds[i]);
+                if (hash < signature[i]) {
+                    signature[i] = hash;
+                }
+            }
+        }
+
+        return signature;
+    }
+
+    private long bandKey(long[] signature, int band) {
+        long key = band;
+        for (int i = band * rows; i < (band + 1) * rows; i++) {
+            key = mix(key * 31 + signature[i]);
+        }
+
+        return key;
+    }
+
+    //финализатор splitmix64
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
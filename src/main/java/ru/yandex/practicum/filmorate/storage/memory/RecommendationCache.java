@@ -0,0 +1,151 @@
+package ru.yandex.practicum.filmorate.storage.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.yandex.practicum.filmorate.model.RecommendationStats;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Готовые рекомендации для активных пользователей (запрашивавших рекомендации за последнее activeWindow).
+//Смена лайков пользователя сбрасывает его рекомендации сразу, остальные обновляет фоновый пересчёт.
+//Номер изменения не даёт положить результат, посчитанный до сброса
+@Component
+@Slf4j
+public class RecommendationCache {
+
+    private final long activeWindowMillis;
+    private final Map<Long, UserState> users = new ConcurrentHashMap<>();
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong changesSinceRefresh = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private volatile long lastRefreshAt;
+    private volatile long lastRefreshMillis;
+    private volatile int lastRefreshUsers;
+
+    public RecommendationCache(LikeMatrix likeMatrix,
+                               @Value("${filmorate.recommendations.precompute.active-window:1h}")
+                               Duration activeWindow) {
+        this.activeWindowMillis = activeWindow.toMillis();
+        //первичная загрузка матрицы - не изменение лайков
+        likeMatrix.addListener((userId, oldFilms, films) -> {
+            if (likeMatrix.isLoaded()) {
+                changesSinceRefresh.incrementAndGet();
+                invalidate(userId);
+            }
+        });
+    }
+
+    //null - рекомендаций нет, их нужно посчитать
+    public List<Long> get(long userId) {
+        UserState state = users.computeIfAbsent(userId, id -> new UserState(changes.get()));
+        state.lastRequestAt = System.currentTimeMillis();
+        List<Long> filmIds = state.filmIds;
+        if (filmIds == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        return filmIds;
+    }
+
+    //номер изменения, который нужно взять до начала расчёта и передать в put
+    public long getVersion() {
+        return changes.get();
+    }
+
+    public void put(long userId, List<Long> filmIds, long version) {
+        UserState state = users.get(userId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.invalidatedAt <= version) {
+                state.filmIds = List.copyOf(filmIds);
+            }
+        }
+    }
+
+    //номер растёт и без состояния в кэше: состояние, созданное после сброса, начинается с этого номера
+    public void invalidate(long userId) {
+        long version = changes.incrementAndGet();
+        UserState state = users.get(userId);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.invalidatedAt = Math.max(state.invalidatedAt, version);
+            state.filmIds = null;
+        }
+    }
+
+    //фильм удалён - сбрасываем рекомендации, в которых он есть
+    public void removeFilm(long filmId) {
+        users.forEach((userId, state) -> {
+            List<Long> filmIds = state.filmIds;
+            if (filmIds != null && filmIds.contains(filmId)) {
+                invalidate(userId);
+            }
+        });
+    }
+
+    //активные пользователи; давно не запрашивавшие рекомендации удаляются из кэша
+    public List<Long> getActiveUsers() {
+        long activeSince = System.currentTimeMillis() - activeWindowMillis;
+        users.entrySet().removeIf(entry -> entry.getValue().lastRequestAt < activeSince);
+
+        return new ArrayList<>(users.keySet());
+    }
+
+    public long getChangesSinceRefresh() {
+        return changesSinceRefresh.get();
+    }
+
+    //вызывается перед пересчётом: изменения, пришедшие во время пересчёта, попадут в следующий
+    public void startRefresh() {
+        changesSinceRefresh.set(0);
+    }
+
+    public void finishRefresh(long startedAt, int usersCount) {
+        lastRefreshAt = startedAt;
+        lastRefreshMillis = System.currentTimeMillis() - startedAt;
+        lastRefreshUsers = usersCount;
+        refreshes.incrementAndGet();
+        if (usersCount > 0) {
+            log.info("Recommendations refreshed, users {}, {} ms", usersCount, lastRefreshMillis);
+        }
+    }
+
+    public RecommendationStats getStats() {
+        long refreshedAt = lastRefreshAt;
+        return RecommendationStats.builder()
+                .hits(hits.get())
+                .misses(misses.get())
+                .activeUsers(users.size())
+                .refreshes(refreshes.get())
+                .lastRefreshUsers(lastRefreshUsers)
+                .lastRefreshMillis(lastRefreshMillis)
+                .stalenessMillis(refreshedAt == 0 ? null : System.currentTimeMillis() - refreshedAt)
+                .changesSinceRefresh(changesSinceRefresh.get())
+                .build();
+    }
+
+    //расчёт, начатый до создания состояния, мог не увидеть сброс, случившийся, пока состояния не было
+    private static class UserState {
+        private volatile long lastRequestAt;
+        private volatile List<Long> filmIds;
+        private long invalidatedAt;
+
+        UserState(long invalidatedAt) {
+            this.invalidatedAt = invalidatedAt;
+        }
+    }
+}
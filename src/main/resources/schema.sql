@@ -29,28 +29,34 @@ CREATE TABLE IF NOT EXISTS PUBLIC.FILMS (
 	RELEASE_DATE DATE,
 	DURATION INTEGER,
 	MPA_ID INTEGER NOT NULL,
+	LIKES_COUNT BIGINT DEFAULT 0 NOT NULL,
+	LIKES_VERSION BIGINT DEFAULT 0 NOT NULL,
 	CONSTRAINT FILMS_PK PRIMARY KEY (ID),
 	CONSTRAINT FILMS_FK FOREIGN KEY (MPA_ID) REFERENCES PUBLIC.MPA(ID) ON DELETE RESTRICT ON UPDATE RESTRICT
 );
 
+CREATE INDEX IF NOT EXISTS PUBLIC.FILMS_LIKES_COUNT_IDX ON PUBLIC.FILMS (LIKES_COUNT DESC, ID);
+
 CREATE TABLE IF NOT EXISTS PUBLIC.GENRES_FILMS (
-	ID BIGINT NOT NULL AUTO_INCREMENT,
 	FILM_ID BIGINT NOT NULL,
 	GENRE_ID INTEGER NOT NULL,
-	CONSTRAINT GENRES_FILMS_PK PRIMARY KEY (ID),
+	CONSTRAINT GENRES_FILMS_PK PRIMARY KEY (FILM_ID, GENRE_ID),
 	CONSTRAINT GENRES_FILMS_FK FOREIGN KEY (FILM_ID) REFERENCES PUBLIC.FILMS(ID) ON DELETE CASCADE ON UPDATE CASCADE,
 	CONSTRAINT GENRES_FILMS_FK_1 FOREIGN KEY (GENRE_ID) REFERENCES PUBLIC.GENRES(ID) ON DELETE RESTRICT ON UPDATE RESTRICT
 );
 
+CREATE INDEX IF NOT EXISTS PUBLIC.GENRES_FILMS_GENRE_IDX ON PUBLIC.GENRES_FILMS (GENRE_ID, FILM_ID);
+
 CREATE TABLE IF NOT EXISTS PUBLIC.DIRECTORS_FILMS (
-	ID BIGINT NOT NULL AUTO_INCREMENT,
 	FILM_ID BIGINT NOT NULL,
 	DIRECTOR_ID INTEGER NOT NULL,
-	CONSTRAINT DIRECTORS_FILMS_PK PRIMARY KEY (ID),
+	CONSTRAINT DIRECTORS_FILMS_PK PRIMARY KEY (FILM_ID, DIRECTOR_ID),
 	CONSTRAINT DIRECTORS_FILMS_FK FOREIGN KEY (FILM_ID) REFERENCES PUBLIC.FILMS(ID) ON DELETE CASCADE ON UPDATE CASCADE,
 	CONSTRAINT DIRECTORS_FILMS_FK_1 FOREIGN KEY (DIRECTOR_ID) REFERENCES PUBLIC.DIRECTORS(DIRECTOR_ID) ON DELETE CASCADE ON UPDATE CASCADE
 );
 
+CREATE INDEX IF NOT EXISTS PUBLIC.DIRECTORS_FILMS_DIRECTOR_IDX ON PUBLIC.DIRECTORS_FILMS (DIRECTOR_ID, FILM_ID);
+
 CREATE TABLE IF NOT EXISTS PUBLIC.USERS (
 	ID BIGINT NOT NULL AUTO_INCREMENT,
 	NAME CHARACTER VARYING(256),
@@ -61,25 +67,27 @@ CREATE TABLE IF NOT EXISTS PUBLIC.USERS (
 );
 
 CREATE TABLE IF NOT EXISTS PUBLIC.FILMS_LIKES (
-	ID BIGINT NOT NULL AUTO_INCREMENT,
 	FILM_ID BIGINT NOT NULL,
 	USER_ID BIGINT NOT NULL,
-	CONSTRAINT FILMS_LIKES_PK PRIMARY KEY (ID),
+	CONSTRAINT FILMS_LIKES_PK PRIMARY KEY (FILM_ID, USER_ID),
 	CONSTRAINT FILMS_LIKES_FK FOREIGN KEY (USER_ID) REFERENCES PUBLIC.USERS(ID) ON DELETE CASCADE ON UPDATE CASCADE,
 	CONSTRAINT FILMS_LIKES_FK_1 FOREIGN KEY (FILM_ID) REFERENCES PUBLIC.FILMS(ID)  ON DELETE CASCADE ON UPDATE CASCADE
 );
 
+CREATE INDEX IF NOT EXISTS PUBLIC.FILMS_LIKES_USER_IDX ON PUBLIC.FILMS_LIKES (USER_ID, FILM_ID);
+
 CREATE TABLE IF NOT EXISTS PUBLIC.FRIENDS (
-	ID BIGINT NOT NULL AUTO_INCREMENT,
 	USER_ID BIGINT NOT NULL,
 	FRIEND_ID BIGINT NOT NULL,
 	FRIENDSHIP_ID INTEGER NOT NULL,
-	CONSTRAINT FRIENDS_PK PRIMARY KEY (ID),
+	CONSTRAINT FRIENDS_PK PRIMARY KEY (USER_ID, FRIEND_ID),
 	CONSTRAINT FRIENDS_FK FOREIGN KEY (USER_ID) REFERENCES PUBLIC.USERS(ID) ON DELETE CASCADE ON UPDATE CASCADE ,
 	CONSTRAINT FRIENDS_FK_1 FOREIGN KEY (FRIEND_ID) REFERENCES PUBLIC.USERS(ID) ON DELETE CASCADE ON UPDATE CASCADE ,
 	CONSTRAINT FRIENDS_FK_2 FOREIGN KEY (FRIENDSHIP_ID) REFERENCES PUBLIC.FRIENDSHIP(ID)
 );
 
+CREATE INDEX IF NOT EXISTS PUBLIC.FRIENDS_FRIEND_IDX ON PUBLIC.FRIENDS (FRIEND_ID, USER_ID);
+
 CREATE TABLE IF NOT EXISTS PUBLIC.REVIEWS (
     ID BIGINT NOT NULL AUTO_INCREMENT,
     FILM_ID BIGINT NOT NULL,
@@ -87,20 +95,22 @@ CREATE TABLE IF NOT EXISTS PUBLIC.REVIEWS (
     REVIEW CHARACTER VARYING(32678),
     IS_POSITIVE BOOLEAN NOT NULL,
     CONSTRAINT REVIEWS_PK PRIMARY KEY (ID),
+    CONSTRAINT REVIEWS_FILM_USER_UK UNIQUE (FILM_ID, USER_ID),
     CONSTRAINT REVIEWS_FK FOREIGN KEY (FILM_ID) REFERENCES PUBLIC.FILMS(ID) ON DELETE CASCADE ON UPDATE CASCADE ,
     CONSTRAINT REVIEWS_FK_1 FOREIGN KEY (USER_ID) REFERENCES PUBLIC.USERS(ID) ON DELETE CASCADE ON UPDATE CASCADE
 );
 
 CREATE TABLE IF NOT EXISTS PUBLIC.REVIEW_ESTIMATION (
-    ID BIGINT NOT NULL AUTO_INCREMENT,
     REVIEW_ID BIGINT NOT NULL,
     USER_ID BIGINT NOT NULL,
     IS_USEFUL BOOLEAN NOT NULL,
-    CONSTRAINT REVIEW_ESTIMATION_PK PRIMARY KEY (ID),
+    CONSTRAINT REVIEW_ESTIMATION_PK PRIMARY KEY (REVIEW_ID, USER_ID),
     CONSTRAINT REVIEW_ESTIMATION_FK FOREIGN KEY (REVIEW_ID) REFERENCES PUBLIC.REVIEWS(ID) ON DELETE CASCADE ON UPDATE CASCADE ,
     CONSTRAINT REVIEW_ESTIMATION_FK_1 FOREIGN KEY (USER_ID) REFERENCES PUBLIC.USERS(ID) ON DELETE CASCADE ON UPDATE CASCADE
 );
 
+CREATE INDEX IF NOT EXISTS PUBLIC.REVIEW_ESTIMATION_USER_IDX ON PUBLIC.REVIEW_ESTIMATION (USER_ID, REVIEW_ID);
+
 CREATE TABLE IF NOT EXISTS PUBLIC.EVENT_TYPES (
 	ID INTEGER NOT NULL AUTO_INCREMENT,
 	EVENT_TYPE CHARACTER VARYING(16) NOT NULL,
@@ -124,4 +134,36 @@ CREATE TABLE IF NOT EXISTS PUBLIC.FEEDS (
     CONSTRAINT FEED_FK FOREIGN KEY (USER_ID) REFERENCES PUBLIC.USERS(ID) ON DELETE CASCADE ON UPDATE CASCADE,
     CONSTRAINT FEED_FK_1 FOREIGN KEY (EVENT_TYPE_ID) REFERENCES PUBLIC.EVENT_TYPES(ID) ON DELETE CASCADE ON UPDATE CASCADE,
     CONSTRAINT FEED_FK_2 FOREIGN KEY (OPERATION_ID) REFERENCES PUBLIC.OPERATIONS(ID) ON DELETE CASCADE ON UPDATE CASCADE
-);
\ No newline at end of file
+);
+
+CREATE INDEX IF NOT EXISTS PUBLIC.FEEDS_USER_IDX ON PUBLIC.FEEDS (USER_ID, ID DESC);
+CREATE INDEX IF NOT EXISTS PUBLIC.FEEDS_USER_TYPE_IDX ON PUBLIC.FEEDS (USER_ID, EVENT_TYPE_ID, ID DESC);
+CREATE INDEX IF NOT EXISTS PUBLIC.FEEDS_USER_TIME_IDX ON PUBLIC.FEEDS (USER_ID, CREATE_TIME);
+CREATE INDEX IF NOT EXISTS PUBLIC.FEEDS_CREATE_TIME_IDX ON PUBLIC.FEEDS (CREATE_TIME);
+
+CREATE TABLE IF NOT EXISTS PUBLIC.FEED_ARCHIVES (
+    ID BIGINT NOT NULL AUTO_INCREMENT,
+    FILE_NAME CHARACTER VARYING(255) NOT NULL,
+    PERIOD_START TIMESTAMP NOT NULL,
+    PERIOD_END TIMESTAMP NOT NULL,
+    MIN_ID BIGINT NOT NULL,
+    MAX_ID BIGINT NOT NULL,
+    EVENTS INTEGER NOT NULL,
+    CREATE_TIME TIMESTAMP NOT NULL,
+    CONSTRAINT FEED_ARCHIVES_PK PRIMARY KEY (ID)
+);
+
+CREATE TABLE IF NOT EXISTS PUBLIC.FEED_ARCHIVE_SEGMENTS (
+    ARCHIVE_ID BIGINT NOT NULL,
+    USER_ID BIGINT NOT NULL,
+    FILE_OFFSET BIGINT NOT NULL,
+    LENGTH INTEGER NOT NULL,
+    EVENTS INTEGER NOT NULL,
+    MIN_ID BIGINT NOT NULL,
+    MAX_ID BIGINT NOT NULL,
+    CONSTRAINT FEED_ARCHIVE_SEGMENTS_PK PRIMARY KEY (ARCHIVE_ID, USER_ID),
+    CONSTRAINT FEED_ARCHIVE_SEGMENTS_FK FOREIGN KEY (ARCHIVE_ID) REFERENCES PUBLIC.FEED_ARCHIVES(ID) ON DELETE CASCADE ON UPDATE CASCADE,
+    CONSTRAINT FEED_ARCHIVE_SEGMENTS_FK_1 FOREIGN KEY (USER_ID) REFERENCES PUBLIC.USERS(ID) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS PUBLIC.FEED_ARCHIVE_SEGMENTS_USER_IDX ON PUBLIC.FEED_ARCHIVE_SEGMENTS (USER_ID, MAX_ID DESC);
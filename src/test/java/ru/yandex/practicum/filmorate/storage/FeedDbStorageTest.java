@@ -4,25 +4,47 @@ import lombok.RequiredArgsConstructor;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.transaction.PlatformTransactionManager;
 import ru.yandex.practicum.filmorate.model.*;
+import ru.yandex.practicum.filmorate.service.FeedService;
+import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.storage.impl.DictionaryDbStorage;
+import ru.yandex.practicum.filmorate.storage.impl.FeedArchive;
 import ru.yandex.practicum.filmorate.storage.impl.FeedDbStorage;
 import ru.yandex.practicum.filmorate.storage.impl.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.impl.IdIndex;
 import ru.yandex.practicum.filmorate.storage.impl.ReviewDbStorage;
 import ru.yandex.practicum.filmorate.storage.impl.UserDbStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FeedWriteQueue;
+import ru.yandex.practicum.filmorate.storage.memory.FilmCache;
+import ru.yandex.practicum.filmorate.storage.memory.FilmLeaderboard;
+import ru.yandex.practicum.filmorate.storage.memory.FriendGraph;
+import ru.yandex.practicum.filmorate.storage.memory.FriendTimeline;
+import ru.yandex.practicum.filmorate.storage.memory.LikeMatrix;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @JdbcTest
 @RequiredArgsConstructor(onConstructor_ = @Autowired)
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 public class FeedDbStorageTest {
     private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
     private Film newFilm;
     private User newUser;
     private Review newReview;
@@ -37,10 +59,12 @@ public class FeedDbStorageTest {
                 120, Collections.emptyList(), Collections.emptyList(), new Mpa(1,"G"));
         newUser = new User(1L, "user@email.ru", "vanya123", "Ivan Petrov", LocalDate.of(1990, 1, 1));
         newReview = new Review(1L,"review content", true, 1L, 1L, 0L);
-        filmStorage = new FilmDbStorage(jdbcTemplate);
-        userStorage = new UserDbStorage(jdbcTemplate);
-        reviewStorage = new ReviewDbStorage(jdbcTemplate);
-        feedStorage = new FeedDbStorage(jdbcTemplate);
+        IdIndex idIndex = new IdIndex(jdbcTemplate, true);
+        filmStorage = new FilmDbStorage(jdbcTemplate, new DictionaryDbStorage(jdbcTemplate),
+                new FilmCache(1000, Duration.ofMinutes(10)), idIndex);
+        userStorage = new UserDbStorage(jdbcTemplate, idIndex);
+        reviewStorage = new ReviewDbStorage(jdbcTemplate, idIndex);
+        feedStorage = FeedStorages.synchronous(jdbcTemplate, transactionManager);
         userStorage.addUser(newUser);
         filmStorage.addFilm(newFilm);
         reviewStorage.addReview(newReview);
@@ -64,4 +88,284 @@ public class FeedDbStorageTest {
         Assertions.assertEquals(feeds.get(0).getEventType(), "REVIEW");
         Assertions.assertEquals(feeds.get(0).getOperation(), "ADD");
     }
+
+    @Test
+    public void testGetFeedPages() {
+        for (int i = 0; i < 5; i++) {
+            feedStorage.addFeedEntity(newUser.getId(), i % 2 == 0 ? FeedEventType.LIKE : FeedEventType.FRIEND,
+                    FeedOperations.ADD, i + 1);
+        }
+
+        //от новых к старым, курсор - id последнего события страницы
+        List<Feed> firstPage = feedStorage.getUserFeedPage(newUser.getId(), null, null, null, 2);
+        Assertions.assertEquals(List.of(5L, 4L), entityIds(firstPage));
+        List<Feed> secondPage = feedStorage.getUserFeedPage(newUser.getId(), firstPage.get(1).getEventId(),
+                null, null, 2);
+        Assertions.assertEquals(List.of(3L, 2L), entityIds(secondPage));
+
+        List<Feed> likes = feedStorage.getUserFeedPage(newUser.getId(), null, null, FeedEventType.LIKE, 10);
+        Assertions.assertEquals(List.of(5L, 3L, 1L), entityIds(likes));
+        Assertions.assertEquals("LIKE", likes.get(0).getEventType());
+        Assertions.assertEquals("ADD", likes.get(0).getOperation());
+
+        long since = firstPage.get(0).getTimestamp();
+        Assertions.assertEquals(firstPage.get(0).getEventId(),
+                feedStorage.getUserFeedPage(newUser.getId(), null, since, null, 10).get(0).getEventId());
+        Assertions.assertTrue(feedStorage.getUserFeedPage(newUser.getId(), null, since + 60_000, null, 10).isEmpty());
+    }
+
+    @Test
+    public void testGetFeedAfterEvent() {
+        for (int i = 0; i < 5; i++) {
+            feedStorage.addFeedEntity(newUser.getId(), FeedEventType.LIKE, FeedOperations.ADD, i + 1);
+        }
+        long lastEventId = feedStorage.getUserFeed(newUser.getId()).get(1).getEventId();
+
+        //догоняющее чтение после переподключения к потоку - по возрастанию, начиная со следующего события
+        Assertions.assertEquals(List.of(3L, 4L), entityIds(feedStorage.getUserFeedAfter(newUser.getId(),
+                lastEventId, 2)));
+        Assertions.assertEquals(List.of(3L, 4L, 5L), entityIds(feedStorage.getUserFeedAfter(newUser.getId(),
+                lastEventId, 10)));
+        Assertions.assertEquals(5, feedStorage.getUserFeedAfter(newUser.getId(), 0, 10).size());
+    }
+
+    @Test
+    public void testAsyncFeedWriterBatchesAndDrains() {
+        FeedWriteQueue feedWriteQueue = new FeedWriteQueue(true, 100, 10, Duration.ofHours(1),
+                FeedWriteQueue.Overflow.BLOCK);
+        FeedDbStorage asyncFeedStorage = FeedStorages.withQueue(jdbcTemplate, transactionManager, feedWriteQueue);
+        asyncFeedStorage.init();
+        for (int i = 0; i < 25; i++) {
+            asyncFeedStorage.addFeedEntity(newUser.getId(), FeedEventType.LIKE, FeedOperations.ADD, i + 1);
+        }
+
+        //поток записи спит flushInterval, чтение будит его и ждёт записи всего, что добавлено до него
+        List<Feed> feeds = asyncFeedStorage.getUserFeed(newUser.getId());
+        Assertions.assertEquals(25, feeds.size());
+        Assertions.assertEquals(List.of(1L, 2L, 3L), entityIds(feeds.subList(0, 3)));
+        FeedWriterStats stats = feedWriteQueue.getStats();
+        Assertions.assertEquals(0, stats.getPending());
+        Assertions.assertEquals(25, stats.getWritten());
+        Assertions.assertTrue(stats.getBatches() >= 3);
+        Assertions.assertTrue(stats.getLastBatchSize() <= 10);
+
+        asyncFeedStorage.addFeedEntity(newUser.getId(), FeedEventType.FRIEND, FeedOperations.ADD, 100);
+        //остановка дописывает очередь, после неё события пишутся сразу
+        asyncFeedStorage.shutdown();
+        asyncFeedStorage.addFeedEntity(newUser.getId(), FeedEventType.FRIEND, FeedOperations.REMOVE, 100);
+
+        Assertions.assertEquals(27, jdbcTemplate.queryForObject("select count(*) from feeds", Integer.class));
+        Assertions.assertEquals(26, feedWriteQueue.getStats().getWritten());
+    }
+
+    @Test
+    public void testFeedReadWaitsOnlyForOwnEvents() {
+        userStorage.addUser(new User(2L, "user2@email.ru", "login2", "name2", LocalDate.of(1990, 1, 1)));
+        FeedWriteQueue feedWriteQueue = new FeedWriteQueue(true, 100, 10, Duration.ofHours(1),
+                FeedWriteQueue.Overflow.BLOCK);
+        FeedDbStorage asyncFeedStorage = FeedStorages.withQueue(jdbcTemplate, transactionManager, feedWriteQueue);
+        asyncFeedStorage.init();
+        asyncFeedStorage.addFeedEntity(2L, FeedEventType.LIKE, FeedOperations.ADD, 1);
+
+        //у 1 незаписанных событий нет: чтение не будит поток записи, событие 2 остаётся в очереди
+        Assertions.assertTrue(asyncFeedStorage.getUserFeed(1L).isEmpty());
+        Assertions.assertEquals(1, feedWriteQueue.getStats().getPending());
+        Assertions.assertEquals(List.of(1L), entityIds(asyncFeedStorage.getUserFeed(2L)));
+        Assertions.assertEquals(0, feedWriteQueue.getStats().getPending());
+        asyncFeedStorage.shutdown();
+    }
+
+    @Test
+    public void testFailedFeedBatchIsNotWrittenTwice() {
+        FeedWriteQueue feedWriteQueue = new FeedWriteQueue(true, 100, 10, Duration.ofHours(1),
+                FeedWriteQueue.Overflow.BLOCK);
+        FeedDbStorage asyncFeedStorage = FeedStorages.withQueue(jdbcTemplate, transactionManager, feedWriteQueue);
+        asyncFeedStorage.init();
+        //событие несуществующего пользователя роняет пачку, остальные дописываются по одному
+        asyncFeedStorage.addFeedEntity(newUser.getId(), FeedEventType.LIKE, FeedOperations.ADD, 1);
+        asyncFeedStorage.addFeedEntity(999L, FeedEventType.LIKE, FeedOperations.ADD, 2);
+        asyncFeedStorage.addFeedEntity(newUser.getId(), FeedEventType.LIKE, FeedOperations.ADD, 3);
+
+        Assertions.assertEquals(List.of(1L, 3L), entityIds(asyncFeedStorage.getUserFeed(newUser.getId())));
+        asyncFeedStorage.shutdown();
+        Assertions.assertEquals(2, jdbcTemplate.queryForObject("select count(*) from feeds", Integer.class));
+        FeedWriterStats stats = feedWriteQueue.getStats();
+        Assertions.assertEquals(2, stats.getWritten());
+        Assertions.assertEquals(1, stats.getFailed());
+    }
+
+    @Test
+    public void testTimelineFansOutToFriends() {
+        for (long id = 2; id <= 4; id++) {
+            userStorage.addUser(new User(id, "user" + id + "@email.ru", "login" + id, "name" + id,
+                    LocalDate.of(1990, 1, 1)));
+        }
+        FriendGraph friendGraph = new FriendGraph();
+        UserService userService = new UserService(userStorage, feedStorage, new FilmLeaderboard(), new LikeMatrix(),
+                friendGraph);
+        //буфер на 3 события; у 3 два подписчика - его события читаются из БД
+        FeedService feedService = new FeedService(userStorage, feedStorage, friendGraph,
+                new FriendTimeline(friendGraph, 3, 1, 1000));
+        feedService.init();
+        userService.addFriend(1L, 2L);
+        userService.addFriend(1L, 3L);
+        userService.addFriend(4L, 3L);
+        feedStorage.addFeedEntity(2L, FeedEventType.LIKE, FeedOperations.ADD, 10);
+
+        Assertions.assertEquals(List.of(10L), entityIds(feedService.getTimeline(1L, null, 10).getItems()));
+
+        feedStorage.addFeedEntity(3L, FeedEventType.LIKE, FeedOperations.ADD, 20);
+        for (long entityId = 11; entityId <= 13; entityId++) {
+            feedStorage.addFeedEntity(2L, FeedEventType.LIKE, FeedOperations.ADD, entityId);
+        }
+        feedStorage.addFeedEntity(4L, FeedEventType.LIKE, FeedOperations.ADD, 30);
+
+        //первая страница - из буфера и выборки по 3; следующие выходят за буфер и читаются из БД целиком
+        Page<Feed> firstPage = feedService.getTimeline(1L, null, 2);
+        Assertions.assertEquals(List.of(13L, 12L), entityIds(firstPage.getItems()));
+        Page<Feed> secondPage = feedService.getTimeline(1L, firstPage.getNextCursor(), 2);
+        Assertions.assertEquals(List.of(11L, 20L), entityIds(secondPage.getItems()));
+        Assertions.assertEquals(List.of(13L, 12L, 11L, 20L, 10L),
+                entityIds(feedService.getTimeline(1L, null, 10).getItems()));
+        Assertions.assertEquals(entityIds(feedStorage.getFriendsFeedPage(1L, null, 10)),
+                entityIds(feedService.getTimeline(1L, null, 10).getItems()));
+
+        //новый друг сбрасывает буфер, его события появляются в ленте
+        userService.addFriend(1L, 4L);
+        Assertions.assertEquals(List.of(30L, 13L),
+                entityIds(feedService.getTimeline(1L, null, 2).getItems()));
+    }
+
+    @Test
+    public void testFeedArchiveStitchesPages(@TempDir Path directory) throws Exception {
+        userStorage.addUser(new User(2L, "user2@email.ru", "login2", "name2", LocalDate.of(1990, 1, 1)));
+        long now = System.currentTimeMillis();
+        long day = Duration.ofDays(1).toMillis();
+        //события 41 и 40 дней назад уходят в архив, вчерашнее остаётся в таблице
+        addFeedAt(1L, now - 41 * day, 1, 1);
+        addFeedAt(2L, now - 41 * day, 1, 100);
+        addFeedAt(1L, now - 40 * day, 3, 2);
+        addFeedAt(1L, now - 40 * day, 1, 3);
+        addFeedAt(1L, now - day, 1, 4);
+        feedStorage.addFeedEntity(1L, FeedEventType.FRIEND, FeedOperations.ADD, 5);
+        FeedArchive feedArchive = new FeedArchive(jdbcTemplate, transactionManager, true, directory.toString(),
+                Duration.ofDays(30), Duration.ofDays(1), Duration.ofHours(1));
+        FeedDbStorage archivedFeedStorage = new FeedDbStorage(jdbcTemplate, transactionManager,
+                new FeedWriteQueue(false, 1, 1, Duration.ZERO, FeedWriteQueue.Overflow.BLOCK), feedArchive);
+
+        Assertions.assertEquals(4, feedArchive.compact(now));
+        Assertions.assertEquals(0, feedArchive.compact(now));
+        Assertions.assertEquals(2, jdbcTemplate.queryForObject("select count(*) from feeds", Integer.class));
+        Assertions.assertEquals(2, jdbcTemplate.queryForObject("select count(*) from feed_archives", Integer.class));
+        try (Stream<Path> files = Files.list(directory)) {
+            Assertions.assertEquals(2, files.count());
+        }
+
+        //чтение склеивает таблицу и архив по границе id
+        Assertions.assertEquals(List.of(1L, 2L, 3L, 4L, 5L), entityIds(archivedFeedStorage.getUserFeed(1L)));
+        Assertions.assertEquals(List.of(100L), entityIds(archivedFeedStorage.getUserFeed(2L)));
+        List<Feed> firstPage = archivedFeedStorage.getUserFeedPage(1L, null, null, null, 3);
+        Assertions.assertEquals(List.of(5L, 4L, 3L), entityIds(firstPage));
+        Assertions.assertEquals(List.of(2L, 1L), entityIds(archivedFeedStorage.getUserFeedPage(1L,
+                firstPage.get(2).getEventId(), null, null, 3)));
+        Assertions.assertEquals(List.of(4L, 3L, 1L), entityIds(archivedFeedStorage.getUserFeedPage(1L, null, null,
+                FeedEventType.LIKE, 10)));
+        Assertions.assertEquals("FRIEND", archivedFeedStorage.getUserFeedPage(1L, firstPage.get(2).getEventId(),
+                null, null, 1).get(0).getEventType());
+        Assertions.assertEquals(List.of(5L, 4L, 3L, 2L), entityIds(archivedFeedStorage.getUserFeedPage(1L, null,
+                now - 40 * day - 1000, null, 10)));
+        Assertions.assertEquals(List.of(2L, 3L, 4L), entityIds(archivedFeedStorage.getUserFeedAfter(1L,
+                firstPage.get(2).getEventId() - 2, 3)));
+        Assertions.assertEquals(List.of(4L, 5L), entityIds(archivedFeedStorage.getUserFeedAfter(1L,
+                firstPage.get(2).getEventId(), 10)));
+
+        //свой файл без записи в каталоге удаляется при старте, чужие файлы остаются
+        Path orphan = Files.createFile(directory.resolve("feeds-orphan.gz"));
+        Path orphanTemp = Files.createFile(directory.resolve("feeds-orphan.gz.tmp"));
+        Path foreign = Files.createFile(directory.resolve("notes.gz"));
+        feedArchive.init();
+        feedArchive.shutdown();
+        Assertions.assertFalse(Files.exists(orphan));
+        Assertions.assertFalse(Files.exists(orphanTemp));
+        Assertions.assertTrue(Files.exists(foreign));
+        Assertions.assertEquals(5, archivedFeedStorage.getUserFeed(1L).size());
+    }
+
+    @Test
+    public void testFeedArchiveKeepsEventsCommittedAfterRead(@TempDir Path directory) {
+        long now = System.currentTimeMillis();
+        long day = Duration.ofDays(1).toMillis();
+        addFeedAt(1L, now - 41 * day, 1, 1);
+        addFeedAt(1L, now - 41 * day, 1, 2);
+        long lateId = jdbcTemplate.queryForObject("select max(id) from feeds", Long.class) - 1;
+        jdbcTemplate.update("delete from feeds where id = ?", lateId);
+        //событие с меньшим id фиксируется уже после того, как период прочитан в файл
+        JdbcTemplate racingTemplate = new JdbcTemplate(jdbcTemplate.getDataSource()) {
+            @Override
+            public void query(String sql, RowCallbackHandler rch, Object... args) {
+                super.query(sql, rch, args);
+                if (sql.startsWith("select id, create_time")) {
+                    jdbcTemplate.update("insert into feeds(id, create_time, user_id, event_type_id, operation_id, "
+                            + "entity_id) values (?, ?, 1, 1, 2, 3)", lateId, new Timestamp(now - 41 * day));
+                }
+            }
+        };
+        FeedArchive feedArchive = new FeedArchive(racingTemplate, transactionManager, true, directory.toString(),
+                Duration.ofDays(30), Duration.ofDays(1), Duration.ofHours(1));
+
+        Assertions.assertThrows(IllegalStateException.class, () -> feedArchive.compact(now));
+        Assertions.assertEquals(2, jdbcTemplate.queryForObject("select count(*) from feeds", Integer.class));
+        Assertions.assertEquals(0, jdbcTemplate.queryForObject("select count(*) from feed_archives", Integer.class));
+        Assertions.assertEquals(0, directory.toFile().list().length);
+    }
+
+    private void addFeedAt(long userId, long time, int eventTypeId, long entityId) {
+        jdbcTemplate.update("insert into feeds(create_time, user_id, event_type_id, operation_id, entity_id) "
+                + "values (?, ?, ?, 2, ?)", new Timestamp(time), userId, eventTypeId, entityId);
+    }
+
+    @Test
+    public void testTimelineResetWhenAuthorCrossesFanOutLimit() {
+        for (long id = 2; id <= 3; id++) {
+            userStorage.addUser(new User(id, "user" + id + "@email.ru", "login" + id, "name" + id,
+                    LocalDate.of(1990, 1, 1)));
+        }
+        FriendGraph friendGraph = new FriendGraph();
+        UserService userService = new UserService(userStorage, feedStorage, new FilmLeaderboard(), new LikeMatrix(),
+                friendGraph);
+        FeedService feedService = new FeedService(userStorage, feedStorage, friendGraph,
+                new FriendTimeline(friendGraph, 3, 1, 1000));
+        feedService.init();
+        //у 2 два подписчика - его события читаются из БД, буфер 1 заполняется без них
+        userService.addFriend(1L, 2L);
+        userService.addFriend(3L, 2L);
+        feedStorage.addFeedEntity(2L, FeedEventType.LIKE, FeedOperations.ADD, 10);
+        Assertions.assertEquals(List.of(10L), entityIds(feedService.getTimeline(1L, null, 10).getItems()));
+
+        //2 снова пишется веером: буфер 1 заполняется заново и видит его прошлые события
+        userService.deleteFriend(3L, 2L);
+        Assertions.assertEquals(List.of(10L), entityIds(feedService.getTimeline(1L, null, 10).getItems()));
+        feedStorage.addFeedEntity(2L, FeedEventType.LIKE, FeedOperations.ADD, 11);
+        Assertions.assertEquals(List.of(11L, 10L), entityIds(feedService.getTimeline(1L, null, 10).getItems()));
+    }
+
+    @Test
+    public void testTimelineEvictsLeastRecentlyReadBuffers() {
+        FriendTimeline friendTimeline = new FriendTimeline(new FriendGraph(), 3, 1000, 2);
+        List<Long> seeded = new ArrayList<>();
+        for (long userId : new long[]{1, 2, 1, 3, 1, 2}) {
+            friendTimeline.getPage(userId, null, 10, actorId -> true, count -> {
+                seeded.add(userId);
+                return Collections.emptyList();
+            });
+            Assertions.assertTrue(friendTimeline.getSize() <= 2);
+        }
+
+        //третий читатель вытесняет 2, который читался раньше 1
+        Assertions.assertEquals(List.of(1L, 2L, 3L, 2L), seeded);
+    }
+
+    private static List<Long> entityIds(List<Feed> feeds) {
+        return feeds.stream().map(Feed::getEntityId).collect(Collectors.toList());
+    }
 }
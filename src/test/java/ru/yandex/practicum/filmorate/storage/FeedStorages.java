@@ -0,0 +1,34 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import ru.yandex.practicum.filmorate.storage.impl.FeedArchive;
+import ru.yandex.practicum.filmorate.storage.impl.FeedDbStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FeedWriteQueue;
+
+import java.time.Duration;
+
+//Хранилище ленты для тестов, где лента - только зависимость сервисов
+final class FeedStorages {
+
+    private FeedStorages() {
+    }
+
+    //синхронная запись событий, архив выключен
+    static FeedDbStorage synchronous(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        return withQueue(jdbcTemplate, transactionManager,
+                new FeedWriteQueue(false, 1, 1, Duration.ZERO, FeedWriteQueue.Overflow.BLOCK));
+    }
+
+    static FeedDbStorage withQueue(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                   FeedWriteQueue feedWriteQueue) {
+        return new FeedDbStorage(jdbcTemplate, transactionManager, feedWriteQueue,
+                disabledArchive(jdbcTemplate, transactionManager));
+    }
+
+    //выключенный архив к каталогу не обращается, поэтому каталог не задаётся
+    static FeedArchive disabledArchive(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        return new FeedArchive(jdbcTemplate, transactionManager, false, "", Duration.ofDays(90), Duration.ofDays(1),
+                Duration.ofHours(1));
+    }
+}
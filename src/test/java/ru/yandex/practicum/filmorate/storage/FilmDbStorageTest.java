@@ -7,14 +7,30 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.transaction.PlatformTransactionManager;
 import ru.yandex.practicum.filmorate.model.*;
+import ru.yandex.practicum.filmorate.service.FilmService;
+import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.storage.impl.DictionaryDbStorage;
+import ru.yandex.practicum.filmorate.storage.impl.FeedDbStorage;
 import ru.yandex.practicum.filmorate.storage.impl.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.impl.IdIndex;
 import ru.yandex.practicum.filmorate.storage.impl.UserDbStorage;
-
+import ru.yandex.practicum.filmorate.storage.memory.FilmCache;
+import ru.yandex.practicum.filmorate.storage.memory.FilmLeaderboard;
+import ru.yandex.practicum.filmorate.storage.memory.FilmSearchIndex;
+import ru.yandex.practicum.filmorate.storage.memory.FriendGraph;
+import ru.yandex.practicum.filmorate.storage.memory.LikeMatrix;
+import ru.yandex.practicum.filmorate.storage.memory.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.memory.RecommendationCache;
+
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 
@@ -23,6 +39,7 @@ import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 class FilmDbStorageTest {
     private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
     private Film newFilm;
     private User newUser;
     private User newUser2;
@@ -30,7 +47,9 @@ class FilmDbStorageTest {
     private Genre firstGenre;
     private Mpa firstMpa;
     private FilmDbStorage filmStorage;
+    private FilmCache filmCache;
     private UserDbStorage userStorage;
+    private FeedDbStorage feedStorage;
     private Director director;
 
     @BeforeEach
@@ -44,8 +63,11 @@ class FilmDbStorageTest {
                 122, Collections.emptyList(), Collections.emptyList(), new Mpa(1,"G"));
         newUser = new User(1L, "user@email.ru", "vanya123", "Ivan Petrov", LocalDate.of(1990, 1, 1));
         newUser2 = new User(2L, "user2@email.ru", "vanya1232", "Ivan Petrov2", LocalDate.of(1990, 1, 1));
-        filmStorage = new FilmDbStorage(jdbcTemplate);
-        userStorage = new UserDbStorage(jdbcTemplate);
+        filmCache = new FilmCache(1000, Duration.ofMinutes(10));
+        IdIndex idIndex = new IdIndex(jdbcTemplate, true);
+        filmStorage = new FilmDbStorage(jdbcTemplate, new DictionaryDbStorage(jdbcTemplate), filmCache, idIndex);
+        userStorage = new UserDbStorage(jdbcTemplate, idIndex);
+        feedStorage = FeedStorages.synchronous(jdbcTemplate, transactionManager);
     }
 
     @Test
@@ -92,6 +114,40 @@ class FilmDbStorageTest {
                 .isEqualTo(newFilm);        // и сохраненного пользователя - совпадают
     }
 
+    @Test
+    public void testGetFilmsPage() {
+        // Подготавливаем данные для теста
+        filmStorage.addFilm(newFilm);
+        filmStorage.addFilm(newFilm2);
+
+        // вызываем тестируемый метод
+        Page<Film> page = Page.of(filmStorage.getFilmsPage(0, 2), 1, Film::getId);
+        List<Film> nextPage = filmStorage.getFilmsPage(page.getNextCursor(), 2);
+
+        // проверяем утверждения
+        assertThat(page.getItems().get(0)).usingRecursiveComparison().isEqualTo(newFilm);
+        assertThat(page.getNextCursor()).isEqualTo(newFilm.getId());
+        assertThat(nextPage.size()).isEqualTo(1);
+        assertThat(nextPage.get(0)).usingRecursiveComparison().isEqualTo(newFilm2);
+    }
+
+    @Test
+    public void testForEachFilm() {
+        // Подготавливаем данные для теста
+        newFilm2.setGenres(List.of(firstGenre));
+        filmStorage.addFilm(newFilm);
+        filmStorage.addFilm(newFilm2);
+        List<Film> films = new ArrayList<>();
+
+        // вызываем тестируемый метод
+        filmStorage.forEachFilm(films::add);
+
+        // проверяем утверждения
+        assertThat(films.size()).isEqualTo(2);
+        assertThat(films.get(0)).usingRecursiveComparison().isEqualTo(newFilm);
+        assertThat(films.get(1)).usingRecursiveComparison().isEqualTo(newFilm2);
+    }
+
     @Test
     public void testUpdateFilm() {
         // Подготавливаем данные для теста
@@ -161,7 +217,7 @@ class FilmDbStorageTest {
         userStorage.addUser(newUser);
 
         // вызываем тестируемый метод
-        Film savedFilm =  filmStorage.addLikeToFilm(1L,1L);
+        Film savedFilm =  filmStorage.addLikeToFilm(1L,1L).getFilm();
 
         // проверяем утверждения
         assertThat(savedFilm)
@@ -189,6 +245,197 @@ class FilmDbStorageTest {
                 .isEqualTo(filmStorage.getTopNfilms(1, null, null).get(0));        // и сохраненного пользователя - совпадают
     }
 
+    @Test
+    public void testLikeResultsCarryCommittedCounts() {
+        filmStorage.addFilm(newFilm);
+        filmStorage.addFilm(newFilm2);
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+
+        LikeResult first = filmStorage.addLikeToFilm(1L, 1L);
+        LikeResult second = filmStorage.addLikeToFilm(1L, 2L);
+        LikeResult repeated = filmStorage.addLikeToFilm(1L, 2L);
+        LikeResult removed = filmStorage.deleteLikeFromFilm(1L, 1L);
+
+        assertThat(first.getLikes()).isEqualTo(new FilmLikes(1L, 1, 1));
+        assertThat(second.getLikes()).isEqualTo(new FilmLikes(1L, 2, 2));
+        assertThat(repeated.isChanged()).isFalse();
+        assertThat(removed.getLikes()).isEqualTo(new FilmLikes(1L, 1, 3));
+
+        //запоздавший счётчик с меньшей версией рейтинг не откатывает
+        FilmLeaderboard leaderboard = new FilmLeaderboard();
+        leaderboard.ensureBuilt(sink -> {
+            sink.accept(newFilm, null);
+            sink.accept(newFilm2, new FilmLikes(2L, 2, 1));
+        });
+        leaderboard.updateLikes(removed.getLikes());
+        leaderboard.updateLikes(second.getLikes());
+
+        assertThat(leaderboard.getTop(10, null, null)).isEqualTo(List.of(2L, 1L));
+    }
+
+    @Test
+    public void testLikesCountFollowsUserDelete() {
+        filmStorage.addFilm(newFilm);
+        filmStorage.addFilm(newFilm2);
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+        filmStorage.addLikeToFilm(1L, 1L);
+        filmStorage.addLikeToFilm(1L, 1L);
+        filmStorage.addLikeToFilm(2L, 1L);
+        filmStorage.addLikeToFilm(2L, 2L);
+
+        List<FilmLikes> likes = new ArrayList<>();
+        userStorage.deleteUser(2L, likes::add);
+
+        assertThat(jdbcTemplate.queryForList("select likes_count from films order by id", Long.class))
+            .isEqualTo(List.of(1L, 1L));
+        assertThat(likes).isEqualTo(List.of(new FilmLikes(2L, 1, 3)));
+        assertThat(newFilm)
+            .usingRecursiveComparison()
+            .isEqualTo(filmStorage.getTopNfilms(1, null, null).get(0));
+    }
+
+    @Test
+    public void testLeaderboardMatchesDbTopN() {
+        FilmLeaderboard leaderboard = new FilmLeaderboard();
+        FilmService filmService = new FilmService(filmStorage, feedStorage,
+                new DictionaryDbStorage(jdbcTemplate), leaderboard,
+                new LikeWriteBuffer(false, Duration.ZERO, Duration.ZERO),
+                new FilmSearchIndex(), new LikeMatrix(),
+                new RecommendationCache(new LikeMatrix(), Duration.ofHours(1)));
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+        newFilm.setGenres(List.of(firstGenre));
+        filmService.addFilm(newFilm);
+        filmService.addFilm(newFilm2);
+        Film newFilm3 = new Film(3L, "film3", "description3", LocalDate.of(1991, 3, 3),
+                90, List.of(firstGenre), Collections.emptyList(), firstMpa);
+        filmService.addFilm(newFilm3);
+
+        filmService.getTopNfilms(10, null, null);
+        filmService.addLikeToFilm(3L, 1L);
+        filmService.addLikeToFilm(3L, 2L);
+        filmService.addLikeToFilm(2L, 1L);
+        filmService.deleteLikeFromFilm(3L, 2L);
+        newFilm2.setGenres(List.of(firstGenre));
+        filmService.updateFilm(newFilm2);
+
+        assertThat(filmService.getTopNfilms(10, null, null))
+            .usingRecursiveComparison()
+            .isEqualTo(filmStorage.getTopNfilms(10, null, null));
+        assertThat(filmService.getTopNfilms(10, 1, null))
+            .usingRecursiveComparison()
+            .isEqualTo(filmStorage.getTopNfilms(10, 1, null));
+        assertThat(filmService.getTopNfilms(1, 1, 1991))
+            .usingRecursiveComparison()
+            .isEqualTo(filmStorage.getTopNfilms(1, 1, 1991));
+        assertThat(filmService.getTopNfilms(10, 2, 1991)).isEqualTo(List.of());
+
+        //удаление пользователя меняет счётчики его фильмов, рейтинг не перестраивается
+        new UserService(userStorage, feedStorage, leaderboard, new LikeMatrix(), new FriendGraph())
+                .deleteUser(1L);
+        assertThat(leaderboard.isBuilt()).isTrue();
+        assertThat(filmService.getTopNfilms(10, null, null))
+            .usingRecursiveComparison()
+            .isEqualTo(filmStorage.getTopNfilms(10, null, null));
+    }
+
+    @Test
+    public void testLeaderboardSkipsFilmsDeletedAfterRanking() {
+        FilmService filmService = new FilmService(filmStorage, feedStorage,
+                new DictionaryDbStorage(jdbcTemplate), new FilmLeaderboard(),
+                new LikeWriteBuffer(false, Duration.ZERO, Duration.ZERO),
+                new FilmSearchIndex(), new LikeMatrix(),
+                new RecommendationCache(new LikeMatrix(), Duration.ofHours(1)));
+        filmService.addFilm(newFilm);
+        filmService.getTopNfilms(10, null, null);
+
+        //фильм удалён мимо сервиса - рейтинг о нём ещё помнит
+        filmStorage.deleteFilm(1L);
+
+        assertThat(filmService.getTopNfilms(10, null, null)).isEqualTo(List.of());
+        assertThat(filmService.getFilmByQuery("film", "title")).isEqualTo(List.of());
+    }
+
+    @Test
+    public void testWriteBehindLikes() {
+        LikeWriteBuffer likeWriteBuffer = new LikeWriteBuffer(true, Duration.ofHours(1), Duration.ofHours(1));
+        FilmService filmService = new FilmService(filmStorage, feedStorage,
+                new DictionaryDbStorage(jdbcTemplate), new FilmLeaderboard(), likeWriteBuffer, new FilmSearchIndex(),
+                new LikeMatrix(), new RecommendationCache(new LikeMatrix(), Duration.ofHours(1)));
+        filmService.init();
+        filmService.addFilm(newFilm);
+        filmService.addFilm(newFilm2);
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+
+        filmService.addLikeToFilm(1L, 1L);
+        filmService.addLikeToFilm(2L, 1L);
+        filmService.addLikeToFilm(2L, 2L);
+        filmService.deleteLikeFromFilm(1L, 1L);
+        filmService.addLikeToFilm(1L, 2L);
+        filmService.deleteLikeFromFilm(1L, 2L);
+
+        assertThat(likeWriteBuffer.getPendingCount()).isEqualTo(4);
+        assertThat(jdbcTemplate.queryForObject("select count(1) from films_likes", Integer.class)).isEqualTo(0);
+
+        filmService.shutdown();
+
+        assertThat(likeWriteBuffer.getPendingCount()).isEqualTo(0);
+        assertThat(jdbcTemplate.queryForList("select likes_count from films order by id", Long.class))
+            .isEqualTo(List.of(0L, 2L));
+        assertThat(filmService.getTopNfilms(1, null, null).get(0))
+            .usingRecursiveComparison()
+            .isEqualTo(newFilm2);
+    }
+
+    @Test
+    public void testSaveLikesReturnsAppliedChanges() {
+        filmStorage.addFilm(newFilm);
+        filmStorage.addFilm(newFilm2);
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+        filmStorage.addLikeToFilm(2L, 2L);
+
+        LikeBatchResult result = filmStorage.saveLikes(List.of(new LikeChange(1L, 1L, true),
+                new LikeChange(2L, 2L, true), new LikeChange(1L, 2L, false), new LikeChange(2L, 1L, true)));
+
+        //повторный лайк и снятие несуществующего лайка строк не меняют
+        assertThat(result.getApplied())
+            .isEqualTo(List.of(new LikeChange(1L, 1L, true), new LikeChange(2L, 1L, true)));
+        assertThat(new HashSet<>(result.getLikes()))
+            .isEqualTo(Set.of(new FilmLikes(1L, 1, 1), new FilmLikes(2L, 2, 2)));
+    }
+
+    @Test
+    public void testWriteBehindKeepsFailedLikes() throws InterruptedException {
+        LikeWriteBuffer likeWriteBuffer = new LikeWriteBuffer(true, Duration.ofHours(1), Duration.ZERO);
+        List<LikeChange> written = new ArrayList<>();
+        boolean[] failing = {true};
+        likeWriteBuffer.start(changes -> {
+            if (failing[0]) {
+                throw new IllegalStateException("database is unavailable");
+            }
+            written.addAll(changes);
+        });
+
+        //запись в вызывающем потоке не удалась - лайк остаётся в буфере, клиент ошибку не получает
+        likeWriteBuffer.add(1L, 1L, true);
+        assertThat(likeWriteBuffer.getPendingCount()).isEqualTo(1);
+        Thread.sleep(50);
+        likeWriteBuffer.add(2L, 1L, true);
+        //возвращённые в буфер изменения ждут записи с момента первого добавления
+        assertThat(likeWriteBuffer.getLagMillis() >= 50).isTrue();
+
+        failing[0] = false;
+        likeWriteBuffer.add(1L, 2L, true);
+        assertThat(likeWriteBuffer.getPendingCount()).isEqualTo(0);
+        assertThat(likeWriteBuffer.getLagMillis()).isEqualTo(0L);
+        assertThat(written.size()).isEqualTo(3);
+        likeWriteBuffer.stop();
+    }
+
     @Test
     public void testGetDirector() {
         filmStorage.createDirector(director);
@@ -213,6 +460,61 @@ class FilmDbStorageTest {
             .isEqualTo(filmStorage.getDirector(director1.getId()).getName());
     }
 
+    @Test
+    public void testFilmDirectorsFollowDirectorUpdate() {
+        filmStorage.createDirector(director);
+        newFilm.setDirectors(List.of(director));
+        filmStorage.addFilm(newFilm);
+
+        filmStorage.updateDirector(new Director(director.getId(), "Valenok"));
+
+        assertThat("Valenok")
+            .isEqualTo(filmStorage.getFilm(newFilm.getId()).getDirectors().get(0).getName());
+    }
+
+    @Test
+    public void testFilmCacheInvalidatedOnUpdate() {
+        filmStorage.addFilm(newFilm);
+        filmStorage.getFilm(newFilm.getId());
+        filmStorage.getFilm(newFilm.getId());
+
+        assertThat(filmCache.getStats())
+            .usingRecursiveComparison()
+            .isEqualTo(new CacheStats(1L, 1L, 0L, 1, 1000));
+
+        newFilm.setName("updated");
+        filmStorage.updateFilm(newFilm);
+
+        assertThat(filmStorage.getFilm(newFilm.getId()))
+            .usingRecursiveComparison()
+            .isEqualTo(newFilm);
+        assertThat(filmCache.getStats().getMisses()).isEqualTo(2L);
+    }
+
+    @Test
+    public void testFilmCacheInvalidatedAfterRelationsUpdate() {
+        List<Integer> genresAtInvalidate = new ArrayList<>();
+        FilmCache recordingCache = new FilmCache(1000, Duration.ofMinutes(10)) {
+            @Override
+            public synchronized void invalidate(Long filmId) {
+                genresAtInvalidate.add(jdbcTemplate.queryForObject(
+                        "select count(*) from genres_films where film_id = ?", Integer.class, filmId));
+                super.invalidate(filmId);
+            }
+        };
+        FilmDbStorage storage = new FilmDbStorage(jdbcTemplate, new DictionaryDbStorage(jdbcTemplate),
+                recordingCache, new IdIndex(jdbcTemplate, true));
+        storage.addFilm(newFilm);
+        genresAtInvalidate.clear();
+
+        //загрузка фильма сразу после сброса должна видеть уже записанные жанры
+        newFilm.setGenres(List.of(new Genre(1, "Комедия"), new Genre(2, "Драма")));
+        storage.updateFilm(newFilm);
+
+        assertThat(genresAtInvalidate).isEqualTo(List.of(2));
+        assertThat(storage.getFilm(newFilm.getId()).getGenres().size()).isEqualTo(2);
+    }
+
     @Test
     public void testGetDirectorFilmsSortYear() {
         Film testFilm1 = newFilm;
@@ -266,6 +568,37 @@ class FilmDbStorageTest {
                 .isEqualTo(films.get(0).getName());
     }
 
+    @Test
+    public void testSearchIndexMatchesDbSearch() {
+        FilmService filmService = new FilmService(filmStorage, feedStorage,
+                new DictionaryDbStorage(jdbcTemplate), new FilmLeaderboard(),
+                new LikeWriteBuffer(false, Duration.ZERO, Duration.ZERO), new FilmSearchIndex(), new LikeMatrix(),
+                new RecommendationCache(new LikeMatrix(), Duration.ofHours(1)));
+        userStorage.addUser(newUser);
+        filmService.createDirector(director);
+        filmService.addFilm(newFilm);
+        newFilm2.setName("Крепкий орешек");
+        newFilm2.setDirectors(List.of(director));
+        filmService.addFilm(newFilm2);
+        filmService.getFilmByQuery("fil", "title");
+        filmService.addLikeToFilm(2L, 1L);
+        filmService.updateDirector(new Director(director.getId(), "Джон Мактирнан"));
+        Film newFilm3 = new Film(3L, "Хищник", "description3", LocalDate.of(1987, 6, 12),
+                107, Collections.emptyList(), List.of(director), firstMpa);
+        filmService.addFilm(newFilm3);
+
+        //% и _ ищутся как обычные символы
+        for (String query : List.of("fil", "FILM2", "ОРЕШ", "мактирнан", "хи", "f", "нет такого", "%", "fi_", "\\")) {
+            for (String by : List.of("title", "director", "title,director", "director,title")) {
+                assertThat(filmService.getFilmByQuery(query, by))
+                    .usingRecursiveComparison()
+                    .isEqualTo(filmStorage.getFilmByQuery(query, by));
+            }
+        }
+        filmService.deleteDirector(director.getId());
+        assertThat(filmService.getFilmByQuery("мактирнан", "director")).isEqualTo(List.of());
+    }
+
     @Test
     public void testGetCommonFriendsFilms() {
         // Подготавливаем данные для теста
@@ -319,4 +652,4 @@ class FilmDbStorageTest {
                 .usingRecursiveComparison() // проверяем, что значения полей нового
                 .isEqualTo(newFilm);        // и сохраненного пользователя - совпадают
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,146 @@
+package ru.yandex.practicum.filmorate.storage;
+
+import lombok.RequiredArgsConstructor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+
+import java.sql.Timestamp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+//планы горячих запросов из *DbStorage: ни один не должен читать таблицу целиком
+@JdbcTest
+@RequiredArgsConstructor(onConstructor_ = @Autowired)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+class QueryPlanTest {
+    private static final String TABLE_SCAN = "tableScan";
+    private final JdbcTemplate jdbcTemplate;
+
+    private String explain(String sql, Object... args) {
+        return jdbcTemplate.queryForObject("explain " + sql, String.class, args);
+    }
+
+    @Test
+    public void testLikeExistsUsesPrimaryKey() {
+        String plan = explain("select 1 from films_likes where film_id = ? and user_id = ?", 1L, 1L);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FILM_ID = ?1").contains("USER_ID = ?2");
+    }
+
+    @Test
+    public void testCommonFilmsUseUserIndex() {
+        String plan = explain("select f.id from films f " +
+                "inner join ( " +
+                " SELECT fl.FILM_ID  FROM FILMS_LIKES fl WHERE fl.USER_ID = ? " +
+                " INTERSECT   " +
+                " SELECT fl.FILM_ID  FROM FILMS_LIKES fl WHERE fl.USER_ID = ?  " +
+                ") fi on f.id  = fi.film_id " +
+                "order by f.likes_count desc, f.id", 1L, 2L);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FILMS_LIKES_USER_IDX");
+    }
+
+    @Test
+    public void testUserLikesCounterUpdateUsesUserIndex() {
+        String plan = explain("update films f set likes_count = likes_count - "
+                + "(select count(1) from films_likes fl where fl.film_id = f.id and fl.user_id = ?) "
+                + "where f.id in (select film_id from films_likes where user_id = ?)", 1L, 1L);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FILMS_LIKES_USER_IDX");
+    }
+
+    @Test
+    public void testTopFilmsByGenreUseIndexes() {
+        String plan = explain("select f.id from films f where 1 = 1 " +
+                "and exists (select 1 from genres_films gf where gf.film_id = f.id and gf.genre_id = ?) " +
+                "order by f.likes_count desc, f.id limit ?", 1, 10);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FILMS_LIKES_COUNT_IDX").contains("index sorted");
+    }
+
+    @Test
+    public void testFilmGenresUsePrimaryKey() {
+        String plan = explain("select film_id, genre_id from genres_films where film_id = any(?) "
+                + "order by film_id, genre_id", (Object) new Long[]{1L, 2L});
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FILM_ID IN(").contains("index sorted");
+    }
+
+    @Test
+    public void testDirectorFilmsUseDirectorIndex() {
+        String plan = explain("select f.id from films f "
+                + "join directors_films df on f.id = df.film_id "
+                + "where df.director_id = ? "
+                + "order by f.likes_count desc, f.id ", 1);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("DIRECTORS_FILMS_DIRECTOR_IDX");
+    }
+
+    @Test
+    public void testUserFriendsUseUserIndex() {
+        String plan = explain("select uf.id from friends f join users uf on uf.id = f.friend_id "
+                + "where f.user_id = ? and f.friendship_id = 1 order by uf.id", 1L);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("USER_ID = ?1");
+    }
+
+    @Test
+    public void testCommonFriendsUseIndexes() {
+        String plan = explain("select u.id from users u where u.id in ( " +
+                "select f1.friend_id from friends f1 " +
+                "join friends f2 on f2.user_id = ? and f2.friend_id = f1.friend_id and f2.friendship_id = 1 " +
+                "where f1.user_id = ? and f1.friendship_id = 1) order by u.id", 2L, 1L);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN);
+    }
+
+    @Test
+    public void testDeleteFriendUsesPrimaryKey() {
+        String plan = explain("delete from friends where user_id = ? and friend_id = ?", 1L, 2L);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FRIEND_ID = ?2");
+    }
+
+    @Test
+    public void testReviewExistsUsesUniqueKey() {
+        String plan = explain("select count(1) from reviews where film_id = ? and user_id = ?", 1L, 1L);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("REVIEWS_FILM_USER_UK");
+    }
+
+    @Test
+    public void testReviewsUsefulUseEstimationKey() {
+        String plan = explain("select r.id, nvl(sum(decode(re.is_useful, true, 1.0, false, -1.0)),0) useful "
+                + " from reviews r left join review_estimation re on r.id = re.review_id "
+                + " where r.film_id = ? group by r.id order by 2 desc limit ? ", 1L, 10);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("REVIEW_ID = R.ID");
+    }
+
+    @Test
+    public void testFeedPageUsesUserIndex() {
+        String plan = explain("select f.id from feeds f where f.user_id = ? and f.id < ? "
+                + "order by f.id desc limit ?", 1L, 100L, 10);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FEEDS_USER_IDX");
+    }
+
+    @Test
+    public void testFeedPageByEventTypeUsesTypeIndex() {
+        String plan = explain("select f.id from feeds f where f.user_id = ? and f.id < ? and f.event_type_id = ? "
+                + "order by f.id desc limit ?", 1L, 100L, 1, 10);
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FEEDS_USER_TYPE_IDX");
+    }
+
+    @Test
+    public void testFeedSinceBoundUsesTimeIndex() {
+        String plan = explain("select min(id) from feeds where user_id = ? and create_time >= ?",
+                1L, Timestamp.valueOf("2024-01-01 00:00:00"));
+
+        assertThat(plan).doesNotContain(TABLE_SCAN).contains("FEEDS_USER_TIME_IDX");
+    }
+}
@@ -4,23 +4,48 @@ package ru.yandex.practicum.filmorate.storage;
 import lombok.RequiredArgsConstructor;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.transaction.PlatformTransactionManager;
 import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Mpa;
+import ru.yandex.practicum.filmorate.model.RecommendationStats;
 import ru.yandex.practicum.filmorate.model.User;
 import ru.yandex.practicum.filmorate.service.FilmService;
+import ru.yandex.practicum.filmorate.service.RecommendationService;
 import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.storage.impl.DictionaryDbStorage;
 import ru.yandex.practicum.filmorate.storage.impl.FeedDbStorage;
 import ru.yandex.practicum.filmorate.storage.impl.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.impl.FilmsLikesLoader;
+import ru.yandex.practicum.filmorate.storage.impl.IdIndex;
 import ru.yandex.practicum.filmorate.storage.impl.RecommendationDbStorage;
 import ru.yandex.practicum.filmorate.storage.impl.UserDbStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FilmCache;
+import ru.yandex.practicum.filmorate.storage.memory.FilmLeaderboard;
+import ru.yandex.practicum.filmorate.storage.memory.FilmSimilarityIndex;
+import ru.yandex.practicum.filmorate.storage.memory.FriendGraph;
+import ru.yandex.practicum.filmorate.storage.memory.FilmSearchIndex;
+import ru.yandex.practicum.filmorate.storage.memory.LikeMatrix;
+import ru.yandex.practicum.filmorate.storage.memory.LikeWriteBuffer;
+import ru.yandex.practicum.filmorate.storage.memory.MappedLikeStore;
+import ru.yandex.practicum.filmorate.storage.memory.MinHashIndex;
+import ru.yandex.practicum.filmorate.storage.memory.RecommendationCache;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 
@@ -30,17 +55,35 @@ import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 public class RecommendationDbStorageTest {
 
     private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
 
     UserService userService;
     FilmService filmService;
     RecommendationStorage recommendationStorage;
+    LikeMatrix likeMatrix;
+    RecommendationCache recommendationCache;
+    FilmsLikesLoader filmsLikesLoader;
+    IdIndex idIndex;
+    FeedDbStorage feedStorage;
 
 
     @BeforeEach
     public void setup() {
-        userService = new UserService(new UserDbStorage(jdbcTemplate), new FeedDbStorage(jdbcTemplate));
-        filmService = new FilmService(new FilmDbStorage(jdbcTemplate), new FeedDbStorage(jdbcTemplate));
-        recommendationStorage = new RecommendationDbStorage(jdbcTemplate);
+        FilmLeaderboard filmLeaderboard = new FilmLeaderboard();
+        likeMatrix = new LikeMatrix();
+        filmsLikesLoader = new FilmsLikesLoader(jdbcTemplate, 2, 4, 100);
+        recommendationCache = new RecommendationCache(likeMatrix, Duration.ofHours(1));
+        idIndex = new IdIndex(jdbcTemplate, true);
+        feedStorage = FeedStorages.synchronous(jdbcTemplate, transactionManager);
+        userService = new UserService(new UserDbStorage(jdbcTemplate, idIndex), feedStorage,
+                filmLeaderboard, likeMatrix, new FriendGraph());
+        DictionaryStorage dictionaryStorage = new DictionaryDbStorage(jdbcTemplate);
+        filmService = new FilmService(new FilmDbStorage(jdbcTemplate, dictionaryStorage,
+                new FilmCache(1000, Duration.ofMinutes(10)), idIndex), feedStorage,
+                dictionaryStorage, filmLeaderboard, new LikeWriteBuffer(false, Duration.ZERO, Duration.ZERO),
+                new FilmSearchIndex(), likeMatrix, recommendationCache);
+        recommendationStorage = new RecommendationDbStorage(jdbcTemplate, filmsLikesLoader, likeMatrix,
+                new MinHashIndex(likeMatrix, false, 64, 32, 2000), new FilmSimilarityIndex(likeMatrix, true, 20, 1000));
 
         User user1 = User.builder()
                 .email("user1@yandex.ru")
@@ -139,5 +182,303 @@ public class RecommendationDbStorageTest {
         assertThat(shouldBeEmpty.get(0)).isEqualTo(3L);
     }
 
+    @Test
+    public void withMostCommonLikesNeighbour() {
+        filmService.addLikeToFilm(1L, 1L);
+        filmService.addLikeToFilm(2L, 1L);
+        filmService.addLikeToFilm(1L, 2L);
+        filmService.addLikeToFilm(1L, 3L);
+        filmService.addLikeToFilm(2L, 3L);
+        filmService.addLikeToFilm(3L, 3L);
+        assertThat(recommendationStorage.recommendFilms(1L)).isEqualTo(List.of(3L));
+
+        //у пользователей 1 и 3 по одному общему лайку с пользователем 2 - выбирается меньший id
+        assertThat(recommendationStorage.recommendFilms(2L)).isEqualTo(List.of(2L));
+    }
+
+    @Test
+    public void testLikeMatrixFollowsLikeChanges() {
+        filmService.addLikeToFilm(1L, 1L);
+        filmService.addLikeToFilm(1L, 2L);
+        assertThat(recommendationStorage.recommendFilms(1L).size()).isEqualTo(0);
+
+        //матрица уже загружена, дальше изменения приходят только из сервисов
+        filmService.addLikeToFilm(2L, 2L);
+        filmService.addLikeToFilm(3L, 3L);
+        filmService.deleteLikeFromFilm(1L, 1L);
+        filmService.addLikeToFilm(3L, 1L);
+        userService.deleteUser(3L);
+
+        LikeMatrix loaded = new LikeMatrix();
+        newRecommendationStorage(loaded).recommendFilms(1L);
+        for (long id = 1; id <= 3; id++) {
+            assertThat(likeMatrix.getUserFilms(id)).isEqualTo(loaded.getUserFilms(id));
+            assertThat(likeMatrix.getFilmUsers(id)).isEqualTo(loaded.getFilmUsers(id));
+        }
+        assertThat(likeMatrix.getUserFilms(1L)).isEqualTo(new long[]{3L});
+        assertThat(likeMatrix.getFilmUsers(3L)).isEqualTo(new long[]{1L});
+        assertThat(recommendationStorage.recommendFilms(1L)).isEqualTo(List.of(1L, 2L));
+        assertThat(recommendationStorage.recommendFilms(2L)).isEqualTo(List.of(3L));
+    }
+
+    @Test
+    public void testPrecomputedRecommendations() {
+        RecommendationService recommendationService = new RecommendationService(new FilmDbStorage(jdbcTemplate,
+                new DictionaryDbStorage(jdbcTemplate), new FilmCache(1000, Duration.ofMinutes(10)), idIndex),
+                new UserDbStorage(jdbcTemplate, idIndex), recommendationStorage, recommendationCache);
+        filmService.addLikeToFilm(1L, 1L);
+        filmService.addLikeToFilm(1L, 2L);
+        filmService.addLikeToFilm(2L, 2L);
+        assertThat(recommendationService.getRecommendedFilms(1L).get(0).getId()).isEqualTo(2L);
+
+        //чужой лайк виден только после пересчёта
+        filmService.addLikeToFilm(3L, 2L);
+        assertThat(recommendationService.getRecommendedFilms(1L).size()).isEqualTo(1);
+        recommendationService.refresh();
+        assertThat(recommendationService.getRecommendedFilms(1L).size()).isEqualTo(2);
+
+        //свой лайк сбрасывает рекомендации сразу
+        filmService.addLikeToFilm(2L, 1L);
+        assertThat(recommendationService.getRecommendedFilms(1L).get(0).getId()).isEqualTo(3L);
+
+        RecommendationStats stats = recommendationCache.getStats();
+        assertThat(stats.getHits()).isEqualTo(2L);
+        assertThat(stats.getMisses()).isEqualTo(2L);
+        assertThat(stats.getRefreshes()).isEqualTo(1L);
+        assertThat(stats.getLastRefreshUsers()).isEqualTo(1);
+
+        //неизвестный пользователь не занимает место в кэше
+        assertThat(recommendationService.getRecommendedFilms(999L).size()).isEqualTo(0);
+        assertThat(recommendationCache.getStats().getActiveUsers()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRecommendationCacheRejectsResultComputedBeforeInvalidation() {
+        RecommendationCache cache = new RecommendationCache(new LikeMatrix(), Duration.ofHours(1));
+        //расчёт начат, пока пользователя нет в кэше, и его лайки меняются до создания состояния
+        long version = cache.getVersion();
+        cache.invalidate(1L);
+        assertThat(cache.get(1L)).isNull();
+        cache.put(1L, List.of(2L), version);
+        assertThat(cache.get(1L)).isNull();
+
+        cache.put(1L, List.of(3L), cache.getVersion());
+        assertThat(cache.get(1L)).isEqualTo(List.of(3L));
+    }
+
+    @Test
+    public void testSimilarFilmsFollowLikeChanges() {
+        filmService.addLikeToFilm(1L, 1L);
+        filmService.addLikeToFilm(2L, 1L);
+        filmService.addLikeToFilm(1L, 2L);
+        filmService.addLikeToFilm(2L, 2L);
+        filmService.addLikeToFilm(3L, 2L);
+        filmService.addLikeToFilm(3L, 3L);
+        assertThat(recommendationStorage.findSimilarFilms(1L, 10)).isEqualTo(List.of(2L, 3L));
+
+        filmService.deleteLikeFromFilm(2L, 2L);
+        filmService.addLikeToFilm(1L, 3L);
+        assertThat(recommendationStorage.findSimilarFilms(1L, 10)).isEqualTo(List.of(3L, 2L));
+        assertThat(recommendationStorage.findSimilarFilms(1L, 1)).isEqualTo(List.of(3L));
+
+        //инкрементальный индекс совпадает с подсчётом по матрице
+        FilmSimilarityIndex direct = new FilmSimilarityIndex(likeMatrix, false, 20, 1000);
+        for (long filmId = 1; filmId <= 3; filmId++) {
+            assertThat(recommendationStorage.findSimilarFilms(filmId, 10)).isEqualTo(direct.getSimilar(filmId, 10));
+        }
+    }
 
+    @Test
+    public void testSimilarFilmsCacheMatchesMatrixUnderRandomChanges() {
+        LikeMatrix matrix = new LikeMatrix();
+        matrix.ensureLoaded(likeSource(Collections.emptyList()));
+        FilmSimilarityIndex cached = new FilmSimilarityIndex(matrix, true, 3, 5);
+        FilmSimilarityIndex direct = new FilmSimilarityIndex(matrix, false, 3, 5);
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            boolean liked = random.nextInt(3) > 0;
+            matrix.update(random.nextInt(12) + 1, random.nextInt(20) + 1, liked);
+            long filmId = random.nextInt(12) + 1;
+            assertThat(cached.getSimilar(filmId, 3)).isEqualTo(direct.getSimilar(filmId, 3));
+        }
+    }
+
+    @Test
+    public void testMinHashRecallAgainstExact() {
+        //синтетические лайки: 4000 пользователей в 40 группах, 20 лайков из 30 фильмов своей группы + 2 случайных
+        LikeMatrix matrix = new LikeMatrix();
+        MinHashIndex minHashIndex = new MinHashIndex(matrix, true, 64, 32, 2000);
+        Random random = new Random(42);
+        List<long[]> likes = new ArrayList<>();
+        for (long userId = 1; userId <= 4000; userId++) {
+            long group = userId % 40;
+            TreeSet<Long> films = new TreeSet<>();
+            while (films.size() < 20) {
+                films.add(group * 30 + random.nextInt(30) + 1);
+            }
+            films.add(1200L + random.nextInt(1000) + 1);
+            films.add(1200L + random.nextInt(1000) + 1);
+            for (Long filmId : films) {
+                likes.add(new long[]{userId, filmId});
+            }
+        }
+        matrix.ensureLoaded(likeSource(likes));
+        RecommendationDbStorage exact = newRecommendationStorage(matrix);
+        RecommendationDbStorage approximate = newRecommendationStorage(matrix, minHashIndex);
+
+        int found = 0;
+        for (long userId = 1; userId <= 200; userId++) {
+            //лучший кандидат LSH должен иметь столько же общих лайков, сколько лучший сосед вообще
+            long[] target = matrix.getUserFilms(userId);
+            int bestCandidate = 0;
+            for (Long candidate : minHashIndex.getCandidates(userId)) {
+                bestCandidate = Math.max(bestCandidate,
+                        LikeMatrix.intersectionSize(matrix.getUserFilms(candidate), target));
+            }
+            int best = 0;
+            for (long neighbour = 1; neighbour <= 4000; neighbour++) {
+                if (neighbour != userId) {
+                    best = Math.max(best, LikeMatrix.intersectionSize(matrix.getUserFilms(neighbour), target));
+                }
+            }
+            if (bestCandidate == best) {
+                found++;
+            }
+        }
+        long exactNanos = timeRecommendations(exact);
+        long approximateNanos = timeRecommendations(approximate);
+        //логи приложения в тестах ниже error, поэтому замер печатается напрямую
+        System.out.printf("MinHash recall %d/200, 200 recommendations: exact %d us, approximate %d us%n",
+                found, exactNanos / 1000, approximateNanos / 1000);
+
+        assertThat(found).as("recall").isGreaterThanOrEqualTo(180);
+    }
+
+    private long timeRecommendations(RecommendationStorage storage) {
+        long start = System.nanoTime();
+        for (long userId = 1; userId <= 200; userId++) {
+            storage.recommendFilms(userId);
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    @Test
+    public void testMappedLikeStoreRestoresFromFiles(@TempDir Path directory) throws IOException {
+        recommendationStorage.recommendFilms(1L);
+        filmService.addLikeToFilm(1L, 1L);
+        filmService.addLikeToFilm(2L, 1L);
+        filmService.addLikeToFilm(1L, 2L);
+        MappedLikeStore mappedStore = new MappedLikeStore(directory.toString(), 2);
+        LikeMatrix mapped = new LikeMatrix(mappedStore);
+        RecommendationDbStorage mappedStorage = newRecommendationStorage(mapped);
+        assertThat(mappedStorage.recommendFilms(2L)).isEqualTo(List.of(2L));
+
+        //изменения пишутся в журнал, второй лайк запускает пересборку снимка в фоне, третий идёт в новый журнал
+        filmService.addLikeToFilm(3L, 3L);
+        mapped.update(3L, 3L, true);
+        filmService.deleteLikeFromFilm(2L, 1L);
+        mapped.update(2L, 1L, false);
+        filmService.addLikeToFilm(3L, 1L);
+        mapped.update(3L, 1L, true);
+        assertThat(mapped.getUserFilms(1L)).isEqualTo(new long[]{1L, 3L});
+        mappedStore.close();
+        assertThat(Files.exists(directory.resolve("likes.log.frozen"))).isFalse();
+
+        //новый экземпляр поднимается из файлов: снимок + журнал
+        MappedLikeStore restoredStore = new MappedLikeStore(directory.toString(), 100);
+        LikeMatrix restored = new LikeMatrix(restoredStore);
+        newRecommendationStorage(restored).recommendFilms(1L);
+        for (long id = 1; id <= 3; id++) {
+            assertThat(restored.getUserFilms(id)).isEqualTo(likeMatrix.getUserFilms(id));
+            assertThat(restored.getFilmUsers(id)).isEqualTo(likeMatrix.getFilmUsers(id));
+        }
+        assertThat(restored.getUserFilms(1L)).isEqualTo(new long[]{1L, 3L});
+        restoredStore.close();
+
+        //пересборка прервана: замороженный журнал доигрывается и вливается в текущий
+        Files.move(directory.resolve("likes.log"), directory.resolve("likes.log.frozen"));
+        MappedLikeStore interruptedStore = new MappedLikeStore(directory.toString(), 100);
+        LikeMatrix interrupted = new LikeMatrix(interruptedStore);
+        newRecommendationStorage(interrupted).recommendFilms(1L);
+        assertThat(interrupted.getUserFilms(1L)).isEqualTo(new long[]{1L, 3L});
+        assertThat(Files.exists(directory.resolve("likes.log.frozen"))).isFalse();
+        interruptedStore.close();
+    }
+
+    @Test
+    public void testMappedLikeStoreReloadsAfterSwappedLikes(@TempDir Path directory) {
+        filmService.addLikeToFilm(1L, 1L);
+        filmService.addLikeToFilm(2L, 2L);
+        MappedLikeStore store = new MappedLikeStore(directory.toString(), 100);
+        LikeMatrix mapped = new LikeMatrix(store);
+        newRecommendationStorage(mapped).recommendFilms(1L);
+        store.close();
+
+        //число лайков и суммы id те же, пары другие
+        jdbcTemplate.update("delete from films_likes");
+        jdbcTemplate.update("insert into films_likes(film_id, user_id) values (1, 2), (2, 1)");
+        MappedLikeStore restoredStore = new MappedLikeStore(directory.toString(), 100);
+        LikeMatrix restored = new LikeMatrix(restoredStore);
+        newRecommendationStorage(restored).recommendFilms(1L);
+        assertThat(restored.getUserFilms(1L)).isEqualTo(new long[]{2L});
+        assertThat(restored.getUserFilms(2L)).isEqualTo(new long[]{1L});
+        restoredStore.close();
+    }
+
+    @Test
+    public void testFilmsLikesLoaderKeepsOrderAcrossPartitions() {
+        filmService.addLikeToFilm(3L, 1L);
+        filmService.addLikeToFilm(1L, 3L);
+        filmService.addLikeToFilm(2L, 3L);
+        filmService.addLikeToFilm(2L, 1L);
+        filmService.addLikeToFilm(1L, 2L);
+        //частей больше, чем значений ведущего столбца: пустые диапазоны не мешают
+        FilmsLikesLoader loader = new FilmsLikesLoader(jdbcTemplate, 3, 10, 1);
+
+        List<String> byUser = new ArrayList<>();
+        assertThat(loader.forEach(FilmsLikesLoader.Order.BY_USER,
+                (userId, filmId) -> byUser.add(userId + ":" + filmId))).isEqualTo(5L);
+        assertThat(byUser).isEqualTo(List.of("1:2", "1:3", "2:1", "3:1", "3:2"));
+
+        List<String> byFilm = new ArrayList<>();
+        assertThat(loader.forEach(FilmsLikesLoader.Order.BY_FILM,
+                (userId, filmId) -> byFilm.add(filmId + ":" + userId))).isEqualTo(5L);
+        assertThat(byFilm).isEqualTo(List.of("1:2", "1:3", "2:1", "2:3", "3:1"));
+    }
+
+    private static LikeMatrix.LikeSource likeSource(List<long[]> likes) {
+        return new LikeMatrix.LikeSource() {
+            @Override
+            public void forEachByUser(LikeMatrix.LikeConsumer sink) {
+                likes.sort(Comparator.<long[]>comparingLong(like -> like[0]).thenComparingLong(like -> like[1]));
+                likes.forEach(like -> sink.accept(like[0], like[1]));
+            }
+
+            @Override
+            public void forEachByFilm(LikeMatrix.LikeConsumer sink) {
+                likes.sort(Comparator.<long[]>comparingLong(like -> like[1]).thenComparingLong(like -> like[0]));
+                likes.forEach(like -> sink.accept(like[0], like[1]));
+            }
+
+            @Override
+            public long[] summary() {
+                return new long[]{likes.size(),
+                        likes.stream().mapToLong(like -> LikeMatrix.pairHash(like[1], like[0],
+                                LikeMatrix.HASH_FACTORS[0])).sum(),
+                        likes.stream().mapToLong(like -> LikeMatrix.pairHash(like[1], like[0],
+                                LikeMatrix.HASH_FACTORS[1])).sum()};
+            }
+        };
+    }
+
+    //без MinHash и без кэша похожих фильмов
+    private RecommendationDbStorage newRecommendationStorage(LikeMatrix matrix) {
+        return newRecommendationStorage(matrix, new MinHashIndex(matrix, false, 64, 32, 2000));
+    }
+
+    private RecommendationDbStorage newRecommendationStorage(LikeMatrix matrix, MinHashIndex minHashIndex) {
+        return new RecommendationDbStorage(jdbcTemplate, filmsLikesLoader, matrix, minHashIndex,
+                new FilmSimilarityIndex(matrix, false, 20, 1000));
+    }
 }
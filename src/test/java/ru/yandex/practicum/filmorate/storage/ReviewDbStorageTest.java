@@ -13,10 +13,14 @@ import ru.yandex.practicum.filmorate.model.Film;
 import ru.yandex.practicum.filmorate.model.Mpa;
 import ru.yandex.practicum.filmorate.model.Review;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.storage.impl.DictionaryDbStorage;
 import ru.yandex.practicum.filmorate.storage.impl.FilmDbStorage;
+import ru.yandex.practicum.filmorate.storage.impl.IdIndex;
 import ru.yandex.practicum.filmorate.storage.impl.ReviewDbStorage;
 import ru.yandex.practicum.filmorate.storage.impl.UserDbStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FilmCache;
 
+import java.time.Duration;
 import java.time.LocalDate;
 import java.util.Collections;
 
@@ -41,9 +45,11 @@ public class ReviewDbStorageTest {
                 120, Collections.emptyList(), Collections.emptyList(), new Mpa(1,"G"));
         newUser = new User(1L, "user@email.ru", "vanya123", "Ivan Petrov", LocalDate.of(1990, 1, 1));
         newReview = new Review(1L,"review content", true, 1L, 1L, 0L);
-        filmStorage = new FilmDbStorage(jdbcTemplate);
-        userStorage = new UserDbStorage(jdbcTemplate);
-        reviewStorage = new ReviewDbStorage(jdbcTemplate);
+        IdIndex idIndex = new IdIndex(jdbcTemplate, true);
+        filmStorage = new FilmDbStorage(jdbcTemplate, new DictionaryDbStorage(jdbcTemplate),
+                new FilmCache(1000, Duration.ofMinutes(10)), idIndex);
+        userStorage = new UserDbStorage(jdbcTemplate, idIndex);
+        reviewStorage = new ReviewDbStorage(jdbcTemplate, idIndex);
         userStorage.addUser(newUser);
         filmStorage.addFilm(newFilm);
     }
@@ -135,4 +141,26 @@ public class ReviewDbStorageTest {
 
         Assertions.assertEquals(undislikedReview.getUseful(), -1, "Review undisliked");
     }
+
+    @Test
+    public void testIdIndexRejectsMissingIds() {
+        reviewStorage.addReview(newReview);
+
+        assertThat(userStorage.containsUser(1L)).isTrue();
+        assertThat(userStorage.containsUser(2L)).isFalse();
+        assertThrows(NotFoundException.class, () -> userStorage.addFriend(1L, 2L, (user, friend) -> { }));
+        assertThrows(NotFoundException.class, () -> filmStorage.checkLike(2L, 1L));
+        assertThrows(NotFoundException.class, () -> reviewStorage.getReview(2L));
+        assertThrows(NotFoundException.class, () -> reviewStorage.addLikeReview(1L, 2L));
+
+        //отзыв удалён каскадом вместе с фильмом: индекс его пропускает, отсекает запрос
+        filmStorage.deleteFilm(1L);
+        assertThrows(NotFoundException.class, () -> filmStorage.checkLike(1L, 1L));
+        assertThrows(NotFoundException.class, () -> reviewStorage.getReview(1L));
+
+        userStorage.deleteUser(1L, likes -> { });
+        assertThat(userStorage.containsUser(1L)).isFalse();
+        User user = userStorage.addUser(new User(null, "user2@email.ru", "petya", "Petr", LocalDate.of(1990, 1, 1)));
+        assertThat(userStorage.containsUser(user.getId())).isTrue();
+    }
 }
@@ -6,11 +6,23 @@ import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.JdbcTest;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.transaction.PlatformTransactionManager;
 import ru.yandex.practicum.filmorate.model.User;
+import ru.yandex.practicum.filmorate.service.UserService;
+import ru.yandex.practicum.filmorate.storage.impl.FeedDbStorage;
+import ru.yandex.practicum.filmorate.storage.impl.IdIndex;
 import ru.yandex.practicum.filmorate.storage.impl.UserDbStorage;
+import ru.yandex.practicum.filmorate.storage.memory.FilmLeaderboard;
+import ru.yandex.practicum.filmorate.storage.memory.FriendGraph;
+import ru.yandex.practicum.filmorate.storage.memory.LikeMatrix;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 
@@ -19,15 +31,18 @@ import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 class UserDbStorageTest {
     private final JdbcTemplate jdbcTemplate;
+    private final PlatformTransactionManager transactionManager;
     private User newUser;
     private User newUser2;
     private UserDbStorage userStorage;
+    private FeedDbStorage feedStorage;
 
     @BeforeEach
     public void setup() {
         newUser = new User(1L, "user@email.ru", "vanya123", "Ivan Petrov", LocalDate.of(1990, 1, 1));
         newUser2 = new User(2L, "user@email.ru", "vanya456", "Petr Ivanov", LocalDate.of(1990, 2, 2));
-        userStorage = new UserDbStorage(jdbcTemplate);
+        userStorage = new UserDbStorage(jdbcTemplate, new IdIndex(jdbcTemplate, true));
+        feedStorage = FeedStorages.synchronous(jdbcTemplate, transactionManager);
     }
 
     @Test
@@ -60,6 +75,22 @@ class UserDbStorageTest {
                 .isEqualTo(newUser);        // и сохраненного пользователя - совпадают
     }
 
+    @Test
+    public void testGetUsersPage() {
+        // Подготавливаем данные для теста
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+
+        // вызываем тестируемый метод
+        List<User> firstPage = userStorage.getUsersPage(0, 1);
+        List<User> secondPage = userStorage.getUsersPage(firstPage.get(0).getId(), 1);
+
+        // проверяем утверждения
+        assertThat(firstPage.get(0)).usingRecursiveComparison().isEqualTo(newUser);
+        assertThat(secondPage.get(0)).usingRecursiveComparison().isEqualTo(newUser2);
+        assertThat(userStorage.getUsersPage(newUser2.getId(), 1).size()).isEqualTo(0);
+    }
+
     @Test
     public void testAddUser() {
         // Подготавливаем данные для теста
@@ -95,8 +126,8 @@ class UserDbStorageTest {
         // Подготавливаем данные для теста
         userStorage.addUser(newUser);
         userStorage.addUser(newUser2);
-        userStorage.addFriend(1L, 2L);
-        userStorage.addFriend(2L, 1L);
+        userStorage.addFriend(1L, 2L, (user, friend) -> { });
+        userStorage.addFriend(2L, 1L, (user, friend) -> { });
 
         // вызываем тестируемый метод
         User savedUser = userStorage.getUserFriends(1L).get(0);
@@ -113,10 +144,10 @@ class UserDbStorageTest {
         // Подготавливаем данные для теста
         userStorage.addUser(newUser);
         userStorage.addUser(newUser2);
-        userStorage.addFriend(newUser2.getId(), newUser.getId());
+        userStorage.addFriend(newUser2.getId(), newUser.getId(), (user, friend) -> { });
 
         // вызываем тестируемый метод
-        User savedUser = userStorage.addFriend(newUser.getId(), newUser2.getId());
+        User savedUser = userStorage.addFriend(newUser.getId(), newUser2.getId(), (user, friend) -> { });
 
         // проверяем утверждения
         assertThat(savedUser)
@@ -125,16 +156,59 @@ class UserDbStorageTest {
                 .isEqualTo(newUser2);        // и сохраненного пользователя - совпадают
     }
 
+    @Test
+    public void testAddUserFriendTwiceConcurrently() {
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+        userStorage.addFriend(newUser.getId(), newUser2.getId(), (user, friend) -> { });
+        //проверка дружбы не видит строку, вставленную параллельным запросом
+        JdbcTemplate racingTemplate = new JdbcTemplate(jdbcTemplate.getDataSource()) {
+            @Override
+            public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object... args) {
+                if (sql.startsWith("select friendship_id")) {
+                    return Collections.emptyList();
+                }
+                return super.query(sql, rowMapper, args);
+            }
+        };
+        UserDbStorage racingStorage = new UserDbStorage(racingTemplate, new IdIndex(jdbcTemplate, true));
+
+        assertThat(racingStorage.addFriend(newUser.getId(), newUser2.getId(), (user, friend) -> { }))
+                .usingRecursiveComparison()
+                .isEqualTo(newUser2);
+        assertThat(jdbcTemplate.queryForObject("select count(*) from friends", Integer.class)).isEqualTo(1);
+    }
+
+    @Test
+    public void testAddUserFriendConfirmsPendingFriendship() {
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+        jdbcTemplate.update("insert into friends(user_id, friend_id, friendship_id) values (?, ?, 2)",
+                newUser2.getId(), newUser.getId());
+
+        List<Long> confirmed = new ArrayList<>();
+        assertThat(userStorage.addFriend(newUser.getId(), newUser2.getId(), (user, friend) -> {
+            confirmed.add(user);
+            confirmed.add(friend);
+        }))
+                .usingRecursiveComparison()
+                .isEqualTo(newUser2);
+        assertThat(jdbcTemplate.queryForObject("select friendship_id from friends where user_id = ? "
+                + "and friend_id = ?", Integer.class, newUser2.getId(), newUser.getId())).isEqualTo(1);
+        //подтверждена встречная строка
+        assertThat(confirmed).isEqualTo(List.of(newUser2.getId(), newUser.getId()));
+    }
+
     @Test
     public void testDeleteUserFriend() {
         // Подготавливаем данные для теста
         userStorage.addUser(newUser);
         userStorage.addUser(newUser2);
-        userStorage.addFriend(newUser.getId(), newUser2.getId());
-        userStorage.addFriend(newUser2.getId(), newUser.getId());
+        userStorage.addFriend(newUser.getId(), newUser2.getId(), (user, friend) -> { });
+        userStorage.addFriend(newUser2.getId(), newUser.getId(), (user, friend) -> { });
 
         // вызываем тестируемый метод
-        User savedUser = userStorage.deleteFriend(newUser.getId(), newUser2.getId());
+        User savedUser = userStorage.deleteFriend(newUser.getId(), newUser2.getId(), (user, friend) -> { });
 
         // проверяем утверждения
         assertThat(savedUser)
@@ -142,4 +216,81 @@ class UserDbStorageTest {
                 .usingRecursiveComparison() // проверяем, что значения полей нового
                 .isEqualTo(newUser2);        // и сохраненного пользователя - совпадают
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testIdIndexHandlesLargeIds() {
+        userStorage.addUser(newUser);
+        long largeId = 274877906945L;
+
+        //id за пределами битового массива не должны попадать в чужие биты
+        assertThat(userStorage.containsUser(1L)).isTrue();
+        assertThat(userStorage.containsUser(largeId)).isFalse();
+        assertThat(userStorage.containsUser(Long.MAX_VALUE)).isFalse();
+
+        jdbcTemplate.update("insert into users(id, name, login, email, birthday) values (?, 'big', 'big', "
+                + "'big@email.ru', '1990-01-01')", largeId);
+        UserDbStorage reloadedStorage = new UserDbStorage(jdbcTemplate, new IdIndex(jdbcTemplate, true));
+        assertThat(reloadedStorage.containsUser(largeId)).isTrue();
+        assertThat(reloadedStorage.containsUser(1L)).isTrue();
+        assertThat(reloadedStorage.containsUser(largeId + 1)).isFalse();
+        reloadedStorage.deleteUser(largeId, likes -> { });
+        assertThat(reloadedStorage.containsUser(largeId)).isFalse();
+    }
+
+    @Test
+    public void testFriendGraphFollowsFriendChanges() {
+        User newUser3 = new User(3L, "user3@email.ru", "vanya789", "Sidor Sidorov", LocalDate.of(1990, 3, 3));
+        userStorage.addUser(newUser);
+        userStorage.addUser(newUser2);
+        userStorage.addUser(newUser3);
+        UserService userService = new UserService(userStorage, feedStorage,
+                new FilmLeaderboard(), new LikeMatrix(), new FriendGraph());
+        userService.addFriend(1L, 2L);
+        userService.addFriend(1L, 3L);
+        userService.addFriend(2L, 3L);
+
+        //граф загружается при первом чтении, дальше обновляется из UserService
+        assertThat(ids(userService.getUserFriends(1L))).isEqualTo(List.of(2L, 3L));
+        assertThat(ids(userService.findCommonFriends(1L, 2L))).isEqualTo(List.of(3L));
+        assertThat(ids(userService.findCommonFriends(1L, 2L)))
+                .isEqualTo(ids(userStorage.findCommonFriends(1L, 2L)));
+
+        userService.deleteFriend(3L, 1L);
+        assertThat(ids(userService.getUserFriends(1L))).isEqualTo(ids(userStorage.getUserFriends(1L)));
+        assertThat(ids(userService.getUserFriends(1L))).isEqualTo(List.of(2L));
+        assertThat(userService.findCommonFriends(1L, 2L)).isEqualTo(List.of());
+
+        userService.deleteUser(2L);
+        assertThat(userService.getUserFriends(1L)).isEqualTo(List.of());
+    }
+
+    @Test
+    public void testFriendSuggestionsRankByMutualFriends() {
+        for (long id = 1; id <= 6; id++) {
+            userStorage.addUser(new User(id, "user" + id + "@email.ru", "login" + id, "name" + id,
+                    LocalDate.of(1990, 1, 1)));
+        }
+        FriendGraph friendGraph = new FriendGraph();
+        UserService userService = new UserService(userStorage, feedStorage,
+                new FilmLeaderboard(), new LikeMatrix(), friendGraph);
+        userService.addFriend(1L, 2L);
+        userService.addFriend(1L, 3L);
+        userService.addFriend(2L, 5L);
+        userService.addFriend(3L, 5L);
+        userService.addFriend(2L, 4L);
+        userService.addFriend(3L, 6L);
+        userService.addFriend(2L, 3L);
+
+        //5 - два общих друга; 4 и 6 - по одному; 3 уже в друзьях
+        assertThat(ids(userService.getFriendSuggestions(1L, 10))).isEqualTo(List.of(5L, 4L, 6L));
+        assertThat(ids(userService.getFriendSuggestions(1L, 2))).isEqualTo(List.of(5L, 4L));
+        assertThat(friendGraph.getSuggestions(1L, 2, 100, candidate -> candidate == 6L ? 1 : 0))
+                .isEqualTo(new long[]{5L, 6L});
+        //лимит обхода: просмотрены только связи первого друга
+        assertThat(friendGraph.getSuggestions(1L, 10, 3, null)).isEqualTo(new long[]{4L, 5L});
+    }
+
+    private static List<Long> ids(List<User> users) {
+        return users.stream().map(User::getId).collect(Collectors.toList());
+    }
+}